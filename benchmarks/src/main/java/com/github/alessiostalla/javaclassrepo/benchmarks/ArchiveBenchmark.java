@@ -0,0 +1,85 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassProvider;
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.java.ArchiveClassProvider;
+import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.VFS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Serving the generated classes from a JAR, through the VFS jar: file system or with {@link ArchiveClassProvider}:
+ * resolving the resource of a class, and loading every class into a fresh repository.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    @Param({"vfs", "archive"})
+    public String provider;
+
+    @Param({"100"})
+    public int count;
+
+    protected GeneratedClasses classes;
+    protected File jar;
+    protected ClassProvider classProvider;
+    protected int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classes = GeneratedClasses.generate(count, true);
+        jar = new File(classes.baseDir, "classes.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for(int i = 0; i < count; i++) {
+                String name = GeneratedClasses.PACKAGE + "/" + classes.simpleName(i) + ".class";
+                out.putNextEntry(new JarEntry(name));
+                out.write(FileUtils.readFileToByteArray(new File(classes.classesDir, name)));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        classProvider = createProvider();
+    }
+
+    protected ClassProvider createProvider() throws IOException {
+        if("vfs".equals(provider)) {
+            return new CompiledJavaClassProvider(VFS.getManager().resolveFile("jar:" + jar.toURI() + "!/"));
+        }
+        return new ArchiveClassProvider(jar);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        classes.delete();
+    }
+
+    @Benchmark
+    public boolean resolve() {
+        next = (next + 1) % count;
+        return classProvider.getResourceForClass(classes.className(next)).exists();
+    }
+
+    @Benchmark
+    public ClassRepository defineAll() throws ClassNotFoundException {
+        ClassRepository repository = new ClassRepository(false).withClassProviders(classProvider);
+        for(int i = 0; i < count; i++) {
+            repository.getClass(classes.className(i));
+        }
+        return repository;
+    }
+}
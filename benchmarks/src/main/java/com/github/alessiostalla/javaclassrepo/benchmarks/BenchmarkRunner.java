@@ -0,0 +1,48 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runs the benchmarks, accepting the usual JMH command line options. Unless told otherwise, it writes the results in
+ * JSON to jmh-result-&lt;version&gt;.json, so that results can be compared across versions.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if(commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if(commandLine.shouldList()) {
+            new Runner(commandLine).list();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if(!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if(!commandLine.getResult().hasValue()) {
+            options.result("jmh-result-" + getVersion() + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+
+    protected static String getVersion() throws Exception {
+        Properties properties = new Properties();
+        InputStream in = BenchmarkRunner.class.getResourceAsStream("/benchmarks.properties");
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties.getProperty("version");
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.groovy.GroovyClassProvider;
+import com.github.alessiostalla.javaclassrepo.java.SourceJavaClassProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold loads from source: each invocation uses a fresh repository, so the class has to be compiled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CompileBenchmark {
+
+    protected GeneratedClasses classes;
+    protected ClassRepository javaRepository;
+    protected ClassRepository groovyRepository;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        classes = GeneratedClasses.generate(1, false);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        javaRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(classes.getSourceRoot()));
+        groovyRepository = new ClassRepository().withClassProviders(new GroovyClassProvider(classes.getSourceRoot()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        classes.delete();
+    }
+
+    @Benchmark
+    public Class javaSource() throws ClassNotFoundException {
+        return javaRepository.getClass(classes.className(0));
+    }
+
+    @Benchmark
+    public Class groovySource() throws ClassNotFoundException {
+        return groovyRepository.getClass(GeneratedClasses.PACKAGE + ".Script");
+    }
+}
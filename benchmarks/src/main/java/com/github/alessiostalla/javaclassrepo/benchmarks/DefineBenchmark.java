@@ -0,0 +1,49 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading already compiled classes with {@link CompiledJavaClassProvider}: each invocation loads every generated class
+ * into a fresh repository.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DefineBenchmark {
+
+    @Param({"100"})
+    public int count;
+
+    protected GeneratedClasses classes;
+    protected ClassRepository repository;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        classes = GeneratedClasses.generate(count, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        repository = new ClassRepository(false).withClassProviders(new CompiledJavaClassProvider(classes.getClassesRoot()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        classes.delete();
+    }
+
+    @Benchmark
+    public ClassRepository defineAll() throws ClassNotFoundException {
+        for(int i = 0; i < count; i++) {
+            repository.getClass(classes.className(i));
+        }
+        return repository;
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.VFS;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a set of Java (and optionally Groovy) sources in a temporary directory, forming a dependency tree: each
+ * class C<i>i</i> extends C<i>(i - 1) / 2</i>, so C0 is the root every other class depends on. The sources can also
+ * be compiled to a separate directory.
+ */
+public class GeneratedClasses {
+
+    public static final String PACKAGE = "generated";
+
+    public final int count;
+    public final File baseDir;
+    public final File sourceDir;
+    public final File classesDir;
+
+    protected GeneratedClasses(int count, File baseDir) {
+        this.count = count;
+        this.baseDir = baseDir;
+        this.sourceDir = new File(baseDir, "src");
+        this.classesDir = new File(baseDir, "classes");
+    }
+
+    public static GeneratedClasses generate(int count, boolean compile) throws IOException {
+        File baseDir = File.createTempFile("javaclassrepo-bench", "");
+        if(!baseDir.delete() || !baseDir.mkdir()) {
+            throw new IOException("Could not create " + baseDir);
+        }
+        GeneratedClasses classes = new GeneratedClasses(count, baseDir);
+        File packageDir = new File(classes.sourceDir, PACKAGE);
+        if(!packageDir.mkdirs() || !new File(classes.classesDir, PACKAGE).mkdirs()) {
+            throw new IOException("Could not create " + packageDir);
+        }
+        List<String> sourceFiles = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            File source = new File(packageDir, classes.simpleName(i) + ".java");
+            String superclass = i > 0 ? " extends " + classes.simpleName((i - 1) / 2) : "";
+            FileUtils.writeStringToFile(source,
+                    "package " + PACKAGE + ";\n\n" +
+                    "public class " + classes.simpleName(i) + superclass + " {\n" +
+                    "    public int value" + i + "(int x) {\n" +
+                    "        return x * " + i + " + 1;\n" +
+                    "    }\n" +
+                    "}\n");
+            sourceFiles.add(source.getPath());
+        }
+        FileUtils.writeStringToFile(new File(packageDir, "Script.groovy"),
+                "package " + PACKAGE + "\n\n" +
+                "class Script {\n" +
+                "    int sum(List<Integer> values) {\n" +
+                "        int total = 0\n" +
+                "        for(int v : values) {\n" +
+                "            total += v * 2\n" +
+                "        }\n" +
+                "        return total\n" +
+                "    }\n" +
+                "}\n");
+        if(compile) {
+            List<String> args = new ArrayList<String>();
+            args.add("-d");
+            args.add(classes.classesDir.getPath());
+            args.addAll(sourceFiles);
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if(compiler.run(null, null, null, args.toArray(new String[args.size()])) != 0) {
+                throw new IOException("Could not compile the generated sources");
+            }
+        }
+        return classes;
+    }
+
+    public String simpleName(int i) {
+        return "C" + i;
+    }
+
+    public String className(int i) {
+        return PACKAGE + "." + simpleName(i);
+    }
+
+    public FileObject getSourceRoot() throws FileSystemException {
+        return VFS.getManager().resolveFile(sourceDir.toURI().toString());
+    }
+
+    public FileObject getClassesRoot() throws FileSystemException {
+        return VFS.getManager().resolveFile(classesDir.toURI().toString());
+    }
+
+    public void delete() {
+        FileUtils.deleteQuietly(baseDir);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.groovy.GroovyClassProvider;
+import com.github.alessiostalla.javaclassrepo.groovy.GroovyCompilationProfile;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Running the same Groovy script compiled with dynamic dispatch and statically.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroovyDispatchBenchmark {
+
+    @Param({"DYNAMIC", "STATIC"})
+    public GroovyCompilationProfile.Mode mode;
+
+    protected GeneratedClasses classes;
+    protected ToIntFunction<List<Integer>> script;
+    protected List<Integer> values;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        classes = GeneratedClasses.generate(1, false);
+        FileUtils.writeStringToFile(new File(new File(classes.sourceDir, GeneratedClasses.PACKAGE), "Dispatch.groovy"),
+                "package " + GeneratedClasses.PACKAGE + "\n\n" +
+                "import java.util.function.ToIntFunction\n\n" +
+                "class Dispatch implements ToIntFunction<List<Integer>> {\n" +
+                "    int applyAsInt(List<Integer> values) {\n" +
+                "        int total = 0\n" +
+                "        for(int i = 0; i < values.size(); i++) {\n" +
+                "            total += values.get(i) * 31 + (total >> 3)\n" +
+                "        }\n" +
+                "        return total\n" +
+                "    }\n" +
+                "}\n");
+        GroovyClassProvider provider = new GroovyClassProvider(classes.getSourceRoot()).withProfile(new GroovyCompilationProfile(mode));
+        ClassRepository repository = new ClassRepository().withClassProviders(provider);
+        script = (ToIntFunction<List<Integer>>) repository.getClass(GeneratedClasses.PACKAGE + ".Dispatch").newInstance();
+        values = new ArrayList<Integer>();
+        for(int i = 0; i < 100; i++) {
+            values.add(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        classes.delete();
+    }
+
+    @Benchmark
+    public int run() {
+        return script.applyAsInt(values);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
+import com.github.alessiostalla.javaclassrepo.vfs.VFSChangeDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hits in {@link ClassRepository#getClass(String)}, from a single thread and from many threads at once, with
+ * each of the ways of checking cached classes for changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    /**
+     * poll: check the class file on every lookup; interval: check it at most once per second; watch: rely on a
+     * change detector.
+     */
+    @Param({"poll", "interval", "watch"})
+    public String changeDetection;
+
+    protected GeneratedClasses classes;
+    protected VFSChangeDetector changeDetector;
+    protected ClassRepository repository;
+    protected String className;
+
+    @Setup
+    public void setUp() throws Exception {
+        classes = GeneratedClasses.generate(16, true);
+        CompiledJavaClassProvider provider = new CompiledJavaClassProvider(classes.getClassesRoot());
+        repository = new ClassRepository(false).withClassProviders(provider);
+        if("interval".equals(changeDetection)) {
+            repository.withPollInterval(1000);
+        } else if("watch".equals(changeDetection)) {
+            changeDetector = new VFSChangeDetector();
+            changeDetector.watch(provider);
+            repository.withChangeDetector(changeDetector);
+        }
+        className = classes.className(classes.count - 1);
+        repository.getClass(className);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if(changeDetector != null) {
+            changeDetector.close();
+        }
+        classes.delete();
+    }
+
+    @Benchmark
+    public Class hit() throws ClassNotFoundException {
+        return repository.getClass(className);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Class hitContended() throws ClassNotFoundException {
+        return repository.getClass(className);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
+import com.github.alessiostalla.javaclassrepo.java.SourceJavaClassProvider;
+import com.github.alessiostalla.javaclassrepo.vfs.VFSChangeDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of a class that does not exist, going through the parent class loader and two providers, with and without
+ * the negative lookup cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MissBenchmark {
+
+    @Param({"false", "true"})
+    public boolean negativeCache;
+
+    protected GeneratedClasses classes;
+    protected VFSChangeDetector changeDetector;
+    protected ClassRepository repository;
+
+    @Setup
+    public void setUp() throws Exception {
+        classes = GeneratedClasses.generate(16, true);
+        CompiledJavaClassProvider compiled = new CompiledJavaClassProvider(classes.getClassesRoot());
+        SourceJavaClassProvider source = new SourceJavaClassProvider(classes.getSourceRoot());
+        repository = new ClassRepository().withClassProviders(compiled, source);
+        if(negativeCache) {
+            changeDetector = new VFSChangeDetector();
+            changeDetector.watch(compiled);
+            changeDetector.watch(source);
+            repository.withChangeDetector(changeDetector).withNegativeCache(1000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if(changeDetector != null) {
+            changeDetector.close();
+        }
+        classes.delete();
+    }
+
+    @Benchmark
+    public Object miss() {
+        try {
+            return repository.getClass(GeneratedClasses.PACKAGE + ".Missing");
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.alessiostalla.javaclassrepo.benchmarks;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reload cascades: the root of the generated dependency tree is marked as changed, so looking up any class reloads the
+ * whole tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ReloadBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    protected GeneratedClasses classes;
+    protected ClassRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classes = GeneratedClasses.generate(size, true);
+        repository = new ClassRepository(false).withClassProviders(new CompiledJavaClassProvider(classes.getClassesRoot()));
+        for(int i = 0; i < size; i++) {
+            repository.getClass(classes.className(i));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void markRootChanged() {
+        repository.getClassCache().get(classes.className(0)).markChanged();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        classes.delete();
+    }
+
+    @Benchmark
+    public Class reloadCascade() throws ClassNotFoundException {
+        return repository.getClass(classes.className(size - 1));
+    }
+}
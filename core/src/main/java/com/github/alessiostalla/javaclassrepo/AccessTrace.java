@@ -0,0 +1,202 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records which classes a {@link ClassRepository} loads, in what order, how long loading each one took and how often
+ * each one is looked up (see {@link ClassRepository#withAccessTrace(AccessTrace)}), so that after a restart the
+ * repository can load them ahead of time (see {@link ClassRepository#warmUp(AccessTrace)}).
+ *
+ * Recording a lookup costs a map lookup and a counter increment; the trace is only written when {@link #save(File)}
+ * is called, e.g. periodically or on shutdown. The file format is versioned: a trace written by a newer, incompatible
+ * version is rejected when read, rather than misread.
+ */
+public class AccessTrace {
+
+    /**
+     * The version of the file format written by this class.
+     */
+    public static final int VERSION = 1;
+    protected static final int MAGIC = 0x4A435254; //"JCRT"
+
+    protected final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    protected final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Records that a class was loaded from a resource.
+     */
+    public void recordLoad(String className, String resourceName, long nanos) {
+        Entry entry = entries.get(className);
+        if(entry == null) {
+            entry = new Entry(className, resourceName, sequence.getAndIncrement());
+            Entry existing = entries.putIfAbsent(className, entry);
+            if(existing != null) {
+                entry = existing;
+            }
+        }
+        entry.loadNanos = nanos;
+        entry.lookups.increment();
+    }
+
+    /**
+     * Records that a class was found in the cache.
+     * @return false if the load of the class wasn't recorded, in which case nothing is recorded.
+     */
+    public boolean recordHit(String className) {
+        Entry entry = entries.get(className);
+        if(entry == null) {
+            return false;
+        }
+        entry.lookups.increment();
+        return true;
+    }
+
+    /**
+     * @return the recorded classes, in the order they were first loaded.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.order - e2.order;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return the recorded classes in the order to load them ahead of time: those whose loads took the longest in
+     * total (i.e. the time to load them times the number of lookups) first, then in the order they were first loaded.
+     */
+    public List<Entry> getWarmUpOrder() {
+        List<Entry> sorted = getEntries();
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Double.compare(e2.getWeight(), e1.getWeight());
+            }
+        });
+        return sorted;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the trace to a file, replacing it atomically, so that a crash while writing leaves the previous trace.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        List<Entry> entries = getEntries();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(entries.size());
+        for(Entry entry : entries) {
+            data.writeUTF(entry.className);
+            data.writeUTF(entry.resourceName);
+            data.writeLong(entry.loadNanos);
+            data.writeLong(entry.getLookups());
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a trace written by {@link #save(File)}.
+     * @throws IOException if the file can't be read, or is not a trace of a version this class can read.
+     */
+    public static AccessTrace load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static AccessTrace read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(data.readInt() != MAGIC) {
+            throw new IOException("Not a class access trace");
+        }
+        int version = data.readInt();
+        if(version > VERSION) {
+            throw new IOException("Unsupported class access trace version: " + version + ", the latest supported is " + VERSION);
+        }
+        AccessTrace trace = new AccessTrace();
+        int count = data.readInt();
+        for(int i = 0; i < count; i++) {
+            Entry entry = new Entry(data.readUTF(), data.readUTF(), i);
+            entry.loadNanos = data.readLong();
+            entry.lookups.add(data.readLong());
+            trace.entries.put(entry.className, entry);
+        }
+        trace.sequence.set(count);
+        return trace;
+    }
+
+    public static class Entry {
+        public final String className;
+        /**
+         * The resource the class was loaded from.
+         */
+        public final String resourceName;
+        /**
+         * The position of the class in the order of the first loads.
+         */
+        public final int order;
+        protected volatile long loadNanos;
+        protected final LongAdder lookups = new LongAdder();
+
+        public Entry(String className, String resourceName, int order) {
+            this.className = className;
+            this.resourceName = resourceName;
+            this.order = order;
+        }
+
+        /**
+         * @return how long the last load of the class took.
+         */
+        public long getLoadNanos() {
+            return loadNanos;
+        }
+
+        /**
+         * @return how many times the class was looked up, including the lookups that loaded it.
+         */
+        public long getLookups() {
+            return lookups.sum();
+        }
+
+        /**
+         * @return the time that loading the class ahead of time is expected to save.
+         */
+        public double getWeight() {
+            return (double) loadNanos * getLookups();
+        }
+
+        @Override
+        public String toString() {
+            return className + " (" + resourceName + "): loaded in " + loadNanos + "ns, looked up " + getLookups() + " times";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link ClassProvider} that can load the classes of several of its resources at once, more efficiently than one
+ * resource at a time (e.g. running the compiler only once).
+ */
+public interface BatchClassProvider extends ClassProvider {
+
+    /**
+     * Loads the classes of the named resources together.
+     * @param resourceNames the names of the resources to load, as returned by {@link Resource#getName()}.
+     * @return the loaded classes, by resource name. Besides the requested resources, the result may contain other
+     * resources that had to be loaded together with them.
+     */
+    Map<String, Class[]> loadClasses(Collection<String> resourceNames, ClassRepository repository) throws ClassNotFoundException;
+
+    /**
+     * @return the group of the given resource. When resources of this provider are reloaded, those of different groups
+     * may be loaded separately (e.g. in parallel), while those of the same group are loaded together. By default, all
+     * the resources form a single group, e.g. because loading some of them separately would compile the others again.
+     */
+    default String getLoadGroup(String resourceName) {
+        return null;
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Finds the classes a class file refers to by reading its constant pool, without loading anything. The result
+ * includes the superclass, the interfaces, the classes whose members are used, the classes named in field and method
+ * descriptors, and nested classes; it does not include the classes that only appear in generic signatures or in
+ * annotations.
+ */
+public class BytecodeScanner {
+
+    protected static final int MAGIC = 0xCAFEBABE;
+
+    protected static final int UTF8 = 1;
+    protected static final int INTEGER = 3;
+    protected static final int FLOAT = 4;
+    protected static final int LONG = 5;
+    protected static final int DOUBLE = 6;
+    protected static final int CLASS = 7;
+    protected static final int STRING = 8;
+    protected static final int FIELD_REF = 9;
+    protected static final int METHOD_REF = 10;
+    protected static final int INTERFACE_METHOD_REF = 11;
+    protected static final int NAME_AND_TYPE = 12;
+    protected static final int METHOD_HANDLE = 15;
+    protected static final int METHOD_TYPE = 16;
+    protected static final int DYNAMIC = 17;
+    protected static final int INVOKE_DYNAMIC = 18;
+    protected static final int MODULE = 19;
+    protected static final int PACKAGE = 20;
+
+    /**
+     * @return the binary names (e.g. a.b.C$D) of the classes referenced by the given class file, excluding itself and
+     * arrays (the classes of their elements are included instead).
+     * @throws IllegalArgumentException if the class file is malformed.
+     */
+    public static Set<String> getReferencedClasses(byte[] code) {
+        try {
+            return scan(new DataInputStream(new ByteArrayInputStream(code)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed class file", e);
+        }
+    }
+
+    /**
+     * Like {@link #getReferencedClasses(byte[])}, reading the class file from the remaining content of a buffer
+     * without modifying its position.
+     */
+    public static Set<String> getReferencedClasses(ByteBuffer code) {
+        final ByteBuffer buffer = code.duplicate();
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(!buffer.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, buffer.remaining());
+                buffer.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.min(n, buffer.remaining());
+                buffer.position(buffer.position() + skipped);
+                return skipped;
+            }
+        };
+        try {
+            return scan(new DataInputStream(in));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed class file", e);
+        }
+    }
+
+    protected static Set<String> scan(DataInputStream in) throws IOException {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); //Minor version
+        in.readUnsignedShort(); //Major version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count]; //By constant index, 0 if the constant is not a class
+        int[] descriptors = new int[count];
+        int descriptorCount = 0;
+        for(int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case UTF8:
+                    utf8[i] = in.readUTF();
+                    break;
+                case CLASS:
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case METHOD_TYPE:
+                    descriptors[descriptorCount++] = in.readUnsignedShort();
+                    break;
+                case NAME_AND_TYPE:
+                    in.readUnsignedShort();
+                    descriptors[descriptorCount++] = in.readUnsignedShort();
+                    break;
+                case STRING: case MODULE: case PACKAGE:
+                    in.readUnsignedShort();
+                    break;
+                case METHOD_HANDLE:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case INTEGER: case FLOAT: case FIELD_REF: case METHOD_REF: case INTERFACE_METHOD_REF: case DYNAMIC: case INVOKE_DYNAMIC:
+                    in.readInt();
+                    break;
+                case LONG: case DOUBLE:
+                    in.readLong();
+                    i++; //Takes two slots
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+        in.readUnsignedShort(); //Access flags
+        int thisClass = in.readUnsignedShort();
+        in.readUnsignedShort(); //Superclass, also a class constant
+        in.skipBytes(2 * in.readUnsignedShort()); //Interfaces, also class constants
+        for(int members = 0; members < 2; members++) { //Fields, then methods
+            int memberCount = in.readUnsignedShort();
+            for(int m = 0; m < memberCount; m++) {
+                in.readUnsignedShort(); //Access flags
+                in.readUnsignedShort(); //Name
+                int descriptor = in.readUnsignedShort();
+                if(descriptorCount == descriptors.length) {
+                    int[] grown = new int[descriptors.length * 2 + 1];
+                    System.arraycopy(descriptors, 0, grown, 0, descriptorCount);
+                    descriptors = grown;
+                }
+                descriptors[descriptorCount++] = descriptor;
+                int attributeCount = in.readUnsignedShort();
+                for(int a = 0; a < attributeCount; a++) {
+                    in.readUnsignedShort();
+                    skipFully(in, in.readInt());
+                }
+            }
+        }
+
+        Set<String> result = new LinkedHashSet<String>();
+        for(int i = 1; i < count; i++) {
+            if(classNames[i] == 0) {
+                continue;
+            }
+            String name = utf8[classNames[i]];
+            if(name.startsWith("[")) {
+                addDescriptorClasses(name, result);
+            } else {
+                result.add(name.replace('/', '.'));
+            }
+        }
+        for(int i = 0; i < descriptorCount; i++) {
+            addDescriptorClasses(utf8[descriptors[i]], result);
+        }
+        result.remove(utf8[classNames[thisClass]].replace('/', '.'));
+        return result;
+    }
+
+    /**
+     * Adds the classes named in a field or method descriptor, e.g. (ILa/B;[La/C;)V.
+     */
+    protected static void addDescriptorClasses(String descriptor, Set<String> result) {
+        int i = descriptor.indexOf('L');
+        while(i >= 0) {
+            int end = descriptor.indexOf(';', i);
+            if(end < 0) {
+                break;
+            }
+            result.add(descriptor.substring(i + 1, end).replace('/', '.'));
+            i = descriptor.indexOf('L', end);
+        }
+    }
+
+    protected static void skipFully(DataInputStream in, int length) throws IOException {
+        while(length > 0) {
+            int skipped = in.skipBytes(length);
+            if(skipped <= 0) {
+                throw new IOException("Unexpected end of class file");
+            }
+            length -= skipped;
+        }
+    }
+}
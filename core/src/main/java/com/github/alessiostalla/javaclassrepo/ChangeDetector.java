@@ -0,0 +1,21 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.io.Closeable;
+
+/**
+ * Watches the resources of class providers and notifies listeners when they change, so that clients don't have to
+ * poll them.
+ */
+public interface ChangeDetector extends Closeable {
+
+    /**
+     * @return true if changes to the resources of the given provider are reported to the listeners as they happen.
+     * If false, clients have to check the provider's resources themselves.
+     */
+    boolean isWatching(ClassProvider provider);
+
+    void addListener(ResourceChangeListener listener);
+
+    void removeListener(ResourceChangeListener listener);
+
+}
@@ -1,104 +1,1632 @@
 package com.github.alessiostalla.javaclassrepo;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClassRepository implements ClassProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(ClassRepository.class);
+    /**
+     * How often, in milliseconds, a thread waiting for a load checks whether it is part of a deadlock.
+     */
+    protected static final long DEADLOCK_CHECK_INTERVAL = 10;
 
-    public final List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
-    public final List<ClassProvider> classProviders = new ArrayList<ClassProvider>();
+    public final List<ClassLoader> classLoaders = new CopyOnWriteArrayList<ClassLoader>();
+    public final List<ClassProvider> classProviders = new CopyOnWriteArrayList<ClassProvider>();
 
-    protected final Map<String, ClassCacheEntry> classCache = new HashMap<String, ClassCacheEntry>();
+    /**
+     * The loaded classes, by name. Unbounded unless a maximum size is set with {@link #withMaximumCacheSize(long)}.
+     */
+    protected volatile ConcurrentMap<String, ClassCacheEntry> classCache = new ConcurrentHashMap<String, ClassCacheEntry>();
+    protected final RemovalListener<String, ClassCacheEntry> evictionListener = new RemovalListener<String, ClassCacheEntry>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, ClassCacheEntry> notification) {
+            //Replacements and explicit removals are handled where they happen
+            if(notification.wasEvicted() && notification.getValue() != null) {
+                evicted(notification.getValue());
+            }
+        }
+    };
+    /**
+     * The cached entries of each resource, i.e. every class defined by a compilation unit (nested and secondary ones
+     * included), in the order they were cached. An entry is indexed before it is put in the cache and unindexed when
+     * it is discarded.
+     */
+    protected final ConcurrentMap<ResourceKey, Set<ClassCacheEntry>> resourceIndex = new ConcurrentHashMap<ResourceKey, Set<ClassCacheEntry>>();
+    /**
+     * The cached entries by package name, maintained together with the resource index.
+     */
+    protected final ConcurrentMap<String, Set<ClassCacheEntry>> packageIndex = new ConcurrentHashMap<String, Set<ClassCacheEntry>>();
+    /**
+     * The classes removed from the cache, weakly referenced, until the garbage collector clears them because they
+     * have been unloaded.
+     */
+    protected final Set<Reference<Class>> removedClasses = Collections.newSetFromMap(new ConcurrentHashMap<Reference<Class>, Boolean>());
+    protected final ReferenceQueue<Class> unloadedClasses = new ReferenceQueue<Class>();
+    protected final AtomicLong removedClassCount = new AtomicLong();
+    protected final AtomicLong unloadedClassCount = new AtomicLong();
+    /**
+     * Loads in progress, by class name. Only one thread at a time loads a given class; the others wait for its
+     * result (single-flight).
+     */
+    protected final ConcurrentMap<String, PendingLoad> pendingLoads = new ConcurrentHashMap<String, PendingLoad>();
+    /**
+     * The pending load each thread is currently waiting for, used to detect wait cycles between threads.
+     */
+    protected final ConcurrentMap<Thread, PendingLoad> awaitedLoads = new ConcurrentHashMap<Thread, PendingLoad>();
+    /**
+     * The innermost load performed by the current thread, if any.
+     */
+    protected final ThreadLocal<PendingLoad> currentLoad = new ThreadLocal<PendingLoad>();
+    /**
+     * Lookups started by {@link #getClassAsync(String)} that have not completed yet, by class name.
+     */
+    protected final ConcurrentMap<String, CompletableFuture<Class>> asyncLoads = new ConcurrentHashMap<String, CompletableFuture<Class>>();
+    protected volatile Executor compileExecutor;
+    protected volatile boolean backgroundReload;
+    /**
+     * Entries found to need a reload, waiting for the background reload to pick them up.
+     */
+    protected final Set<ClassCacheEntry> backgroundReloadRequests = Collections.newSetFromMap(new ConcurrentHashMap<ClassCacheEntry, Boolean>());
+    protected final AtomicBoolean backgroundReloadScheduled = new AtomicBoolean();
+    /**
+     * The classes compiled by the reload running in the current thread, that will be put in the cache once all of
+     * them are compiled. Lookups made by the reload (e.g. by the compiler) see them instead of the cached versions.
+     */
+    protected final ThreadLocal<Map<String, Class>> stagedClasses = new ThreadLocal<Map<String, Class>>();
+    protected final AtomicInteger stagingThreads = new AtomicInteger();
+    /**
+     * When each resource was last reported as changed by the change detector.
+     */
+    protected final ConcurrentMap<ResourceKey, Long> resourceChanges = new ConcurrentHashMap<ResourceKey, Long>();
+    protected final ResourceChangeListener changeListener = new ResourceChangeListener() {
+        @Override
+        public void resourceChanged(ClassProvider provider, String resourceName, ChangeType type) {
+            ClassRepository.this.resourceChanged(provider, resourceName, type);
+        }
+    };
+    protected volatile ChangeDetector changeDetector;
+    protected volatile long pollInterval;
+    /**
+     * Classes that no class loader or provider could supply, with the time they were looked up. Null if negative
+     * caching is disabled.
+     */
+    protected volatile Cache<String, Long> missingClasses;
+    /**
+     * Counts changes that might make missing classes appear, so that a lookup can tell whether it raced with one.
+     */
+    protected final AtomicLong providerChanges = new AtomicLong();
+    protected volatile ProviderIndex providerIndex;
+    protected volatile ResourceCache resourceCache;
+    protected volatile RepositoryListener listener;
+    protected volatile AccessTrace accessTrace;
+    /**
+     * Supplies the classes of the parent repository, or null if there is none.
+     */
+    protected volatile ParentClassProvider parent;
+    /**
+     * The repositories that have this one as their parent. Weakly referenced, so that the children no one uses any
+     * more can be garbage collected.
+     */
+    protected final Set<ClassRepository> children = Collections.newSetFromMap(
+            CacheBuilder.newBuilder().weakKeys().<ClassRepository, Boolean>build().asMap());
+    /**
+     * The classes referenced by the bytecode of each defined class, until the class is cached.
+     */
+    protected final Cache<Class, Set<String>> definedReferences = CacheBuilder.newBuilder().weakKeys().build();
+    /**
+     * For each class that is referenced by cached classes but is not in the cache, the names of those classes, so
+     * that they can be made dependent on it when it is loaded.
+     */
+    protected final ConcurrentMap<String, Set<String>> unresolvedReferences = new ConcurrentHashMap<String, Set<String>>();
+
+    public ClassRepository() {
+        this(true);
+    }
+
+    public ClassRepository(boolean includeDefaultClassLoaders) {
+        if(includeDefaultClassLoaders) {
+            classLoaders.add(getClass().getClassLoader());
+        }
+    }
+
+    public Class getClass(String className) throws ClassNotFoundException {
+        RepositoryListener listener = this.listener;
+        AccessTrace trace = this.accessTrace;
+        if (listener == null && trace == null) {
+            return getClass(className, null);
+        }
+        long start = System.nanoTime();
+        RepositoryListener.LookupOutcome[] outcome = { RepositoryListener.LookupOutcome.NOT_FOUND };
+        try {
+            return getClass(className, outcome);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (listener != null) {
+                listener.classLookedUp(className, outcome[0], nanos);
+            }
+            if (trace != null) {
+                trace(trace, className, outcome[0], nanos);
+            }
+        }
+    }
+
+    protected void trace(AccessTrace trace, String className, RepositoryListener.LookupOutcome outcome, long nanos) {
+        if (outcome == RepositoryListener.LookupOutcome.CACHE_HIT && trace.recordHit(className)) {
+            return;
+        }
+        if (outcome == RepositoryListener.LookupOutcome.CACHE_HIT || outcome == RepositoryListener.LookupOutcome.LOADED) {
+            ClassCacheEntry entry = classCache.get(className);
+            if (entry != null && entry.resourceName != null && !(entry.provider instanceof ParentClassProvider)) {
+                //A class first found in the cache was loaded along with another one, at no cost of its own
+                trace.recordLoad(className, entry.resourceName, outcome == RepositoryListener.LookupOutcome.LOADED ? nanos : 0);
+            }
+        }
+    }
+
+    /**
+     * @param outcome if not null, receives the outcome of the lookup in its only element.
+     */
+    protected Class getClass(String className, RepositoryListener.LookupOutcome[] outcome) throws ClassNotFoundException {
+        if (isKnownMissing(className)) {
+            throw new ClassNotFoundException(className);
+        }
+        Class fromClassLoaders = findInClassLoaders(className);
+        if (fromClassLoaders != null) {
+            if (outcome != null) {
+                outcome[0] = RepositoryListener.LookupOutcome.CLASS_LOADER;
+            }
+            return fromClassLoaders;
+        }
+        if (stagingThreads.get() > 0) {
+            Map<String, Class> staged = stagedClasses.get();
+            Class stagedClass = staged != null ? staged.get(className) : null;
+            if (stagedClass != null) {
+                if (outcome != null) {
+                    outcome[0] = RepositoryListener.LookupOutcome.LOADED;
+                }
+                return stagedClass;
+            }
+        }
+        long timestamp = System.currentTimeMillis();
+        ClassCacheEntry classCacheEntry = classCache.get(className);
+        RepositoryListener.LookupOutcome found;
+        if (classCacheEntry == null) {
+            classCacheEntry = loadOnce(className, timestamp);
+            found = RepositoryListener.LookupOutcome.LOADED;
+        } else {
+            if (backgroundReload) {
+                requestReloadIfNeeded(classCacheEntry);
+            } else {
+                classCacheEntry = reloadIfNeeded(classCacheEntry, timestamp);
+            }
+            found = RepositoryListener.LookupOutcome.CACHE_HIT;
+        }
+        if (classCacheEntry != null) {
+            if (outcome != null) {
+                outcome[0] = found;
+            }
+            return classCacheEntry.getLoadedClass();
+        } else {
+            throw new ClassNotFoundException(className);
+        }
+    }
+
+    /**
+     * Looks up a class without blocking the calling thread on compilations. A class that is cached and up to date (or
+     * that is being reloaded in the background, see {@link #withBackgroundReload(boolean)}) is returned in an already
+     * completed future; any other lookup runs on the compile executor (see
+     * {@link #withCompileExecutor(Executor)}). Concurrent requests for the same class share the same future.
+     * @return a future completed with the class, or exceptionally (e.g. with a {@link ClassNotFoundException}).
+     */
+    public CompletableFuture<Class> getClassAsync(final String className) {
+        ClassCacheEntry classCacheEntry = classCache.get(className);
+        if(classCacheEntry != null && classCacheEntry.loadedClass != null) {
+            RepositoryListener listener = this.listener;
+            long start = listener != null ? System.nanoTime() : 0;
+            boolean upToDate = true;
+            if(backgroundReload) {
+                requestReloadIfNeeded(classCacheEntry);
+            } else {
+                upToDate = classCacheEntry.computeReload().isEmpty();
+            }
+            if(upToDate) {
+                if(listener != null) {
+                    listener.classLookedUp(className, RepositoryListener.LookupOutcome.CACHE_HIT, System.nanoTime() - start);
+                }
+                return CompletableFuture.completedFuture(classCacheEntry.loadedClass);
+            }
+        }
+        CompletableFuture<Class> future = asyncLoads.get(className);
+        if(future != null) {
+            return future;
+        }
+        final CompletableFuture<Class> newFuture = new CompletableFuture<Class>();
+        future = asyncLoads.putIfAbsent(className, newFuture);
+        if(future != null) {
+            return future;
+        }
+        try {
+            getCompileExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        newFuture.complete(ClassRepository.this.getClass(className));
+                    } catch (Throwable t) {
+                        newFuture.completeExceptionally(t);
+                    } finally {
+                        asyncLoads.remove(className, newFuture);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            asyncLoads.remove(className, newFuture);
+            newFuture.completeExceptionally(e);
+        }
+        return newFuture;
+    }
+
+    /**
+     * Sets the executor that {@link #getClassAsync(String)} compiles and defines classes on. Any executor will do,
+     * including one that starts a virtual thread per task on JDKs that have them: waiting for a class being loaded by
+     * another thread does not hold any monitor.
+     */
+    public ClassRepository withCompileExecutor(Executor compileExecutor) {
+        this.compileExecutor = compileExecutor;
+        return this;
+    }
+
+    /**
+     * @return the executor set with {@link #withCompileExecutor(Executor)}, or else a default one, created when first
+     * needed, with one daemon thread per processor.
+     */
+    public Executor getCompileExecutor() {
+        Executor executor = compileExecutor;
+        if(executor == null) {
+            synchronized (this) {
+                if(compileExecutor == null) {
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("class-repository-compiler-%d").build());
+                    pool.allowCoreThreadTimeOut(true);
+                    compileExecutor = pool;
+                }
+                executor = compileExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Moves reloading out of the lookups. Changed classes are recompiled on the compile executor (see
+     * {@link #withCompileExecutor(Executor)}) as soon as the change is detected, by the change detector or by a lookup,
+     * while lookups keep returning the current version. Once every affected class has been recompiled, the new
+     * versions replace the old ones in the cache together. If anything fails, the current versions stay in place, the
+     * failure is logged and reported to the listener, and the reload is attempted again when the changed resources
+     * change again.
+     */
+    public ClassRepository withBackgroundReload(boolean backgroundReload) {
+        this.backgroundReload = backgroundReload;
+        return this;
+    }
+
+    public boolean isBackgroundReload() {
+        return backgroundReload;
+    }
+
+    /**
+     * Requests a background reload of the given entry if it, or one of its dependencies, has changed, unless the last
+     * reload of the changed ones failed and they haven't changed since.
+     */
+    protected void requestReloadIfNeeded(ClassCacheEntry classCacheEntry) {
+        for(ClassCacheEntry entry : classCacheEntry.computeReload()) {
+            if(entry.isChanged() && entry.canRetryReload()) {
+                requestReload(classCacheEntry);
+                return;
+            }
+        }
+    }
+
+    protected void requestReload(ClassCacheEntry classCacheEntry) {
+        if(backgroundReloadRequests.add(classCacheEntry)) {
+            scheduleBackgroundReload();
+        }
+    }
+
+    protected void scheduleBackgroundReload() {
+        if(backgroundReloadScheduled.compareAndSet(false, true)) {
+            try {
+                getCompileExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runBackgroundReloads();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                backgroundReloadScheduled.set(false);
+                logger.error("Could not start a background reload", e);
+            }
+        }
+    }
+
+    protected void runBackgroundReloads() {
+        try {
+            while(!backgroundReloadRequests.isEmpty()) {
+                List<ClassCacheEntry> requested = new ArrayList<ClassCacheEntry>(backgroundReloadRequests);
+                backgroundReloadRequests.removeAll(requested);
+                reloadInBackground(requested);
+            }
+        } finally {
+            backgroundReloadScheduled.set(false);
+        }
+        //A request might have been added after the last check
+        if(!backgroundReloadRequests.isEmpty()) {
+            scheduleBackgroundReload();
+        }
+    }
+
+    /**
+     * Reloads the entries that need it among the given ones, their dependencies and their dependents.
+     */
+    protected void reloadInBackground(Collection<ClassCacheEntry> requested) {
+        long timestamp = System.currentTimeMillis();
+        List<ClassCacheEntry> claimed = new ArrayList<ClassCacheEntry>();
+        for(ClassCacheEntry entry : computeReload(requested)) {
+            if(classCache.get(entry.className) == entry && entry.claimReload()) {
+                claimed.add(entry);
+            }
+        }
+        if(claimed.isEmpty()) {
+            return;
+        }
+        List<String> classNames = new ArrayList<String>(claimed.size());
+        for(ClassCacheEntry entry : claimed) {
+            classNames.add(entry.className);
+        }
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            reload(claimed, timestamp);
+        } catch (ClassNotFoundException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (LinkageError e) {
+            failure = e;
+        }
+        RepositoryListener listener = this.listener;
+        if(failure == null) {
+            logger.debug("Reloaded " + classNames + " in the background");
+            if(listener != null) {
+                listener.classesReloaded(classNames, System.nanoTime() - start);
+            }
+            return;
+        }
+        for(ClassCacheEntry entry : claimed) {
+            if(entry.isChanged()) {
+                entry.reloadFailed(timestamp);
+            }
+            entry.releaseReload();
+        }
+        logger.error("Could not reload " + classNames + ", keeping their current version", failure);
+        if(listener != null) {
+            listener.reloadFailed(classNames, failure);
+        }
+    }
+
+    /**
+     * Looks up a class in the repository's class loaders, without consulting the class providers. The class loaders
+     * of the parent repository are not consulted: the parent only gets the classes that the providers don't have.
+     * @return the class, or null if none of the class loaders can load it.
+     */
+    public Class findInClassLoaders(String className) {
+        for (ClassLoader classLoader : classLoaders) {
+            try {
+                return classLoader.loadClass(className);
+            } catch (ClassNotFoundException e) {
+                logger.debug("Class " + className + " not found in classloader " + classLoader, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads a class that is not in the cache, making sure that concurrent requests for the same class only load it
+     * once: the first thread performs the load, the others wait for its outcome.
+     */
+    protected ClassCacheEntry loadOnce(String className, long timestamp) throws ClassNotFoundException {
+        PendingLoad load = new PendingLoad(className);
+        PendingLoad existing = pendingLoads.putIfAbsent(className, load);
+        if (existing != null) {
+            return awaitLoad(existing, timestamp);
+        }
+        PendingLoad outerLoad = currentLoad.get();
+        currentLoad.set(load);
+        try {
+            //Another thread might have completed the load between our cache miss and putIfAbsent
+            ClassCacheEntry classCacheEntry = classCache.get(className);
+            if (classCacheEntry == null) {
+                classCacheEntry = findEntry(className, loadClasses(className, timestamp));
+            }
+            if (load.complete(classCacheEntry, null)) {
+                return classCacheEntry;
+            }
+        } catch (ClassNotFoundException e) {
+            if (load.complete(null, e)) {
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            if (load.complete(null, e)) {
+                throw e;
+            }
+        } catch (Error e) {
+            if (load.complete(null, e)) {
+                throw e;
+            }
+        } finally {
+            currentLoad.set(outerLoad);
+            if (load.isDone()) {
+                pendingLoads.remove(className, load);
+            }
+        }
+        //Another thread took over the load to break a deadlock; its outcome is the one that counts
+        return awaitLoad(load, timestamp);
+    }
+
+    /**
+     * Waits for a load owned by another thread. A reentrant request for a class that the current thread is loading
+     * is served by loading the class again in the current thread. When threads wait for each other in a cycle, the
+     * one with the lowest id takes over the load it is waiting for, and the thread that started that load gives up
+     * on it.
+     */
+    protected ClassCacheEntry awaitLoad(PendingLoad load, long timestamp) throws ClassNotFoundException {
+        Thread current = Thread.currentThread();
+        if (load.getOwner() == current) {
+            logger.debug("Reentrant request for " + load.className + ", loading it again in the current thread");
+            return findEntry(load.className, loadClasses(load.className, timestamp));
+        }
+        //Register before checking, so that two threads about to wait for each other see each other
+        awaitedLoads.put(current, load);
+        try {
+            while (true) {
+                boolean done = load.await(DEADLOCK_CHECK_INTERVAL);
+                //If our own load was taken over, whatever we would do with the result would be discarded
+                PendingLoad ownLoad = currentLoad.get();
+                if (ownLoad != null && ownLoad.getOwner() != current) {
+                    throw new ClassNotFoundException(
+                            ownLoad.className + " is being loaded by " + ownLoad.getOwner() + " to break a deadlock");
+                }
+                if (done) {
+                    break;
+                }
+                if (isDeadlockBreaker(findDeadlock(load)) && load.takeOver()) {
+                    logger.debug("Waiting for " + load.className + " would deadlock, taking over its load");
+                    awaitedLoads.remove(current);
+                    return loadInsteadOfOwner(load, timestamp);
+                }
+            }
+        } finally {
+            awaitedLoads.remove(current);
+        }
+        return load.get();
+    }
+
+    /**
+     * Completes a load that the current thread has taken over from another one.
+     */
+    protected ClassCacheEntry loadInsteadOfOwner(PendingLoad load, long timestamp) throws ClassNotFoundException {
+        PendingLoad outerLoad = currentLoad.get();
+        currentLoad.set(load);
+        try {
+            ClassCacheEntry classCacheEntry = classCache.get(load.className);
+            if (classCacheEntry == null) {
+                classCacheEntry = findEntry(load.className, loadClasses(load.className, timestamp));
+            }
+            load.complete(classCacheEntry, null);
+            return classCacheEntry;
+        } catch (ClassNotFoundException e) {
+            load.complete(null, e);
+            throw e;
+        } catch (RuntimeException e) {
+            load.complete(null, e);
+            throw e;
+        } catch (Error e) {
+            load.complete(null, e);
+            throw e;
+        } finally {
+            currentLoad.set(outerLoad);
+            pendingLoads.remove(load.className, load);
+        }
+    }
+
+    /**
+     * @return the cached entry of the given class or, if a bounded cache has already evicted it, the one among the
+     * given newly loaded entries.
+     */
+    protected ClassCacheEntry findEntry(String className, Collection<ClassCacheEntry> loaded) {
+        ClassCacheEntry entry = classCache.get(className);
+        if(entry == null) {
+            for(ClassCacheEntry e : loaded) {
+                if(e.className.equals(className)) {
+                    return e;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Finds the threads that would wait for each other in a cycle if the current thread waited for the given load.
+     * @return the threads in the cycle, including the current one, or an empty set if there is no cycle.
+     */
+    protected Set<Thread> findDeadlock(PendingLoad load) {
+        Thread current = Thread.currentThread();
+        Set<Thread> threads = new LinkedHashSet<Thread>();
+        threads.add(current);
+        while (load != null) {
+            Thread owner = load.getOwner();
+            if (owner == current) {
+                return threads;
+            }
+            if (!threads.add(owner)) {
+                break;
+            }
+            load = awaitedLoads.get(owner);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return whether the current thread is the one that breaks the given wait cycle, i.e. the one with the lowest
+     * id, so that exactly one of the threads in the cycle loads a class instead of waiting for it.
+     */
+    protected boolean isDeadlockBreaker(Set<Thread> deadlock) {
+        if (deadlock.isEmpty()) {
+            return false;
+        }
+        long id = Thread.currentThread().getId();
+        for (Thread thread : deadlock) {
+            if (thread.getId() < id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the entries to reload before the given ones can be used: those that have changed among them and their
+     * transitive dependencies, and everything that transitively depends on them.
+     * @return the entries to reload, dependencies before their dependents (except within cycles), or an empty set
+     * if the given entries are up to date.
+     */
+    protected LinkedHashSet<ClassCacheEntry> computeReload(Collection<ClassCacheEntry> roots) {
+        Set<ClassCacheEntry> visited = new HashSet<ClassCacheEntry>();
+        Deque<ClassCacheEntry> toVisit = new ArrayDeque<ClassCacheEntry>();
+        LinkedHashSet<ClassCacheEntry> stale = new LinkedHashSet<ClassCacheEntry>();
+        toVisit.addAll(roots);
+        while(!toVisit.isEmpty()) {
+            ClassCacheEntry entry = toVisit.pop();
+            if(visited.add(entry)) {
+                if(entry.isChanged()) {
+                    stale.add(entry);
+                }
+                for(ClassCacheEntry dependency : entry.dependencies) {
+                    toVisit.push(dependency);
+                }
+            }
+        }
+        if(stale.isEmpty()) {
+            return stale;
+        }
+        toVisit.addAll(stale);
+        while(!toVisit.isEmpty()) {
+            for(ClassCacheEntry dependent : toVisit.poll().dependents) {
+                if(stale.add(dependent)) {
+                    toVisit.add(dependent);
+                }
+            }
+        }
+        //Dependencies first, so that reloaded classes link to the new version of the classes they use
+        LinkedHashSet<ClassCacheEntry> reload = new LinkedHashSet<ClassCacheEntry>();
+        visited.clear();
+        for(ClassCacheEntry entry : stale) {
+            addInDependencyOrder(entry, stale, visited, reload);
+        }
+        return reload;
+    }
+
+    protected void addInDependencyOrder(ClassCacheEntry root, Set<ClassCacheEntry> stale, Set<ClassCacheEntry> visited, LinkedHashSet<ClassCacheEntry> reload) {
+        if(!visited.add(root)) {
+            return;
+        }
+        Deque<ClassCacheEntry> path = new ArrayDeque<ClassCacheEntry>();
+        Deque<Iterator<ClassCacheEntry>> pending = new ArrayDeque<Iterator<ClassCacheEntry>>();
+        path.push(root);
+        pending.push(root.dependencies.iterator());
+        while(!path.isEmpty()) {
+            Iterator<ClassCacheEntry> dependencies = pending.peek();
+            if(dependencies.hasNext()) {
+                ClassCacheEntry dependency = dependencies.next();
+                if(stale.contains(dependency) && visited.add(dependency)) {
+                    path.push(dependency);
+                    pending.push(dependency.dependencies.iterator());
+                }
+            } else {
+                pending.pop();
+                reload.add(path.pop());
+            }
+        }
+    }
+
+    /**
+     * Reloads the given entry and whatever depends on it if any of them has changed. Each stale entry is reloaded by
+     * a single thread; threads that find it already being reloaded get the current entry.
+     */
+    protected ClassCacheEntry reloadIfNeeded(ClassCacheEntry classCacheEntry, long timestamp) throws ClassNotFoundException {
+        LinkedHashSet<ClassCacheEntry> toReload = classCacheEntry.computeReload();
+        if(toReload.isEmpty()) {
+            return classCacheEntry;
+        }
+        List<ClassCacheEntry> claimed = new ArrayList<ClassCacheEntry>(toReload.size());
+        for(ClassCacheEntry entry : toReload) {
+            //Skip entries that have already been replaced, e.g. by a batch that included their resource
+            if(classCache.get(entry.className) == entry && entry.claimReload()) {
+                claimed.add(entry);
+            }
+        }
+        RepositoryListener listener = this.listener;
+        long start = listener != null ? System.nanoTime() : 0;
+        boolean reloaded = false;
+        Collection<ClassCacheEntry> newEntries;
+        try {
+            newEntries = reload(claimed, timestamp);
+            reloaded = true;
+        } finally {
+            if(!reloaded) {
+                for(ClassCacheEntry entry : claimed) {
+                    entry.releaseReload();
+                }
+            }
+        }
+        if(listener != null && !claimed.isEmpty()) {
+            List<String> classNames = new ArrayList<String>(claimed.size());
+            for(ClassCacheEntry entry : claimed) {
+                classNames.add(entry.className);
+            }
+            listener.classesReloaded(classNames, System.nanoTime() - start);
+        }
+        ClassCacheEntry current = findEntry(classCacheEntry.className, newEntries);
+        return current != null ? current : classCacheEntry;
+    }
+
+    /**
+     * @return the plan of the reload that looking up the given class would cause, which is empty if the class is up to
+     * date or not in the cache.
+     */
+    public ReloadPlan planReload(String className) {
+        ClassCacheEntry classCacheEntry = classCache.get(className);
+        if(classCacheEntry == null) {
+            return ReloadPlan.create(Collections.<ClassCacheEntry>emptyList());
+        }
+        return ReloadPlan.create(classCacheEntry.computeReload());
+    }
+
+    /**
+     * Reloads the given entries following a {@link ReloadPlan}. Entries sharing a resource cause it to be loaded only
+     * once, and entries of the same component coming from the same {@link BatchClassProvider} are reloaded together in
+     * a single call. Every class cached from a reloaded resource is replaced, or removed if the resource no longer
+     * defines it.
+     *
+     * The components of a level are loaded in parallel on the compile executor (see
+     * {@link #withCompileExecutor(Executor)}), with the calling thread taking part, once the previous levels are loaded.
+     * Nothing is replaced until every component has been loaded, so if one fails the cache is left as it was. In the
+     * meantime, lookups made by the threads loading the components see the classes loaded so far. Then the new
+     * classes replace the old ones a component at a time, in dependency order.
+     * @return the new entries.
+     */
+    protected Collection<ClassCacheEntry> reload(List<ClassCacheEntry> entries, long timestamp) throws ClassNotFoundException {
+        ReloadPlan plan = ReloadPlan.create(entries);
+        if(logger.isDebugEnabled()) {
+            logger.debug(plan.toString());
+        }
+        RepositoryListener listener = this.listener;
+        if(listener != null) {
+            listener.reloadPlanned(plan);
+        }
+        Map<String, Class> outer = stagedClasses.get();
+        Map<String, Class> stagedByName = outer != null ? outer : new ConcurrentHashMap<String, Class>();
+        List<List<StagedResource>> staged = new ArrayList<List<StagedResource>>(Collections.<List<StagedResource>>nCopies(plan.getComponents().size(), null));
+        for(List<ReloadPlan.Component> level : plan.getLevels()) {
+            stageLevel(level, staged, stagedByName);
+        }
+        List<ClassCacheEntry> newEntries = new ArrayList<ClassCacheEntry>(entries.size());
+        for(List<StagedResource> component : staged) {
+            for(StagedResource resource : component) {
+                if(resource.oldEntries != null) {
+                    newEntries.addAll(replaceEntries(resource.oldEntries, resource.provider, resource.resourceName, resource.classes, timestamp));
+                } else {
+                    newEntries.addAll(cacheClasses(resource.provider.getResource(resource.resourceName), resource.classes, timestamp));
+                }
+            }
+        }
+        return newEntries;
+    }
+
+    /**
+     * Loads the components of a level of a reload plan, in parallel if there's more than one. Tasks that the compile
+     * executor hasn't started yet when the calling thread is done with its own are run by the calling thread, so that
+     * a reload running on the executor itself doesn't wait for a free thread that may never come.
+     * @param staged receives the classes loaded for each component, at its index in the plan.
+     */
+    protected void stageLevel(List<ReloadPlan.Component> level, List<List<StagedResource>> staged, Map<String, Class> stagedByName) throws ClassNotFoundException {
+        List<FutureTask<List<StagedResource>>> tasks = new ArrayList<FutureTask<List<StagedResource>>>(level.size());
+        for(ReloadPlan.Component component : level) {
+            tasks.add(new FutureTask<List<StagedResource>>(new StageTask(component, stagedByName)));
+        }
+        if(tasks.size() > 1) {
+            Executor executor = getCompileExecutor();
+            for(FutureTask<List<StagedResource>> task : tasks.subList(1, tasks.size())) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Compile executor saturated, the calling thread will load the component itself", e);
+                }
+            }
+        }
+        Throwable failure = null;
+        for(int i = 0; i < tasks.size(); i++) {
+            FutureTask<List<StagedResource>> task = tasks.get(i);
+            task.run(); //Does nothing if it has already started
+            try {
+                staged.set(level.get(i).getIndex(), task.get());
+            } catch (ExecutionException e) {
+                if(failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClassNotFoundException("Interrupted while reloading " + level.get(i).getClassNames(), e);
+            }
+        }
+        if(failure instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) failure;
+        } else if(failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if(failure instanceof Error) {
+            throw (Error) failure;
+        } else if(failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    protected void stage(List<ClassCacheEntry> entries, List<StagedResource> staged, Map<String, Class> stagedByName) throws ClassNotFoundException {
+        int i = 0;
+        while(i < entries.size()) {
+            ClassProvider provider = entries.get(i).provider;
+            Map<String, List<ClassCacheEntry>> byResource = new LinkedHashMap<String, List<ClassCacheEntry>>();
+            for(; i < entries.size() && entries.get(i).provider == provider; i++) {
+                ClassCacheEntry entry = entries.get(i);
+                List<ClassCacheEntry> resourceEntries = byResource.get(entry.resourceName);
+                if(resourceEntries == null) {
+                    resourceEntries = new ArrayList<ClassCacheEntry>();
+                    byResource.put(entry.resourceName, resourceEntries);
+                }
+                resourceEntries.add(entry);
+            }
+            for(ClassCacheEntry entry : getCachedEntries(provider, byResource.keySet())) {
+                List<ClassCacheEntry> resourceEntries = byResource.get(entry.resourceName);
+                if(!resourceEntries.contains(entry)) {
+                    resourceEntries.add(entry);
+                }
+            }
+            if(provider instanceof BatchClassProvider && byResource.size() > 1) {
+                Map<String, Class[]> loaded = ((BatchClassProvider) provider).loadClasses(byResource.keySet(), this);
+                for(Map.Entry<String, Class[]> e : loaded.entrySet()) {
+                    staged.add(new StagedResource(provider, e.getKey(), byResource.get(e.getKey()), e.getValue(), stagedByName));
+                }
+            } else {
+                for(Map.Entry<String, List<ClassCacheEntry>> e : byResource.entrySet()) {
+                    Class[] newClasses = provider.getResource(e.getKey()).loadClasses(this);
+                    staged.add(new StagedResource(provider, e.getKey(), e.getValue(), newClasses, stagedByName));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached entries of the classes loaded from the given resources of a provider.
+     */
+    protected List<ClassCacheEntry> getCachedEntries(ClassProvider provider, Set<String> resourceNames) {
+        List<ClassCacheEntry> entries = new ArrayList<ClassCacheEntry>();
+        for(String resourceName : resourceNames) {
+            Set<ClassCacheEntry> unit = resourceIndex.get(new ResourceKey(provider, resourceName));
+            if(unit != null) {
+                entries.addAll(unit);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the cached entries of the classes in the given package (not in its subpackages).
+     */
+    public Collection<ClassCacheEntry> getCachedEntries(String packageName) {
+        Set<ClassCacheEntry> entries = packageIndex.get(packageName);
+        return entries != null ? Collections.unmodifiableSet(entries) : Collections.<ClassCacheEntry>emptySet();
+    }
+
+    /**
+     * @return the names of the packages that have classes in the cache.
+     */
+    public Set<String> getCachedPackages() {
+        return Collections.unmodifiableSet(packageIndex.keySet());
+    }
+
+    protected void indexEntry(ClassCacheEntry entry) {
+        addToIndex(resourceIndex, new ResourceKey(entry.provider, entry.resourceName), entry, true);
+        addToIndex(packageIndex, getPackageName(entry.className), entry, false);
+    }
+
+    protected void unindexEntry(ClassCacheEntry entry) {
+        removeFromIndex(resourceIndex, new ResourceKey(entry.provider, entry.resourceName), entry);
+        removeFromIndex(packageIndex, getPackageName(entry.className), entry);
+    }
+
+    /**
+     * @param ordered whether to keep the entries under the key in the order they are added, which is only affordable
+     *                for small sets of entries.
+     */
+    protected static <K> void addToIndex(ConcurrentMap<K, Set<ClassCacheEntry>> index, K key, ClassCacheEntry entry, boolean ordered) {
+        while(true) {
+            Set<ClassCacheEntry> entries = index.get(key);
+            if(entries == null) {
+                entries = ordered ? new CopyOnWriteArraySet<ClassCacheEntry>() : Collections.newSetFromMap(new ConcurrentHashMap<ClassCacheEntry, Boolean>());
+                Set<ClassCacheEntry> existing = index.putIfAbsent(key, entries);
+                if(existing != null) {
+                    entries = existing;
+                }
+            }
+            synchronized (entries) {
+                //Retry if the set was removed from the index, because it became empty, before we could add to it
+                if(index.get(key) == entries) {
+                    entries.add(entry);
+                    return;
+                }
+            }
+        }
+    }
+
+    protected static <K> void removeFromIndex(ConcurrentMap<K, Set<ClassCacheEntry>> index, K key, ClassCacheEntry entry) {
+        Set<ClassCacheEntry> entries = index.get(key);
+        if(entries != null) {
+            synchronized (entries) {
+                if(entries.remove(entry) && entries.isEmpty()) {
+                    index.remove(key, entries);
+                }
+            }
+        }
+    }
+
+    protected static String getPackageName(String className) {
+        int dot = className.lastIndexOf('.');
+        return dot >= 0 ? className.substring(0, dot) : "";
+    }
+
+    protected Collection<ClassCacheEntry> replaceEntries(Collection<ClassCacheEntry> oldEntries, ClassProvider provider, String resourceName, Class[] newClasses, long timestamp) {
+        List<ClassCacheEntry> newEntries = new ArrayList<ClassCacheEntry>(newClasses.length);
+        List<ClassCacheEntry> replacedEntries = new ArrayList<ClassCacheEntry>(newClasses.length);
+        for(Class newClass : newClasses) {
+            ClassCacheEntry newEntry = new ClassCacheEntry(provider, resourceName, newClass.getName(), newClass, timestamp);
+            indexEntry(newEntry);
+            replacedEntries.add(classCache.put(newClass.getName(), newEntry));
+            checkChangedWhileLoading(newEntry);
+            newEntries.add(newEntry);
+        }
+        //Replace rather than remove-then-put, so concurrent readers never see the class missing
+        for(ClassCacheEntry oldEntry : oldEntries) {
+            if(classCache.remove(oldEntry.className, oldEntry)) {
+                discard(oldEntry);
+            }
+        }
+        for(int i = 0; i < newEntries.size(); i++) {
+            linkDependencies(newEntries.get(i), replacedEntries.get(i));
+        }
+        return newEntries;
+    }
+
+    /**
+     * Puts classes loaded from a resource in the cache. Batch-capable providers use this to register the classes
+     * they compiled along with the requested one.
+     */
+    public Collection<ClassCacheEntry> cacheClasses(Resource resource, Class[] classes, long timestamp) {
+        PendingLoad load = currentLoad.get();
+        if(load != null && !load.commit()) {
+            logger.debug("Not caching the classes of " + resource + ": another thread took over the load of " + load.className);
+            return Collections.emptyList();
+        }
+        List<ClassCacheEntry> entries = new ArrayList<ClassCacheEntry>(classes.length);
+        List<ClassCacheEntry> replacedEntries = new ArrayList<ClassCacheEntry>(classes.length);
+        for(Class theClass : classes) {
+            ClassCacheEntry entry = new ClassCacheEntry(resource, theClass.getName(), theClass, timestamp);
+            entries.add(entry);
+            indexEntry(entry);
+            replacedEntries.add(classCache.put(theClass.getName(), entry));
+            checkChangedWhileLoading(entry);
+        }
+        for(int i = 0; i < entries.size(); i++) {
+            linkDependencies(entries.get(i), replacedEntries.get(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Records the classes referenced by the bytecode of a class that is about to be cached, so that the cache entry
+     * of the class depends on the cached entries of those classes. Providers call this for each class they define;
+     * classes defined by {@link ClassLoaderFacade} are scanned automatically.
+     */
+    public void recordReferences(Class definedClass, byte[] code) {
+        try {
+            recordReferences(definedClass, BytecodeScanner.getReferencedClasses(code));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Could not find the dependencies of " + definedClass.getName(), e);
+        }
+    }
+
+    /**
+     * Like {@link #recordReferences(Class, byte[])}, reading the remaining content of the buffer.
+     */
+    public void recordReferences(Class definedClass, ByteBuffer code) {
+        try {
+            recordReferences(definedClass, BytecodeScanner.getReferencedClasses(code));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Could not find the dependencies of " + definedClass.getName(), e);
+        }
+    }
+
+    /**
+     * Records classes referenced by a class that is about to be cached, in addition to those already recorded.
+     */
+    public void recordReferences(Class definedClass, Collection<String> classNames) {
+        Set<String> references = definedReferences.getIfPresent(definedClass);
+        if(references == null) {
+            references = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = definedReferences.asMap().putIfAbsent(definedClass, references);
+            if(existing != null) {
+                references = existing;
+            }
+        }
+        references.addAll(classNames);
+    }
+
+    /**
+     * Makes a newly cached entry depend on the cached classes it references, and the cached classes that reference it
+     * depend on it.
+     * @param replaced the entry it replaced in the cache, if any.
+     */
+    protected void linkDependencies(ClassCacheEntry entry, ClassCacheEntry replaced) {
+        for(String className : entry.references) {
+            ClassCacheEntry dependency = classCache.get(className);
+            if(dependency == null && !className.startsWith("java.")) { //The java package can't come from a provider
+                Set<String> referencing = unresolvedReferences.get(className);
+                if(referencing == null) {
+                    referencing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    Set<String> existing = unresolvedReferences.putIfAbsent(className, referencing);
+                    if(existing != null) {
+                        referencing = existing;
+                    }
+                }
+                referencing.add(entry.className);
+                //In case it was cached meanwhile
+                dependency = classCache.get(className);
+            }
+            if(dependency != null) {
+                entry.recordDependencyOn(dependency);
+            }
+        }
+        Set<String> referencing = unresolvedReferences.remove(entry.className);
+        if(referencing != null) {
+            for(String className : referencing) {
+                ClassCacheEntry dependent = classCache.get(className);
+                if(dependent != null && dependent.references.contains(entry.className)) {
+                    dependent.recordDependencyOn(entry);
+                }
+            }
+        }
+        if(replaced != null && replaced != entry) {
+            for(ClassCacheEntry dependent : replaced.dependents) {
+                ClassCacheEntry current = classCache.get(dependent.className);
+                if(current != null && current.references.contains(entry.className)) {
+                    current.recordDependencyOn(entry);
+                }
+            }
+            discard(replaced);
+        }
+    }
+
+    /**
+     * Removes an entry that is no longer in the cache from the dependency graph.
+     */
+    protected void unlinkDependencies(ClassCacheEntry entry) {
+        for(ClassCacheEntry dependency : entry.dependencies) {
+            dependency.dependents.remove(entry);
+        }
+        for(ClassCacheEntry dependent : entry.dependents) {
+            dependent.dependencies.remove(entry);
+        }
+    }
+
+    /**
+     * Forgets an entry that has been removed from the cache. Its class is tracked until it is unloaded.
+     */
+    protected void discard(ClassCacheEntry entry) {
+        unindexEntry(entry);
+        unlinkDependencies(entry);
+        if(entry.loadedClass != null) {
+            removedClasses.add(new WeakReference<Class>(entry.loadedClass, unloadedClasses));
+            removedClassCount.incrementAndGet();
+        }
+        pollUnloadedClasses();
+    }
+
+    /**
+     * Removes an entry evicted from a bounded cache, together with the cached classes that depend on it: they are
+     * linked to its class, so they could not use the new version that a later lookup would load.
+     */
+    protected void evicted(ClassCacheEntry entry) {
+        List<ClassCacheEntry> removed = new ArrayList<ClassCacheEntry>();
+        removed.add(entry);
+        Set<ClassCacheEntry> visited = new HashSet<ClassCacheEntry>(removed);
+        Deque<ClassCacheEntry> toVisit = new ArrayDeque<ClassCacheEntry>(removed);
+        while(!toVisit.isEmpty()) {
+            for(ClassCacheEntry dependent : toVisit.poll().dependents) {
+                if(visited.add(dependent) && classCache.remove(dependent.className, dependent)) {
+                    removed.add(dependent);
+                    toVisit.add(dependent);
+                }
+            }
+        }
+        List<String> classNames = new ArrayList<String>(removed.size());
+        for(ClassCacheEntry e : removed) {
+            discard(e);
+            classNames.add(e.className);
+        }
+        logger.debug("Evicted " + classNames);
+        RepositoryListener listener = this.listener;
+        if(listener != null) {
+            listener.classesEvicted(classNames);
+        }
+    }
+
+    /**
+     * Counts the classes removed from the cache that have been garbage collected since the last call.
+     */
+    protected void pollUnloadedClasses() {
+        int count = 0;
+        Reference<? extends Class> reference;
+        while((reference = unloadedClasses.poll()) != null) {
+            if(removedClasses.remove(reference)) {
+                count++;
+            }
+        }
+        if(count > 0) {
+            unloadedClassCount.addAndGet(count);
+            RepositoryListener listener = this.listener;
+            if(listener != null) {
+                listener.classesUnloaded(count);
+            }
+        }
+    }
+
+    /**
+     * @return the number of classes that have been removed from the cache, because they were reloaded, evicted or no
+     * longer defined by their resource.
+     */
+    public long getRemovedClassCount() {
+        return removedClassCount.get();
+    }
+
+    /**
+     * @return the number of classes removed from the cache that the JVM has unloaded, freeing their metaspace. A class
+     * is only unloaded when its class loader and every other class of that loader can be garbage collected, so this
+     * lags behind {@link #getRemovedClassCount()}.
+     */
+    public long getUnloadedClassCount() {
+        pollUnloadedClasses();
+        return unloadedClassCount.get();
+    }
+
+    /**
+     * Marks a newly cached entry as changed if its resource was reported as changed after its loading started, in
+     * case the notification was processed before the entry was in the cache.
+     */
+    protected void checkChangedWhileLoading(ClassCacheEntry entry) {
+        if(resourceChanges.isEmpty()) {
+            return;
+        }
+        Long changed = resourceChanges.get(new ResourceKey(entry.provider, entry.resourceName));
+        Long providerChanged = resourceChanges.get(new ResourceKey(entry.provider, null));
+        if((changed != null && changed >= entry.timestamp) || (providerChanged != null && providerChanged >= entry.timestamp)) {
+            entry.markChanged();
+        }
+    }
+
+    /**
+     * Uses the given change detector to learn about changes to the resources of the class providers it watches.
+     * Cache hits for classes coming from those providers then no longer check their resources for changes.
+     */
+    public synchronized ClassRepository withChangeDetector(ChangeDetector changeDetector) {
+        if(this.changeDetector != null) {
+            this.changeDetector.removeListener(changeListener);
+        }
+        this.changeDetector = changeDetector;
+        if(changeDetector != null) {
+            changeDetector.addListener(changeListener);
+        }
+        updateProviderIndex();
+        return this;
+    }
 
-    public ClassRepository() {
-        this(true);
+    /**
+     * Enables an index of the resources of the providers that are watched by the change detector, so that looking up
+     * a class or a resource does not probe the providers that don't have it. The index is kept up to date with the
+     * change notifications; providers that are not watched are probed as usual.
+     */
+    public synchronized ClassRepository withProviderIndex() {
+        if(providerIndex == null) {
+            providerIndex = new ProviderIndex();
+            updateProviderIndex();
+        }
+        return this;
     }
 
-    public ClassRepository(boolean includeDefaultClassLoaders) {
-        if(includeDefaultClassLoaders) {
-            classLoaders.add(getClass().getClassLoader());
+    public ProviderIndex getProviderIndex() {
+        return providerIndex;
+    }
+
+    /**
+     * Caches the content of the resources returned by {@link #getResource(String)}, except classes, up to the given
+     * number of bytes. Cached resources of providers watched by the change detector are dropped when they are
+     * reported as changed; the others are checked for changes at most once per poll interval (see
+     * {@link #withPollInterval(long)}). Changing the providers empties the cache.
+     * @param maximumBytes the maximum total size of the cached content; 0 disables the cache.
+     * @param offHeap whether to keep the content in direct buffers, outside of the Java heap.
+     */
+    public synchronized ClassRepository withResourceCache(long maximumBytes, boolean offHeap) {
+        resourceCache = maximumBytes > 0 ? new ResourceCache(maximumBytes, offHeap) : null;
+        return this;
+    }
+
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    protected synchronized void updateProviderIndex() {
+        if(providerIndex != null) {
+            providerIndex.rebuild(classProviders, changeDetector);
         }
     }
 
-    private final Multimap<String, String> dependencies = HashMultimap.create();
-    private String dependentClassName;
+    /**
+     * Sets how often the resources of classes coming from providers that are not watched by a change detector are
+     * checked for changes. By default (0) they are checked on every lookup.
+     * @param pollInterval the minimum time between two checks of the same class, in milliseconds.
+     */
+    public ClassRepository withPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+        return this;
+    }
 
-    public synchronized Class getClass(String className) throws ClassNotFoundException {
-        for (ClassLoader classLoader : classLoaders) {
-            try {
-                return classLoader.loadClass(className);
-            } catch (ClassNotFoundException e) {
-                logger.debug("Class " + className + " not found in classloader " + classLoader, e);
+    /**
+     * Bounds the number of cached classes. When the cache is full, the least recently looked up class is evicted, with
+     * the classes depending on it, and is loaded again the next time it is requested. Evicted classes are no longer
+     * referenced by the repository, so the JVM can unload them (see {@link #getUnloadedClassCount()}) once nothing
+     * else uses them or their class loader.
+     *
+     * The cache is replaced, so this must be called before the repository loads any class: lookups don't lock the
+     * repository, and classes cached by a concurrent load while the cache is replaced would be lost.
+     * @param maximumSize the maximum number of classes to cache; 0 makes the cache unbounded.
+     * @throws IllegalStateException if the repository has already loaded classes.
+     */
+    public synchronized ClassRepository withMaximumCacheSize(long maximumSize) {
+        if(!classCache.isEmpty() || !pendingLoads.isEmpty()) {
+            throw new IllegalStateException("The cache size must be set before loading classes");
+        }
+        if(maximumSize > 0) {
+            classCache = CacheBuilder.newBuilder().maximumSize(maximumSize).removalListener(evictionListener).<String, ClassCacheEntry>build().asMap();
+        } else {
+            classCache = new ConcurrentHashMap<String, ClassCacheEntry>();
+        }
+        return this;
+    }
+
+    /**
+     * Enables caching of the names of the classes that can't be found, so that looking them up again costs a single
+     * map lookup instead of a probe of every class loader and provider. A cached miss is forgotten when a resource that
+     * might define the class is created or, for sources, modified in a provider watched by the change detector, when
+     * the class loaders or the providers are modified, or, if some providers are not watched, after the poll interval
+     * has passed.
+     * @param maximumSize the maximum number of names to remember; 0 disables the cache.
+     */
+    public ClassRepository withNegativeCache(long maximumSize) {
+        missingClasses = maximumSize > 0 ? CacheBuilder.newBuilder().maximumSize(maximumSize).<String, Long>build() : null;
+        return this;
+    }
+
+    protected boolean isKnownMissing(String className) {
+        Cache<String, Long> missingClasses = this.missingClasses;
+        if(missingClasses == null) {
+            return false;
+        }
+        Long since = missingClasses.getIfPresent(className);
+        if(since == null) {
+            return false;
+        }
+        if(allProvidersWatched() || System.currentTimeMillis() - since < pollInterval) {
+            return true;
+        }
+        missingClasses.invalidate(className);
+        return false;
+    }
+
+    protected void recordMissing(String className, long providerChangesBefore, long timestamp) {
+        Cache<String, Long> missingClasses = this.missingClasses;
+        if(missingClasses != null) {
+            missingClasses.put(className, timestamp);
+            //If a resource appeared meanwhile, it might be this class
+            if(providerChanges.get() != providerChangesBefore) {
+                missingClasses.invalidate(className);
             }
         }
-        String oldDependentClassName = dependentClassName;
-        dependentClassName = className;
-        try {
-            long timestamp = System.currentTimeMillis();
-            ClassCacheEntry classCacheEntry = classCache.get(className);
-            if (classCacheEntry == null) {
-                loadClasses(className, timestamp);
-                classCacheEntry = classCache.get(className);
-            } else {
-                for(ClassCacheEntry toReload : classCacheEntry.computeReload()) {
-                    toReload.reload(timestamp);
+    }
+
+    protected boolean allProvidersWatched() {
+        ChangeDetector detector = changeDetector;
+        if(detector == null) {
+            return false;
+        }
+        for(ClassProvider provider : classProviders) {
+            if(!detector.isWatching(provider)) {
+                return false;
+            }
+        }
+        ParentClassProvider parent = this.parent;
+        return parent == null || parent.getRepository().allProvidersWatched();
+    }
+
+    protected void forgetMissingClasses() {
+        providerChanges.incrementAndGet();
+        Cache<String, Long> missingClasses = this.missingClasses;
+        if(missingClasses != null) {
+            missingClasses.invalidateAll();
+        }
+        for(ClassRepository child : children) {
+            child.forgetMissingClasses();
+        }
+    }
+
+    /**
+     * Forgets the cached misses of the classes that the given change might make appear: those named after the
+     * resource and their nested classes. A source file can also define other top-level classes of its package, and
+     * gain classes when modified, so changes to sources forget the misses of their whole package.
+     * @param resourceName the changed resource, or null if any resource might have changed.
+     */
+    protected void forgetMissingClasses(String resourceName, ResourceChangeListener.ChangeType type) {
+        boolean source = resourceName != null && !resourceName.endsWith(".class");
+        if(resourceName != null && type != ResourceChangeListener.ChangeType.CREATED &&
+                !(source && type == ResourceChangeListener.ChangeType.MODIFIED)) {
+            return;
+        }
+        providerChanges.incrementAndGet();
+        Cache<String, Long> missingClasses = this.missingClasses;
+        if(missingClasses == null) {
+            return;
+        }
+        if(resourceName == null) {
+            missingClasses.invalidateAll();
+            return;
+        }
+        String className = toClassName(resourceName);
+        String packagePrefix = className.substring(0, className.lastIndexOf('.') + 1);
+        Iterator<String> missing = missingClasses.asMap().keySet().iterator();
+        while(missing.hasNext()) {
+            String name = missing.next();
+            if(name.equals(className) || name.startsWith(className + "$") ||
+                    (source && name.startsWith(packagePrefix) && name.indexOf('.', packagePrefix.length()) < 0)) {
+                missing.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends timed events about lookups, resource resolutions, compilations, class definitions and reloads to the
+     * given listener, replacing the current one. Pass null to stop; without a listener, nothing is measured.
+     * @see RepositoryMetrics
+     */
+    public ClassRepository withListener(RepositoryListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return the listener to notify of events, or null if there is none. Providers use it to report compilations.
+     */
+    public RepositoryListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Records the classes loaded by lookups, and how often they are looked up, in the given trace, so that they can
+     * be loaded ahead of time after a restart (see {@link #warmUp(AccessTrace)}). Pass null to stop recording.
+     */
+    public ClassRepository withAccessTrace(AccessTrace trace) {
+        this.accessTrace = trace;
+        return this;
+    }
+
+    public AccessTrace getAccessTrace() {
+        return accessTrace;
+    }
+
+    /**
+     * Makes this repository a child of the given one, e.g. to share the classes of a common library among several
+     * repositories (one per tenant, say) that each add their own providers. Classes that neither the class loaders nor
+     * the providers of this repository have are looked up in the parent (and so are resources), which loads and caches
+     * them once for all of its children; this repository only caches a reference to them. A class of a child can
+     * override a class of the parent, but classes loaded by the parent keep using its own version.
+     *
+     * Classes inherited from the parent are reloaded, together with the classes that depend on them, when the parent
+     * replaces them. The parent notifies its children of the changes reported by its change detector, so that those
+     * with a background reload (see {@link #withBackgroundReload(boolean)}) act on them right away, and those with a
+     * negative cache forget the classes the parent might now have. Source providers of the children compile against
+     * the classes that the parent has loaded, so the parent should preload the classes the children refer to (see
+     * {@link #preload(String)}).
+     *
+     * Set the parent before loading any class. The parent must not be changed by its children, so that it can be
+     * shared: give it its own providers and class loaders.
+     */
+    public synchronized ClassRepository withParent(ClassRepository parent) {
+        for(ClassRepository ancestor = parent; ancestor != null; ancestor = ancestor.getParent()) {
+            if(ancestor == this) {
+                throw new IllegalArgumentException("A repository can't be its own ancestor");
+            }
+        }
+        ParentClassProvider current = this.parent;
+        if(current != null) {
+            current.getRepository().children.remove(this);
+        }
+        if(parent != null) {
+            parent.children.add(this);
+            this.parent = new ParentClassProvider(parent);
+        } else {
+            this.parent = null;
+        }
+        forgetMissingClasses();
+        return this;
+    }
+
+    /**
+     * @return the repository that classes not found in this one are looked up in, or null.
+     */
+    public ClassRepository getParent() {
+        ParentClassProvider parent = this.parent;
+        return parent != null ? parent.getRepository() : null;
+    }
+
+    public ChangeDetector getChangeDetector() {
+        return changeDetector;
+    }
+
+    protected void resourceChanged(ClassProvider provider, String resourceName, ResourceChangeListener.ChangeType type) {
+        ProviderIndex index = providerIndex;
+        if(index != null) {
+            index.resourceChanged(provider, resourceName, type);
+        }
+        ResourceCache cache = resourceCache;
+        if(cache != null) {
+            cache.invalidate(provider, resourceName);
+        }
+        forgetMissingClasses(resourceName, type);
+        resourceChanges.put(new ResourceKey(provider, resourceName), System.currentTimeMillis());
+        Collection<ClassCacheEntry> changed;
+        if(resourceName != null) {
+            changed = getCachedEntries(provider, Collections.singleton(resourceName));
+        } else {
+            changed = new ArrayList<ClassCacheEntry>();
+            for(ClassCacheEntry entry : classCache.values()) {
+                if(entry.provider == provider) {
+                    changed.add(entry);
                 }
-                classCacheEntry = classCache.get(className);
             }
-            if (classCacheEntry != null) {
-                if (oldDependentClassName != null) {
-                    dependencies.put(className, oldDependentClassName);
-                } else {
-                    //Call stack empty, record dependencies
-                    for (Map.Entry<String, String> e : dependencies.entries()) {
-                        ClassCacheEntry c1 = classCache.get(e.getKey());
-                        ClassCacheEntry c2 = classCache.get(e.getValue());
-                        c2.recordDependencyOn(c1);
-                    }
+        }
+        for(ClassCacheEntry entry : changed) {
+            entry.markChanged();
+            if(backgroundReload) {
+                requestReload(entry);
+            }
+        }
+        for(ClassRepository child : children) {
+            child.parentChanged(resourceName, type, changed);
+        }
+    }
+
+    /**
+     * Called when a resource of the parent repository has changed, after the parent has marked the given entries as
+     * changed. The classes inherited from those entries are found stale on their next lookup (see
+     * {@link ParentClassProvider#isStale(String, Class)}); with background reload, they are reloaded right away. The
+     * classes that could not be found are looked up again, as the parent might have them now.
+     */
+    protected void parentChanged(String resourceName, ResourceChangeListener.ChangeType type, Collection<ClassCacheEntry> changed) {
+        forgetMissingClasses(resourceName, type);
+        List<ClassCacheEntry> inherited = new ArrayList<ClassCacheEntry>();
+        for(ClassCacheEntry parentEntry : changed) {
+            ClassCacheEntry entry = classCache.get(parentEntry.className);
+            if(entry != null && entry.provider instanceof ParentClassProvider) {
+                inherited.add(entry);
+                if(backgroundReload) {
+                    requestReload(entry);
                 }
-                return classCacheEntry.getLoadedClass();
+            }
+        }
+        for(ClassRepository child : children) {
+            child.parentChanged(resourceName, type, inherited);
+        }
+    }
+
+    /**
+     * Starts loading in parallel, on a new fork/join pool, the classes of all the providers of this repository whose
+     * name matches the given pattern.
+     * @see #preload(Collection, String, ExecutorService)
+     */
+    public Preload preload(String pattern) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return preload(classProviders, pattern, pool);
+        } finally {
+            //Lets the submitted tasks complete
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Starts loading in parallel, on a new fork/join pool, the classes recorded in a trace.
+     * @see #warmUp(AccessTrace, ExecutorService)
+     */
+    public Preload warmUp(AccessTrace trace) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return warmUp(trace, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Starts loading in parallel the classes recorded in a trace, those that took the longest to load in total
+     * first (see {@link AccessTrace#getWarmUpOrder()}). Classes that are already loaded, or whose resource no longer
+     * exists, are skipped.
+     * @param executor runs the loading tasks.
+     * @return the preload, that can be used to track its progress and to wait for its completion.
+     */
+    public Preload warmUp(AccessTrace trace, ExecutorService executor) {
+        List<String> classNames = new ArrayList<String>();
+        for(AccessTrace.Entry entry : trace.getWarmUpOrder()) {
+            if(!classCache.containsKey(entry.className) && resourceExists(entry.resourceName)) {
+                classNames.add(entry.className);
             } else {
-                throw new ClassNotFoundException(className);
+                logger.debug("Not warming up " + entry.className + " as it is already loaded or " + entry.resourceName + " no longer exists");
             }
+        }
+        Preload preload = new Preload(this, classNames);
+        preload.start(executor);
+        return preload;
+    }
+
+    protected boolean resourceExists(String resourceName) {
+        Resource resource = findResource(resourceName);
+        try {
+            return resource.exists();
         } finally {
-            dependentClassName = oldDependentClassName;
+            IOUtils.closeQuietly(resource);
         }
     }
 
-    /* TODO getClasses() by resource needs a different classCache (by resource name rather than by class name)
-    public synchronized Class[] getClasses(String path) throws ClassNotFoundException {
-        Resource resource = getResource(path);
+    /**
+     * Starts loading in parallel the classes of the given providers whose name matches the given pattern and that
+     * are not loaded yet.
+     * @param pattern a package prefix (e.g. "com.example"), a glob over class names where * matches within a package
+     *                and ** across packages (e.g. "com.example.**.*Service"), or null to match every class.
+     * @param executor runs the loading tasks.
+     * @return the preload, that can be used to track its progress and to wait for its completion.
+     */
+    public Preload preload(Collection<? extends ClassProvider> providers, String pattern, ExecutorService executor) {
+        Preload preload = new Preload(this, Preload.findClasses(this, providers, pattern));
+        preload.start(executor);
+        return preload;
+    }
+
+    /**
+     * @return every class defined by the resource with the given path (e.g. a source file, with its nested and
+     * secondary classes), in the order the provider defined them. The classes are served from the cache if they were
+     * already loaded from the resource, and reloaded together if it has changed; otherwise, the resource is looked up
+     * in the providers like {@link #getResource(String)} does, and loaded.
+     */
+    public Class[] getClasses(String path) throws ClassNotFoundException {
         long timestamp = System.currentTimeMillis();
-        ClassCacheEntry classCacheEntry = classCache.get(className);
-        if (classCacheEntry == null) {
-            loadClasses(className, timestamp);
-            classCacheEntry = classCache.get(className);
-        } else if (classCacheEntry.shouldReload()) {
-            classCacheEntry.reload(timestamp);
-            classCacheEntry = classCache.get(className);
+        for(ClassProvider provider : classProviders) {
+            Set<String> resourceNames = Collections.singleton(path);
+            List<ClassCacheEntry> unit = getCachedEntries(provider, resourceNames);
+            if(!unit.isEmpty()) {
+                if(backgroundReload) {
+                    requestReloadIfNeeded(unit.get(0));
+                } else if(reloadIfNeeded(unit.get(0), timestamp) != unit.get(0)) {
+                    unit = getCachedEntries(provider, resourceNames);
+                }
+                return toClasses(unit);
+            }
         }
-        if(classCacheEntry != null) {
-            return classCacheEntry.getLoadedClass();
-        } else {
-            throw new ClassNotFoundException(className);
+        Resource resource = findResource(path);
+        ParentClassProvider parent = this.parent;
+        if(!resource.exists() && parent != null) {
+            return parent.getRepository().getClasses(path);
         }
-    }*/
+        return toClasses(loadClasses(resource, timestamp));
+    }
+
+    protected static Class[] toClasses(Collection<ClassCacheEntry> entries) throws ClassNotFoundException {
+        Class[] classes = new Class[entries.size()];
+        int i = 0;
+        for(ClassCacheEntry entry : entries) {
+            classes[i++] = entry.getLoadedClass();
+        }
+        return classes;
+    }
 
     public synchronized ClassRepository withClassLoaders(ListOperation<ClassLoader> op) {
         op.execute(classLoaders);
+        forgetMissingClasses();
         return this;
     }
 
     public synchronized ClassRepository withClassProviders(ListOperation<ClassProvider> op) {
         op.execute(classProviders);
+        forgetMissingClasses();
+        ResourceCache cache = resourceCache;
+        if(cache != null) {
+            cache.invalidateAll();
+        }
+        updateProviderIndex();
         return this;
     }
 
@@ -121,23 +1649,53 @@ public class ClassRepository implements ClassProvider {
     }
 
     protected Collection<ClassCacheEntry> loadClasses(String className, long timestamp) throws ClassNotFoundException {
+        long changes = providerChanges.get();
         Resource resource = getResourceForClass(className);
+        if(resource instanceof NonExistingResource) {
+            Collection<ClassCacheEntry> unit = loadFromOuterClass(className);
+            if(unit != null) {
+                return unit;
+            }
+            recordMissing(className, changes, timestamp);
+        }
         return loadClasses(resource, timestamp);
+    }
 
+    /**
+     * Nested classes usually have no resource of their own (e.g. a.Outer$Inner is defined by a/Outer.java), so a
+     * nested class that no provider has is looked for among the classes defined with its outer class, which is loaded
+     * if needed.
+     * @return the cached entries of the unit that defines the class, or null if there is none.
+     */
+    protected Collection<ClassCacheEntry> loadFromOuterClass(String className) {
+        int dollar = className.lastIndexOf('$');
+        if(dollar <= className.lastIndexOf('.') + 1) {
+            return null;
+        }
+        String outerName = className.substring(0, dollar);
+        try {
+            getClass(outerName, null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        ClassCacheEntry outer = classCache.get(outerName);
+        if(outer == null) { //e.g. it comes from a class loader
+            return null;
+        }
+        List<ClassCacheEntry> unit = getCachedEntries(outer.provider, Collections.singleton(outer.resourceName));
+        for(ClassCacheEntry entry : unit) {
+            if(entry.className.equals(className)) {
+                return unit;
+            }
+        }
+        return null;
     }
 
     protected Collection<ClassCacheEntry> loadClasses(Resource resource, long timestamp) throws ClassNotFoundException {
-        //TODO record dependencies
         try {
             if (resource.isClass()) {
                 Class[] classes = resource.loadClasses(this);
-                List<ClassCacheEntry> entries = new ArrayList<ClassCacheEntry>(classes.length);
-                for(Class theClass : classes) {
-                    ClassCacheEntry entry = new ClassCacheEntry(resource, theClass.getName(), theClass, timestamp);
-                    entries.add(entry);
-                    classCache.put(theClass.getName(), entry);
-                }
-                return entries;
+                return cacheClasses(resource, classes, timestamp);
             }
         } finally {
             try {
@@ -149,11 +1707,46 @@ public class ClassRepository implements ClassProvider {
         throw new ClassNotFoundException("No class was found in resource " + resource);
     }
 
+    /**
+     * Guesses the name of the class a resource defines, from its path without the extension (e.g. a/b/C.java is
+     * a.b.C).
+     */
+    protected static String toClassName(String resourceName) {
+        int dot = resourceName.lastIndexOf('.');
+        if(dot > resourceName.lastIndexOf('/')) {
+            resourceName = resourceName.substring(0, dot);
+        }
+        return resourceName.replace('/', '.');
+    }
+
     @Override
     public Resource getResourceForClass(String className) {
+        ProviderIndex index = providerIndex;
+        RepositoryListener listener = this.listener;
         for(ClassProvider provider : classProviders) {
+            if(index != null && index.isIndexed(provider) &&
+               index.isKnownMissing(provider, ((ListableClassProvider) provider).getResourceName(className))) {
+                continue;
+            }
+            long start = listener != null ? System.nanoTime() : 0;
             Resource resource = provider.getResourceForClass(className);
-            if(resource.isClass()) {
+            boolean found = resource.isClass();
+            if(listener != null) {
+                listener.resourceResolved(provider, className, found, System.nanoTime() - start);
+            }
+            if(found) {
+                return resource;
+            }
+        }
+        ParentClassProvider parent = this.parent;
+        if(parent != null) {
+            long start = listener != null ? System.nanoTime() : 0;
+            Resource resource = parent.getResourceForClass(className);
+            boolean found = resource.isClass();
+            if(listener != null) {
+                listener.resourceResolved(parent, className, found, System.nanoTime() - start);
+            }
+            if(found) {
                 return resource;
             }
         }
@@ -161,11 +1754,64 @@ public class ClassRepository implements ClassProvider {
         return new NonExistingResource(this, "classes://" + className);
     }
 
+    /**
+     * @return the resource with the given path from the first provider that has it or, if none has it, from the parent
+     * repository. With a resource cache (see {@link #withResourceCache(long, boolean)}), resources that are not
+     * classes are served from memory.
+     */
     @Override
     public Resource getResource(String path) {
+        Resource resource = getLocalResource(path);
+        ParentClassProvider parent = this.parent;
+        if(!resource.exists() && parent != null) {
+            return parent.getRepository().getResource(path);
+        }
+        return resource;
+    }
+
+    /**
+     * @return the resource with the given path from the first provider of this repository that has it.
+     */
+    protected Resource getLocalResource(String path) {
+        ResourceCache cache = resourceCache;
+        if(cache == null) {
+            return findResource(path);
+        }
+        ResourceCache.CachedResource cached = cache.get(path);
+        if(cached != null) {
+            ChangeDetector detector = changeDetector;
+            if((detector != null && detector.isWatching(cached.getProvider())) || !cached.isStale(pollInterval)) {
+                return cached;
+            }
+            cache.invalidate(path);
+        }
+        Resource resource = findResource(path);
+        if(!resource.exists() || resource.isClass()) {
+            return resource;
+        }
+        try {
+            cached = cache.put(path, resource);
+            return cached != null ? cached : resource;
+        } catch (IOException e) {
+            logger.warn("Could not cache resource " + path, e);
+            return resource;
+        }
+    }
+
+    protected Resource findResource(String path) {
+        ProviderIndex index = providerIndex;
+        RepositoryListener listener = this.listener;
         for(ClassProvider provider : classProviders) {
+            if(index != null && index.isKnownMissing(provider, path)) {
+                continue;
+            }
+            long start = listener != null ? System.nanoTime() : 0;
             Resource resource = provider.getResource(path);
-            if(resource.exists()) {
+            boolean found = resource.exists();
+            if(listener != null) {
+                listener.resourceResolved(provider, path, found, System.nanoTime() - start);
+            }
+            if(found) {
                 return resource;
             }
         }
@@ -178,8 +1824,28 @@ public class ClassRepository implements ClassProvider {
         public final Class loadedClass;
         public final long timestamp;
         public final ClassProvider provider;
-        private final Collection<ClassCacheEntry> dependencies = new LinkedHashSet<ClassCacheEntry>();
-        private final Collection<ClassCacheEntry> dependents = new LinkedHashSet<ClassCacheEntry>();
+        private final Collection<ClassCacheEntry> dependencies = new CopyOnWriteArraySet<ClassCacheEntry>();
+        /**
+         * Weakly referenced, so that dependents that have left the cache don't stay reachable through their
+         * dependencies.
+         */
+        private final Collection<ClassCacheEntry> dependents = Collections.newSetFromMap(
+                CacheBuilder.newBuilder().weakKeys().<ClassCacheEntry, Boolean>build().asMap());
+        /**
+         * The classes the bytecode of this class refers to.
+         */
+        public final Set<String> references;
+        private final AtomicBoolean reloading = new AtomicBoolean();
+        private volatile boolean changed;
+        private volatile long lastChecked;
+        /**
+         * When the change detector last reported a change to the resource of this entry.
+         */
+        private volatile long lastNotified;
+        /**
+         * When the last failed background reload of this entry started, or 0.
+         */
+        private volatile long reloadFailed;
 
         public ClassCacheEntry(ClassProvider provider, String resourceName, String className, Class loadedClass, long timestamp) {
             this.resourceName = resourceName;
@@ -187,50 +1853,118 @@ public class ClassRepository implements ClassProvider {
             this.loadedClass = loadedClass;
             this.timestamp = timestamp;
             this.provider = provider;
+            Set<String> references = loadedClass != null ? definedReferences.asMap().remove(loadedClass) : null;
+            this.references = references != null ? Collections.unmodifiableSet(references) : Collections.<String>emptySet();
         }
 
         public ClassCacheEntry(Resource resource, String className, Class loadedClass, long timestamp) {
             this(resource.getProvider(), resource.getName(), className, loadedClass, timestamp);
         }
 
+        /**
+         * Finds the entries to reload before this one can be used: those that have changed among this entry and its
+         * transitive dependencies, and everything that transitively depends on them.
+         * @return the entries to reload, dependencies before their dependents (except within cycles), or an empty set
+         * if this entry is up to date.
+         */
         public LinkedHashSet<ClassCacheEntry> computeReload() {
-            LinkedHashSet<ClassCacheEntry> reload = new LinkedHashSet<ClassCacheEntry>();
-            return computeReload(reload);
+            return ClassRepository.this.computeReload(Collections.singleton(this));
         }
 
-        public LinkedHashSet<ClassCacheEntry> computeReload(LinkedHashSet<ClassCacheEntry> reload) {
-            for(ClassCacheEntry dep : dependencies) {
-                dep.computeReload(reload);
+        /**
+         * Checks whether the resource this class was loaded from has changed. If a change detector watches the
+         * provider, this only reads a flag; otherwise the resource is checked, at most once per poll interval. Classes
+         * inherited from the parent repository have changed when the parent has replaced them.
+         */
+        public boolean isChanged() {
+            if(provider instanceof ParentClassProvider) {
+                if(!changed && ((ParentClassProvider) provider).isStale(className, loadedClass)) {
+                    changed = true;
+                }
+                return changed;
+            }
+            ChangeDetector detector = changeDetector;
+            if(detector != null && detector.isWatching(provider)) {
+                return changed;
             }
-            if((!reload.isEmpty() || provider.getResource(resourceName).isNewerThan(timestamp)) && !reload.contains(this)) {
-                reload.add(this);
-                for(ClassCacheEntry dep : dependents) {
-                    dep.computeReload(reload);
+            long interval = pollInterval;
+            if(interval > 0) {
+                long now = System.currentTimeMillis();
+                if(now - lastChecked < interval) {
+                    return changed;
                 }
+                lastChecked = now;
+            }
+            if(!changed && provider.getResource(resourceName).isNewerThan(timestamp)) {
+                changed = true;
+            }
+            return changed;
+        }
+
+        public void markChanged() {
+            lastNotified = System.currentTimeMillis();
+            changed = true;
+        }
+
+        protected void reloadFailed(long timestamp) {
+            reloadFailed = timestamp;
+        }
+
+        /**
+         * @return false if the last background reload of this entry failed and its resource hasn't changed since.
+         */
+        public boolean canRetryReload() {
+            long failed = reloadFailed;
+            if(failed == 0) {
+                return true;
             }
-            return reload;
+            ChangeDetector detector = changeDetector;
+            boolean changedSince = detector != null && detector.isWatching(provider) ?
+                    lastNotified >= failed : provider.getResource(resourceName).isNewerThan(failed);
+            if(changedSince) {
+                reloadFailed = 0;
+            }
+            return changedSince;
         }
 
         public Collection<ClassCacheEntry> reload(long timestamp) throws ClassNotFoundException {
             Class[] newClasses = provider.getResource(resourceName).loadClasses(ClassRepository.this);
-            classCache.remove(className);
-            //TODO remove other old classes (so inners that no longer exist get garbage-collected)
-            List<ClassCacheEntry> newEntries = new ArrayList<ClassCacheEntry>(newClasses.length);
-            for(Class newClass : newClasses) {
-                ClassCacheEntry newEntry = new ClassCacheEntry(provider, resourceName, newClass.getName(), newClass, timestamp);
-                classCache.put(newClass.getName(), newEntry);
-                newEntries.add(newEntry);
+            List<ClassCacheEntry> oldEntries = getCachedEntries(provider, Collections.singleton(resourceName));
+            if(!oldEntries.contains(this)) {
+                oldEntries.add(this);
             }
-            return newEntries;
+            return replaceEntries(oldEntries, provider, resourceName, newClasses, timestamp);
+        }
+
+        /**
+         * Marks this entry as being reloaded.
+         * @return true if the calling thread is the one that must reload it, false if another thread already did.
+         */
+        public boolean claimReload() {
+            return reloading.compareAndSet(false, true);
+        }
+
+        public void releaseReload() {
+            reloading.set(false);
         }
 
         public void recordDependencyOn(ClassCacheEntry... dependencies) {
             for(ClassCacheEntry c : dependencies) {
-                this.dependencies.add(c);
-                c.dependents.add(this);
+                if(c != this) {
+                    this.dependencies.add(c);
+                    c.dependents.add(this);
+                }
             }
         }
 
+        public Collection<ClassCacheEntry> getDependencies() {
+            return Collections.unmodifiableCollection(dependencies);
+        }
+
+        public Collection<ClassCacheEntry> getDependents() {
+            return Collections.unmodifiableCollection(dependents);
+        }
+
         public Class getLoadedClass() throws ClassNotFoundException {
             if(loadedClass != null) {
                 return loadedClass;
@@ -240,14 +1974,196 @@ public class ClassRepository implements ClassProvider {
         }
     }
 
+    /**
+     * Identifies a resource of a class provider.
+     */
+    protected static class ResourceKey {
+        public final ClassProvider provider;
+        public final String resourceName;
+
+        public ResourceKey(ClassProvider provider, String resourceName) {
+            this.provider = provider;
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ResourceKey)) {
+                return false;
+            }
+            ResourceKey other = (ResourceKey) o;
+            return provider == other.provider && (resourceName == null ? other.resourceName == null : resourceName.equals(other.resourceName));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(provider) + (resourceName != null ? resourceName.hashCode() : 0);
+        }
+    }
+
+    /**
+     * Loads the resources of a component of a reload plan, with the classes staged so far visible to the current
+     * thread.
+     */
+    protected class StageTask implements Callable<List<StagedResource>> {
+        protected final ReloadPlan.Component component;
+        protected final Map<String, Class> stagedByName;
+
+        public StageTask(ReloadPlan.Component component, Map<String, Class> stagedByName) {
+            this.component = component;
+            this.stagedByName = stagedByName;
+        }
+
+        @Override
+        public List<StagedResource> call() throws ClassNotFoundException {
+            Map<String, Class> previous = stagedClasses.get();
+            stagedClasses.set(stagedByName);
+            stagingThreads.incrementAndGet();
+            try {
+                List<StagedResource> staged = new ArrayList<StagedResource>();
+                stage(component.getEntries(), staged, stagedByName);
+                return staged;
+            } finally {
+                if(previous != null) {
+                    stagedClasses.set(previous);
+                } else {
+                    stagedClasses.remove();
+                }
+                stagingThreads.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The classes loaded from a resource by a reload, waiting to be put in the cache.
+     */
+    protected static class StagedResource {
+        public final ClassProvider provider;
+        public final String resourceName;
+        /**
+         * The entries the classes replace, or null if the resource was not loaded before.
+         */
+        public final Collection<ClassCacheEntry> oldEntries;
+        public final Class[] classes;
+
+        public StagedResource(ClassProvider provider, String resourceName, Collection<ClassCacheEntry> oldEntries, Class[] classes, Map<String, Class> stagedByName) {
+            this.provider = provider;
+            this.resourceName = resourceName;
+            this.oldEntries = oldEntries;
+            this.classes = classes;
+            for(Class c : classes) {
+                stagedByName.put(c.getName(), c);
+            }
+        }
+    }
+
+    protected static class PendingLoad {
+        public final String className;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Thread owner = Thread.currentThread();
+        private boolean committed;
+        private volatile ClassCacheEntry result;
+        private volatile Throwable failure;
+
+        public PendingLoad(String className) {
+            this.className = className;
+        }
+
+        /**
+         * @return the thread performing the load: the one that started it, or the one that took it over.
+         */
+        public Thread getOwner() {
+            return owner;
+        }
+
+        /**
+         * Makes the current thread the owner of the load, unless the load has completed or its owner has started
+         * caching classes.
+         * @return whether the current thread is now the owner.
+         */
+        public synchronized boolean takeOver() {
+            if(committed || isDone()) {
+                return false;
+            }
+            owner = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * Prevents other threads from taking over the load, because the current thread is caching its classes.
+         * @return false if the current thread no longer owns the load.
+         */
+        public synchronized boolean commit() {
+            if(owner != Thread.currentThread()) {
+                return false;
+            }
+            committed = true;
+            return true;
+        }
+
+        /**
+         * Records the outcome of the load, if the current thread still owns it.
+         * @return whether the outcome was recorded.
+         */
+        public synchronized boolean complete(ClassCacheEntry result, Throwable failure) {
+            if(owner != Thread.currentThread() || isDone()) {
+                return false;
+            }
+            this.result = result;
+            this.failure = failure;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the load to complete.
+         * @return whether it completed within the given number of milliseconds.
+         */
+        public boolean await(long timeout) throws ClassNotFoundException {
+            try {
+                return done.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClassNotFoundException("Interrupted while waiting for " + className + " to be loaded", e);
+            }
+        }
+
+        /**
+         * @return the outcome of a completed load.
+         */
+        public ClassCacheEntry get() throws ClassNotFoundException {
+            if(failure instanceof ClassNotFoundException) {
+                throw new ClassNotFoundException(className, failure);
+            } else if(failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if(failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return result;
+        }
+    }
+
     public class ClassLoaderFacade extends ClassLoader {
+
+        /**
+         * Bytecode handed to {@link #defineClasses(Map)} that has not been defined yet. Classes in it are resolved by
+         * this loader before asking the repository, so classes defined together can refer to each other.
+         */
+        protected final Map<String, byte[]> pendingClasses = new HashMap<String, byte[]>();
+
         @Override
         public Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-            Class<?> cls = null;
-            try {
-                cls = ClassRepository.this.getClass(name);
-            } catch (ClassNotFoundException e) {
-                logger.trace("Class not found, delegating to super", e);
+            Class<?> cls = findOwnClass(name);
+            if(cls == null) {
+                try {
+                    cls = ClassRepository.this.getClass(name);
+                } catch (ClassNotFoundException e) {
+                    logger.trace("Class not found, delegating to super", e);
+                }
             }
             if(cls != null) {
                 if(resolve) {
@@ -259,8 +2175,40 @@ public class ClassRepository implements ClassProvider {
             }
         }
 
+        protected synchronized Class<?> findOwnClass(String name) {
+            Class<?> cls = findLoadedClass(name);
+            if(cls == null) {
+                byte[] code = pendingClasses.remove(name);
+                if(code != null) {
+                    cls = defineClass(name, code);
+                }
+            }
+            return cls;
+        }
+
         public Class defineClass(String name, byte[] code) {
-            return super.defineClass(name, code, 0, code.length);
+            RepositoryListener listener = ClassRepository.this.listener;
+            long start = listener != null ? System.nanoTime() : 0;
+            Class cls = super.defineClass(name, code, 0, code.length);
+            if(listener != null) {
+                listener.classDefined(name, code.length, System.nanoTime() - start);
+            }
+            recordReferences(cls, code);
+            return cls;
+        }
+
+        /**
+         * Defines a set of classes in this loader in a single pass. Classes in the set that refer to each other (e.g.
+         * a subclass and its superclass) are resolved within the set regardless of the iteration order.
+         * @return the defined classes, by name, in the iteration order of the argument.
+         */
+        public synchronized Map<String, Class> defineClasses(Map<String, byte[]> classes) {
+            pendingClasses.putAll(classes);
+            Map<String, Class> result = new LinkedHashMap<String, Class>();
+            for(String name : classes.keySet()) {
+                result.put(name, findOwnClass(name));
+            }
+            return result;
         }
     }
 
@@ -0,0 +1,25 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.util.Collection;
+
+/**
+ * A {@link ClassProvider} that can enumerate its resources.
+ */
+public interface ListableClassProvider extends ClassProvider {
+
+    /**
+     * @return the names of all the resources of this provider, as returned by {@link Resource#getName()}.
+     */
+    Collection<String> listResources();
+
+    /**
+     * @return the name of the resource that {@link #getResourceForClass(String)} would return for the given class.
+     */
+    String getResourceName(String className);
+
+    /**
+     * @return the name of the class that the given resource provides, or null if it is not a class resource.
+     */
+    String getClassName(String resourceName);
+
+}
@@ -0,0 +1,152 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.io.InputStream;
+
+/**
+ * Supplies to a child repository the classes of its parent (see {@link ClassRepository#withParent(ClassRepository)}).
+ * The classes are loaded by the parent, in its own cache, and handed out as they are, so that every child shares the
+ * same classes instead of compiling and defining its own copy. Each class is a resource of its own, named after the
+ * class.
+ */
+public class ParentClassProvider implements ClassProvider {
+
+    protected final ClassRepository repository;
+
+    public ParentClassProvider(ClassRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @return a resource that exists if the parent can load the class, loading it if needed.
+     */
+    @Override
+    public ParentResource getResourceForClass(String className) {
+        ParentResource resource = new ParentResource(className);
+        resource.resolve();
+        return resource;
+    }
+
+    /**
+     * @param path the name of a class.
+     */
+    @Override
+    public ParentResource getResource(String path) {
+        return new ParentResource(path);
+    }
+
+    /**
+     * Checks whether a class inherited from the parent has been replaced there, e.g. because it was reloaded or
+     * evicted. If the parent knows that the class has changed but hasn't reloaded it yet, it is asked to. Classes
+     * that the parent got from its class loaders are not in its cache, and never change.
+     */
+    public boolean isStale(String className, Class inherited) {
+        ClassRepository.ClassCacheEntry current = repository.getClassCache().get(className);
+        if(current != null && current.loadedClass == inherited && current.isChanged()) {
+            try {
+                repository.getClass(className);
+            } catch (ClassNotFoundException e) {
+                return true;
+            }
+            current = repository.getClassCache().get(className);
+        }
+        if(current == null) {
+            return repository.findInClassLoaders(className) != inherited;
+        }
+        return current.loadedClass != inherited;
+    }
+
+    public ClassRepository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (parent " + repository + ")";
+    }
+
+    /**
+     * A class of the parent repository.
+     */
+    public class ParentResource implements Resource {
+
+        protected final String className;
+        protected Class loadedClass;
+
+        public ParentResource(String className) {
+            this.className = className;
+        }
+
+        protected Class resolve() {
+            if(loadedClass == null) {
+                try {
+                    loadedClass = repository.getClass(className);
+                } catch (ClassNotFoundException e) {
+                    return null;
+                }
+            }
+            return loadedClass;
+        }
+
+        @Override
+        public boolean exists() {
+            return isClass();
+        }
+
+        /**
+         * @return true if the parent has replaced the class since the given time, or no longer has it.
+         */
+        @Override
+        public boolean isNewerThan(long timestamp) {
+            ClassRepository.ClassCacheEntry current = repository.getClassCache().get(className);
+            if(current == null) {
+                return repository.findInClassLoaders(className) == null;
+            }
+            return current.timestamp > timestamp;
+        }
+
+        /**
+         * @return the content of the resource the parent loaded the class from.
+         */
+        @Override
+        public InputStream getInputStream() {
+            ClassRepository.ClassCacheEntry current = repository.getClassCache().get(className);
+            Resource resource = current != null ? current.provider.getResource(current.resourceName) : repository.getResourceForClass(className);
+            return resource.getInputStream();
+        }
+
+        @Override
+        public boolean isClass() {
+            return resolve() != null;
+        }
+
+        /**
+         * @return the class as loaded by the parent, which reloads it first if it has changed.
+         */
+        @Override
+        public Class[] loadClasses(ClassRepository child) throws ClassNotFoundException {
+            loadedClass = null;
+            if(resolve() == null) {
+                throw new ClassNotFoundException(className);
+            }
+            return new Class[] { loadedClass };
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public ClassProvider getProvider() {
+            return ParentClassProvider.this;
+        }
+
+        @Override
+        public String getName() {
+            return className;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " - " + className;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Loads a set of classes into a {@link ClassRepository} ahead of time, in parallel, so that the first requests for
+ * them don't pay for compiling and defining them. Classes are loaded with {@link ClassRepository#getClass(String)},
+ * so dependencies are loaded before the classes that need them and a class requested by several tasks (directly or
+ * as a dependency) is only loaded once.
+ *
+ * Use {@link ClassRepository#preload(Collection, String, ExecutorService)} to start a preload.
+ */
+public class Preload {
+
+    private static final Logger logger = LoggerFactory.getLogger(Preload.class);
+
+    protected final ClassRepository repository;
+    protected final List<String> classNames;
+    protected final Queue<Result> results = new ConcurrentLinkedQueue<Result>();
+    protected final AtomicInteger completed = new AtomicInteger();
+    protected final CountDownLatch done;
+    protected final long startTime = System.nanoTime();
+    protected volatile long endTime;
+
+    protected Preload(ClassRepository repository, List<String> classNames) {
+        this.repository = repository;
+        this.classNames = Collections.unmodifiableList(classNames);
+        this.done = new CountDownLatch(classNames.size());
+        if(classNames.isEmpty()) {
+            endTime = startTime;
+        }
+    }
+
+    /**
+     * Finds the classes of the given providers whose name matches the given pattern and that are not loaded yet.
+     * @param pattern a package prefix (e.g. "com.example"), a glob over class names where * matches within a package
+     *                and ** across packages (e.g. "com.example.**.*Service"), or null to match every class.
+     */
+    public static List<String> findClasses(ClassRepository repository, Collection<? extends ClassProvider> providers, String pattern) {
+        Pattern regex = toRegex(pattern);
+        Set<String> classNames = new LinkedHashSet<String>();
+        for(ClassProvider provider : providers) {
+            if(!(provider instanceof ListableClassProvider)) {
+                logger.warn("Cannot preload from " + provider + " as it cannot list its resources");
+                continue;
+            }
+            ListableClassProvider listable = (ListableClassProvider) provider;
+            Collection<String> resourceNames = repository.getProviderIndex() != null ? repository.getProviderIndex().getResources(provider) : null;
+            if(resourceNames == null) {
+                resourceNames = listable.listResources();
+            }
+            for(String resourceName : resourceNames) {
+                String className = listable.getClassName(resourceName);
+                if(className != null && regex.matcher(className).matches() && !repository.getClassCache().containsKey(className)) {
+                    classNames.add(className);
+                }
+            }
+        }
+        List<String> result = new ArrayList<String>(classNames);
+        //Outer classes first, as loading them usually takes care of their inner classes too
+        Collections.sort(result, new Comparator<String>() {
+            @Override
+            public int compare(String c1, String c2) {
+                int depth1 = c1.split("\\$", -1).length;
+                int depth2 = c2.split("\\$", -1).length;
+                return depth1 != depth2 ? depth1 - depth2 : c1.compareTo(c2);
+            }
+        });
+        return result;
+    }
+
+    protected static Pattern toRegex(String pattern) {
+        if(pattern == null || pattern.isEmpty()) {
+            return Pattern.compile(".*");
+        }
+        if(!pattern.contains("*") && !pattern.contains("?")) {
+            String prefix = pattern.endsWith(".") ? pattern : pattern + ".";
+            return Pattern.compile(Pattern.quote(pattern) + "|" + Pattern.quote(prefix) + ".*");
+        }
+        StringBuilder regex = new StringBuilder();
+        for(int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if(c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if(c == '*') {
+                regex.append("[^.]*");
+            } else if(c == '?') {
+                regex.append("[^.]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Submits a task per class to the executor. If the executor rejects a task (e.g. it is bounded or shut down), the
+     * classes not submitted yet are reported as failed, so that the preload still completes.
+     */
+    protected void start(ExecutorService executor) {
+        for(int i = 0; i < classNames.size(); i++) {
+            final String className = classNames.get(i);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(className);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warn("Could not preload " + (classNames.size() - i) + " classes, the executor rejected them", e);
+                for(String rejected : classNames.subList(i, classNames.size())) {
+                    complete(new Result(rejected, 0, e));
+                }
+                return;
+            }
+        }
+    }
+
+    protected void load(String className) {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            repository.getClass(className);
+        } catch (Throwable t) {
+            failure = t;
+            logger.debug("Could not preload " + className, t);
+        }
+        complete(new Result(className, System.nanoTime() - start, failure));
+    }
+
+    protected void complete(Result result) {
+        results.add(result);
+        if(completed.incrementAndGet() == classNames.size()) {
+            endTime = System.nanoTime();
+        }
+        done.countDown();
+    }
+
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    public int getTotal() {
+        return classNames.size();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the preload to complete.
+     * @return the report.
+     */
+    public Report await() throws InterruptedException {
+        done.await();
+        return getReport();
+    }
+
+    /**
+     * Waits for the preload to complete, up to the given time.
+     * @return the report, or null if the preload did not complete in time.
+     */
+    public Report await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit) ? getReport() : null;
+    }
+
+    /**
+     * @return a report of the classes loaded so far.
+     */
+    public Report getReport() {
+        long end = isDone() ? endTime : System.nanoTime();
+        return new Report(new ArrayList<Result>(results), getTotal(), end - startTime);
+    }
+
+    public static class Result {
+        public final String className;
+        public final long nanos;
+        /**
+         * Why the class could not be loaded, or null if it was loaded.
+         */
+        public final Throwable failure;
+
+        public Result(String className, long nanos, Throwable failure) {
+            this.className = className;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+
+        @Override
+        public String toString() {
+            return className + ": " + TimeUnit.NANOSECONDS.toMicros(nanos) + "us" + (failure != null ? " (failed: " + failure + ")" : "");
+        }
+    }
+
+    public static class Report {
+        /**
+         * One result per class loaded so far, in order of completion. The time of each includes loading the
+         * dependencies it was the first to need.
+         */
+        public final List<Result> results;
+        public final int total;
+        public final long elapsedNanos;
+
+        public Report(List<Result> results, int total, long elapsedNanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.total = total;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<Result> getFailures() {
+            List<Result> failures = new ArrayList<Result>();
+            for(Result result : results) {
+                if(!result.isSuccessful()) {
+                    failures.add(result);
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * @return the results sorted from the slowest to the fastest.
+         */
+        public List<Result> getSlowest() {
+            List<Result> sorted = new ArrayList<Result>(results);
+            Collections.sort(sorted, new Comparator<Result>() {
+                @Override
+                public int compare(Result r1, Result r2) {
+                    return r1.nanos < r2.nanos ? 1 : (r1.nanos == r2.nanos ? 0 : -1);
+                }
+            });
+            return sorted;
+        }
+
+        @Override
+        public String toString() {
+            return results.size() + "/" + total + " classes preloaded in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) +
+                   "ms, " + getFailures().size() + " failures";
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory index of the resources of a set of {@link ListableClassProvider}s, telling whether a provider has a
+ * given resource without touching its storage, so that lookups skip the providers known not to have it (see
+ * {@link #isKnownMissing(ClassProvider, String)}). Only providers watched by a {@link ChangeDetector} are indexed,
+ * because the index is kept up to date by listening to its change notifications; other providers must be probed as
+ * usual (see {@link #isIndexed(ClassProvider)}).
+ */
+public class ProviderIndex implements ResourceChangeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderIndex.class);
+
+    protected final ConcurrentMap<ClassProvider, ProviderResources> indexed = new ConcurrentHashMap<ClassProvider, ProviderResources>();
+    /**
+     * Indexes being built. Changes are applied to them too, so that those notified during a scan are not lost.
+     */
+    protected final ConcurrentMap<ClassProvider, ProviderResources> building = new ConcurrentHashMap<ClassProvider, ProviderResources>();
+
+    /**
+     * Indexes the given providers that can be indexed, discarding the index of any other provider.
+     */
+    public synchronized void rebuild(Collection<ClassProvider> providers, ChangeDetector changeDetector) {
+        Set<ClassProvider> indexable = Collections.newSetFromMap(new IdentityHashMap<ClassProvider, Boolean>());
+        for(ClassProvider provider : providers) {
+            if(provider instanceof ListableClassProvider && changeDetector != null && changeDetector.isWatching(provider)) {
+                indexable.add(provider);
+            }
+        }
+        indexed.keySet().retainAll(indexable);
+        for(ClassProvider provider : indexable) {
+            if(!indexed.containsKey(provider)) {
+                index((ListableClassProvider) provider);
+            }
+        }
+    }
+
+    /**
+     * Scans a provider. Until the scan is complete, the previous index of the provider (if any) stays in use.
+     */
+    protected synchronized void index(ListableClassProvider provider) {
+        long start = System.currentTimeMillis();
+        ProviderResources providerResources = new ProviderResources();
+        building.put(provider, providerResources);
+        try {
+            for(String resourceName : provider.listResources()) {
+                providerResources.add(resourceName);
+            }
+            indexed.put(provider, providerResources);
+        } finally {
+            building.remove(provider);
+        }
+        logger.debug("Indexed " + providerResources.names.size() + " resources of " + provider + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return true if the given provider is indexed, i.e. the other methods of the index can be trusted for it.
+     */
+    public boolean isIndexed(ClassProvider provider) {
+        return indexed.containsKey(provider);
+    }
+
+    /**
+     * @return true if the provider is indexed and does not have the given resource. Names that are not in normal form
+     * (e.g. absolute, or containing "." or ".." segments) are never known to be missing.
+     */
+    public boolean isKnownMissing(ClassProvider provider, String resourceName) {
+        ProviderResources providerResources = indexed.get(provider);
+        return providerResources != null && isNormalized(resourceName) && !providerResources.names.contains(resourceName);
+    }
+
+    protected boolean isNormalized(String resourceName) {
+        return !resourceName.isEmpty() && !resourceName.startsWith("/") && !resourceName.endsWith("/") &&
+               !resourceName.contains("//") && !resourceName.contains("\\") && !resourceName.contains("./") &&
+               !resourceName.endsWith(".") && !resourceName.contains(":");
+    }
+
+    /**
+     * @return a live view of the indexed resources of a provider by package path (e.g. a/b, or the empty string for
+     * the root), or null if it is not indexed.
+     */
+    public Map<String, Set<String>> getResourcesByPackage(ClassProvider provider) {
+        ProviderResources providerResources = indexed.get(provider);
+        return providerResources != null ? Collections.unmodifiableMap(providerResources.packages) : null;
+    }
+
+    /**
+     * @return the indexed resources of a provider, or null if it is not indexed.
+     */
+    public Set<String> getResources(ClassProvider provider) {
+        ProviderResources providerResources = indexed.get(provider);
+        return providerResources != null ? Collections.unmodifiableSet(providerResources.names) : null;
+    }
+
+    @Override
+    public void resourceChanged(ClassProvider provider, String resourceName, ChangeType type) {
+        if(!isIndexed(provider) && !building.containsKey(provider)) {
+            return;
+        }
+        if(resourceName == null) {
+            index((ListableClassProvider) provider);
+            return;
+        }
+        for(ProviderResources providerResources : new ProviderResources[] { indexed.get(provider), building.get(provider) }) {
+            if(providerResources == null) {
+                continue;
+            }
+            if(type == ChangeType.CREATED) {
+                providerResources.add(resourceName);
+            } else if(type == ChangeType.DELETED) {
+                providerResources.remove(resourceName);
+            }
+        }
+    }
+
+    protected static class ProviderResources {
+        protected final Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        /**
+         * The resources in each package folder. Packages without resources are removed.
+         */
+        protected final Map<String, Set<String>> packages = new ConcurrentHashMap<String, Set<String>>();
+
+        protected void add(String resourceName) {
+            if(names.add(resourceName)) {
+                String packagePath = getPackagePath(resourceName);
+                synchronized (packages) {
+                    Set<String> packageResources = packages.get(packagePath);
+                    if(packageResources == null) {
+                        packageResources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                        packages.put(packagePath, packageResources);
+                    }
+                    packageResources.add(resourceName);
+                }
+            }
+        }
+
+        protected void remove(String resourceName) {
+            if(names.remove(resourceName)) {
+                String packagePath = getPackagePath(resourceName);
+                synchronized (packages) {
+                    Set<String> packageResources = packages.get(packagePath);
+                    if(packageResources != null && packageResources.remove(resourceName) && packageResources.isEmpty()) {
+                        packages.remove(packagePath);
+                    }
+                }
+            }
+        }
+
+        protected String getPackagePath(String resourceName) {
+            int slash = resourceName.lastIndexOf('/');
+            return slash >= 0 ? resourceName.substring(0, slash) : "";
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository.ClassCacheEntry;
+import com.github.alessiostalla.javaclassrepo.ClassRepository.ResourceKey;
+
+import java.util.*;
+
+/**
+ * The order in which a set of stale classes is reloaded. The classes are grouped by the resource they come from, as a
+ * resource is always reloaded as a whole, or, for {@link BatchClassProvider}s, by the group of resources that must be
+ * loaded together (see {@link BatchClassProvider#getLoadGroup(String)}). The groups that depend on each other,
+ * directly or through others, form a component, which is reloaded in a single step. Components are sorted in dependency order and
+ * assigned to levels: the components of a level only depend on those of earlier levels, so they can be reloaded in
+ * parallel (see {@link ClassRepository#withCompileExecutor(java.util.concurrent.Executor)}).
+ *
+ * Plans are computed by {@link ClassRepository#planReload(String)}, to inspect what a lookup would reload, and before
+ * every reload, when they are passed to {@link RepositoryListener#reloadPlanned(ReloadPlan)}.
+ */
+public class ReloadPlan {
+
+    protected final List<Component> components;
+    protected final List<List<Component>> levels;
+
+    protected ReloadPlan(List<Component> components) {
+        this.components = Collections.unmodifiableList(components);
+        List<List<Component>> levels = new ArrayList<List<Component>>();
+        for(Component component : components) {
+            while(levels.size() <= component.level) {
+                levels.add(new ArrayList<Component>());
+            }
+            levels.get(component.level).add(component);
+        }
+        for(int i = 0; i < levels.size(); i++) {
+            levels.set(i, Collections.unmodifiableList(levels.get(i)));
+        }
+        this.levels = Collections.unmodifiableList(levels);
+    }
+
+    /**
+     * Computes the plan to reload the given entries. Only the dependencies among them are taken into account.
+     */
+    public static ReloadPlan create(Collection<ClassCacheEntry> entries) {
+        Map<ResourceKey, Unit> units = new LinkedHashMap<ResourceKey, Unit>();
+        for(ClassCacheEntry entry : entries) {
+            ResourceKey key = getUnitKey(entry);
+            Unit unit = units.get(key);
+            if(unit == null) {
+                unit = new Unit(key.provider);
+                units.put(key, unit);
+            }
+            unit.entries.add(entry);
+            unit.resourceNames.add(entry.resourceName);
+        }
+        for(Unit unit : units.values()) {
+            for(ClassCacheEntry entry : unit.entries) {
+                for(ClassCacheEntry dependency : entry.getDependencies()) {
+                    Unit dependencyUnit = units.get(getUnitKey(dependency));
+                    if(dependencyUnit != null && dependencyUnit != unit) {
+                        unit.dependencies.add(dependencyUnit);
+                    }
+                }
+            }
+        }
+        return new ReloadPlan(findComponents(units.values()));
+    }
+
+    protected static ResourceKey getUnitKey(ClassCacheEntry entry) {
+        if(entry.provider instanceof BatchClassProvider) {
+            return new ResourceKey(entry.provider, ((BatchClassProvider) entry.provider).getLoadGroup(entry.resourceName));
+        }
+        return new ResourceKey(entry.provider, entry.resourceName);
+    }
+
+    /**
+     * Finds the strongly connected components of the dependency graph of the given units with Tarjan's algorithm,
+     * without recursion, so that deep graphs can't overflow the stack. It finds each component after every component
+     * it depends on, so they come out in dependency order.
+     */
+    protected static List<Component> findComponents(Collection<Unit> units) {
+        List<Component> components = new ArrayList<Component>();
+        Map<Unit, Component> componentOf = new HashMap<Unit, Component>();
+        Deque<Unit> stack = new ArrayDeque<Unit>();
+        Deque<Unit> path = new ArrayDeque<Unit>();
+        Deque<Iterator<Unit>> pending = new ArrayDeque<Iterator<Unit>>();
+        int index = 0;
+        for(Unit root : units) {
+            if(root.index >= 0) {
+                continue;
+            }
+            index = visit(root, index, stack, path, pending);
+            while(!path.isEmpty()) {
+                Unit unit = path.peek();
+                Iterator<Unit> dependencies = pending.peek();
+                if(dependencies.hasNext()) {
+                    Unit dependency = dependencies.next();
+                    if(dependency.index < 0) {
+                        index = visit(dependency, index, stack, path, pending);
+                    } else if(dependency.onStack) {
+                        unit.lowLink = Math.min(unit.lowLink, dependency.index);
+                    }
+                    continue;
+                }
+                path.pop();
+                pending.pop();
+                if(!path.isEmpty()) {
+                    path.peek().lowLink = Math.min(path.peek().lowLink, unit.lowLink);
+                }
+                if(unit.lowLink == unit.index) {
+                    List<Unit> members = new ArrayList<Unit>();
+                    Unit member;
+                    do {
+                        member = stack.pop();
+                        member.onStack = false;
+                        members.add(member);
+                    } while(member != unit);
+                    Collections.reverse(members);
+                    Component component = new Component(components.size(), members, componentOf);
+                    for(Unit m : members) {
+                        componentOf.put(m, component);
+                    }
+                    components.add(component);
+                }
+            }
+        }
+        return components;
+    }
+
+    private static int visit(Unit unit, int index, Deque<Unit> stack, Deque<Unit> path, Deque<Iterator<Unit>> pending) {
+        unit.index = index;
+        unit.lowLink = index;
+        stack.push(unit);
+        unit.onStack = true;
+        path.push(unit);
+        pending.push(unit.dependencies.iterator());
+        return index + 1;
+    }
+
+    /**
+     * @return the components to reload, each one after the components it depends on.
+     */
+    public List<Component> getComponents() {
+        return components;
+    }
+
+    /**
+     * @return the components grouped by level: each level only depends on the previous ones.
+     */
+    public List<List<Component>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return the names of the classes to reload, in the order of the components.
+     */
+    public List<String> getClassNames() {
+        List<String> classNames = new ArrayList<String>();
+        for(Component component : components) {
+            classNames.addAll(component.getClassNames());
+        }
+        return classNames;
+    }
+
+    public boolean isEmpty() {
+        return components.isEmpty();
+    }
+
+    /**
+     * @return a description of the plan, one component per line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Reload of ").append(getClassNames().size()).append(" classes in ").append(components.size())
+          .append(" components over ").append(levels.size()).append(" levels");
+        for(Component component : components) {
+            sb.append("\n  ").append(component);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resources that depend on each other, that are reloaded together.
+     */
+    public static class Component {
+
+        protected final int index;
+        protected final int level;
+        protected final List<ClassCacheEntry> entries = new ArrayList<ClassCacheEntry>();
+        protected final Set<String> resourceNames = new LinkedHashSet<String>();
+        protected final Set<Component> dependencies = new LinkedHashSet<Component>();
+        protected final boolean cycle;
+
+        protected Component(int index, List<Unit> units, Map<Unit, Component> componentOf) {
+            this.index = index;
+            this.cycle = units.size() > 1;
+            //Resources of the same provider next to each other, so that batch providers load them together
+            Map<ClassProvider, List<ClassCacheEntry>> byProvider = new LinkedHashMap<ClassProvider, List<ClassCacheEntry>>();
+            int level = 0;
+            for(Unit unit : units) {
+                List<ClassCacheEntry> providerEntries = byProvider.get(unit.provider);
+                if(providerEntries == null) {
+                    providerEntries = new ArrayList<ClassCacheEntry>();
+                    byProvider.put(unit.provider, providerEntries);
+                }
+                providerEntries.addAll(unit.entries);
+                resourceNames.addAll(unit.resourceNames);
+                for(Unit dependency : unit.dependencies) {
+                    Component component = componentOf.get(dependency);
+                    if(component != null) {
+                        dependencies.add(component);
+                        level = Math.max(level, component.level + 1);
+                    }
+                }
+            }
+            for(List<ClassCacheEntry> providerEntries : byProvider.values()) {
+                entries.addAll(providerEntries);
+            }
+            this.level = level;
+        }
+
+        /**
+         * @return the position of this component in the plan.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public List<ClassCacheEntry> getEntries() {
+            return Collections.unmodifiableList(entries);
+        }
+
+        public List<String> getClassNames() {
+            List<String> classNames = new ArrayList<String>(entries.size());
+            for(ClassCacheEntry entry : entries) {
+                classNames.add(entry.className);
+            }
+            return classNames;
+        }
+
+        public Set<String> getResourceNames() {
+            return Collections.unmodifiableSet(resourceNames);
+        }
+
+        /**
+         * @return the components that must be reloaded before this one.
+         */
+        public Set<Component> getDependencies() {
+            return Collections.unmodifiableSet(dependencies);
+        }
+
+        /**
+         * @return true if the component groups resources that depend on each other.
+         */
+        public boolean isCycle() {
+            return cycle;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('#').append(index).append(" (level ").append(level).append(") ").append(getClassNames())
+              .append(" from ").append(resourceNames);
+            if(!dependencies.isEmpty()) {
+                sb.append(" after");
+                for(Component dependency : dependencies) {
+                    sb.append(" #").append(dependency.index);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The entries of a resource, or of a group of resources of a batch provider: a node of the dependency graph.
+     */
+    protected static class Unit {
+        protected final ClassProvider provider;
+        protected final List<ClassCacheEntry> entries = new ArrayList<ClassCacheEntry>();
+        protected final Set<String> resourceNames = new LinkedHashSet<String>();
+        protected final Set<Unit> dependencies = new LinkedHashSet<Unit>();
+        protected int index = -1;
+        protected int lowLink;
+        protected boolean onStack;
+
+        protected Unit(ClassProvider provider) {
+            this.provider = provider;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.util.Collection;
+
+/**
+ * Receives timed events from the hot paths of a {@link ClassRepository} and of its providers, e.g. to collect metrics
+ * (see {@link RepositoryMetrics}). Register it with {@link ClassRepository#withListener(RepositoryListener)}; when no
+ * listener is registered, no event is created and no time is measured.
+ *
+ * Methods are called synchronously, possibly by many threads at once, in the middle of class loading: they must be
+ * fast, thread safe, and must not throw nor load classes through the repository. All times are in nanoseconds.
+ */
+public interface RepositoryListener {
+
+    enum LookupOutcome {
+        /** Found by one of the repository's class loaders. */
+        CLASS_LOADER,
+        /** Found in the repository's cache. */
+        CACHE_HIT,
+        /** Not in the cache, loaded from a provider (or waited for another thread to load it). */
+        LOADED,
+        NOT_FOUND
+    }
+
+    /**
+     * A call to {@link ClassRepository#getClass(String)} completed. Lookups made while loading another class are
+     * reported too, and their time is included in the time of the outer lookup.
+     */
+    default void classLookedUp(String className, LookupOutcome outcome, long nanos) {}
+
+    /**
+     * A provider was asked for the resource of a class or for a resource by path.
+     * @param name the name of the class or the path of the resource.
+     * @param found whether the provider had it.
+     */
+    default void resourceResolved(ClassProvider provider, String name, boolean found, long nanos) {}
+
+    /**
+     * A provider started compiling the given resources.
+     */
+    default void compileStarted(ClassProvider provider, Collection<String> resourceNames) {}
+
+    /**
+     * A compilation started with {@link #compileStarted(ClassProvider, Collection)} ended.
+     * @param classCount the number of classes produced.
+     * @param successful false if the compiler reported errors.
+     */
+    default void compileFinished(ClassProvider provider, Collection<String> resourceNames, int classCount, long nanos, boolean successful) {}
+
+    /**
+     * A class was defined from its bytecode.
+     */
+    default void classDefined(String className, int byteCount, long nanos) {}
+
+    /**
+     * Changed classes are about to be reloaded, together with the classes depending on them, following the given
+     * plan.
+     */
+    default void reloadPlanned(ReloadPlan plan) {}
+
+    /**
+     * Changed classes were reloaded, together with the classes depending on them.
+     * @param classNames the classes that were reloaded; their number is the size of the cascade.
+     */
+    default void classesReloaded(Collection<String> classNames, long nanos) {}
+
+    /**
+     * A background reload (see {@link ClassRepository#withBackgroundReload(boolean)}) failed, so the classes keep
+     * their current version.
+     * @param classNames the classes that were being reloaded.
+     */
+    default void reloadFailed(Collection<String> classNames, Throwable failure) {}
+
+    /**
+     * Classes were evicted from a bounded cache (see {@link ClassRepository#withMaximumCacheSize(long)}).
+     * @param classNames the least recently used class, and the cached classes that depended on it.
+     */
+    default void classesEvicted(Collection<String> classNames) {}
+
+    /**
+     * Classes that had been removed from the cache, because they were reloaded or evicted, were garbage collected,
+     * i.e. the JVM unloaded them and freed their metaspace. Only reported after the repository notices it (see
+     * {@link ClassRepository#getUnloadedClassCount()}).
+     */
+    default void classesUnloaded(int count) {}
+
+}
@@ -0,0 +1,316 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link RepositoryListener} that keeps counters and time histograms, meant to be polled (e.g. by a metrics
+ * exporter). Recording an event only increments a few {@link LongAdder}s, so it stays cheap even when many threads load
+ * classes at once.
+ */
+public class RepositoryMetrics implements RepositoryListener {
+
+    protected final Map<LookupOutcome, Histogram> lookups = new EnumMap<LookupOutcome, Histogram>(LookupOutcome.class);
+    protected final ConcurrentMap<ClassProvider, Histogram> resolutions = new ConcurrentHashMap<ClassProvider, Histogram>();
+    protected final LongAdder resourcesFound = new LongAdder();
+    protected final LongAdder resourcesNotFound = new LongAdder();
+    protected final Histogram compiles = new Histogram();
+    protected final LongAdder compileFailures = new LongAdder();
+    protected final LongAdder compiledClasses = new LongAdder();
+    protected final LongAdder compilesInProgress = new LongAdder();
+    protected final Histogram defines = new Histogram();
+    protected final LongAdder definedBytes = new LongAdder();
+    protected final Histogram reloads = new Histogram();
+    protected final Histogram reloadSizes = new Histogram();
+    protected final LongAdder reloadFailures = new LongAdder();
+    protected final LongAdder evictedClasses = new LongAdder();
+    protected final LongAdder unloadedClasses = new LongAdder();
+
+    public RepositoryMetrics() {
+        for(LookupOutcome outcome : LookupOutcome.values()) {
+            lookups.put(outcome, new Histogram());
+        }
+    }
+
+    @Override
+    public void classLookedUp(String className, LookupOutcome outcome, long nanos) {
+        lookups.get(outcome).record(nanos);
+    }
+
+    @Override
+    public void resourceResolved(ClassProvider provider, String name, boolean found, long nanos) {
+        Histogram histogram = resolutions.get(provider);
+        if(histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = resolutions.putIfAbsent(provider, histogram);
+            if(existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(nanos);
+        (found ? resourcesFound : resourcesNotFound).increment();
+    }
+
+    @Override
+    public void compileStarted(ClassProvider provider, Collection<String> resourceNames) {
+        compilesInProgress.increment();
+    }
+
+    @Override
+    public void compileFinished(ClassProvider provider, Collection<String> resourceNames, int classCount, long nanos, boolean successful) {
+        compilesInProgress.decrement();
+        compiles.record(nanos);
+        compiledClasses.add(classCount);
+        if(!successful) {
+            compileFailures.increment();
+        }
+    }
+
+    @Override
+    public void classDefined(String className, int byteCount, long nanos) {
+        defines.record(nanos);
+        definedBytes.add(byteCount);
+    }
+
+    @Override
+    public void classesReloaded(Collection<String> classNames, long nanos) {
+        reloads.record(nanos);
+        reloadSizes.record(classNames.size());
+    }
+
+    @Override
+    public void reloadFailed(Collection<String> classNames, Throwable failure) {
+        reloadFailures.increment();
+    }
+
+    @Override
+    public void classesEvicted(Collection<String> classNames) {
+        evictedClasses.add(classNames.size());
+    }
+
+    @Override
+    public void classesUnloaded(int count) {
+        unloadedClasses.add(count);
+    }
+
+    /**
+     * @return the times of the lookups with the given outcome.
+     */
+    public Histogram getLookups(LookupOutcome outcome) {
+        return lookups.get(outcome);
+    }
+
+    /**
+     * @return the number of lookups served by the class loaders or by the cache.
+     */
+    public long getHits() {
+        return lookups.get(LookupOutcome.CLASS_LOADER).getCount() + lookups.get(LookupOutcome.CACHE_HIT).getCount();
+    }
+
+    /**
+     * @return the number of lookups that had to go to the providers, whether they found the class or not.
+     */
+    public long getMisses() {
+        return lookups.get(LookupOutcome.LOADED).getCount() + lookups.get(LookupOutcome.NOT_FOUND).getCount();
+    }
+
+    /**
+     * @return the times of the resource resolutions of the given provider, or null if it never resolved any.
+     */
+    public Histogram getResolutions(ClassProvider provider) {
+        return resolutions.get(provider);
+    }
+
+    public Map<ClassProvider, Histogram> getResolutions() {
+        return Collections.unmodifiableMap(resolutions);
+    }
+
+    public long getResourcesFound() {
+        return resourcesFound.sum();
+    }
+
+    public long getResourcesNotFound() {
+        return resourcesNotFound.sum();
+    }
+
+    public Histogram getCompiles() {
+        return compiles;
+    }
+
+    public long getCompileFailures() {
+        return compileFailures.sum();
+    }
+
+    public long getCompiledClasses() {
+        return compiledClasses.sum();
+    }
+
+    public long getCompilesInProgress() {
+        return compilesInProgress.sum();
+    }
+
+    public Histogram getDefines() {
+        return defines;
+    }
+
+    public long getDefinedBytes() {
+        return definedBytes.sum();
+    }
+
+    public Histogram getReloads() {
+        return reloads;
+    }
+
+    /**
+     * @return the number of classes reloaded by each reload cascade.
+     */
+    public Histogram getReloadSizes() {
+        return reloadSizes;
+    }
+
+    public long getReloadFailures() {
+        return reloadFailures.sum();
+    }
+
+    public long getEvictedClasses() {
+        return evictedClasses.sum();
+    }
+
+    /**
+     * @return the number of classes removed from the cache that the JVM is known to have unloaded.
+     */
+    public long getUnloadedClasses() {
+        return unloadedClasses.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for(Map.Entry<LookupOutcome, Histogram> entry : lookups.entrySet()) {
+            result.append("lookups ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        result.append("resources found: ").append(getResourcesFound()).append(", not found: ").append(getResourcesNotFound()).append("\n");
+        result.append("compiles: ").append(compiles).append(", failures: ").append(getCompileFailures())
+              .append(", classes: ").append(getCompiledClasses()).append("\n");
+        result.append("defines: ").append(defines).append(", bytes: ").append(getDefinedBytes()).append("\n");
+        result.append("reloads: ").append(reloads).append(", sizes: ").append(reloadSizes.getSnapshot().toString(false))
+              .append(", failures: ").append(getReloadFailures()).append("\n");
+        result.append("evicted classes: ").append(getEvictedClasses()).append(", unloaded: ").append(getUnloadedClasses());
+        return result.toString();
+    }
+
+    /**
+     * A histogram of non-negative values with buckets at powers of two, so percentiles are accurate within a factor of
+     * two. Recording a value takes no lock.
+     */
+    public static class Histogram {
+        protected static final int BUCKETS = 64;
+
+        protected final LongAdder[] buckets = new LongAdder[BUCKETS];
+        protected final LongAdder count = new LongAdder();
+        protected final LongAdder sum = new LongAdder();
+        protected final AtomicLong max = new AtomicLong();
+
+        public Histogram() {
+            for(int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            if(value < 0) {
+                value = 0;
+            }
+            //Bucket i holds the values < 2^i not in a lower bucket; 0 is alone in bucket 0
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            count.increment();
+            sum.add(value);
+            long currentMax = max.get();
+            while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return a consistent view of the histogram at this time. Values recorded while taking it may or may not
+         * be included.
+         */
+        public Snapshot getSnapshot() {
+            long[] counts = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return new Snapshot(counts, sum.sum(), max.get());
+        }
+
+        @Override
+        public String toString() {
+            return getSnapshot().toString();
+        }
+    }
+
+    public static class Snapshot {
+        protected final long[] buckets;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        public Snapshot(long[] buckets, long sum, long max) {
+            this.buckets = buckets;
+            long count = 0;
+            for(long bucket : buckets) {
+                count += bucket;
+            }
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return an upper bound of the given percentile of the recorded values, or 0 if there are none.
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max, i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return toString(true);
+        }
+
+        /**
+         * @param nanos whether the values are times in nanoseconds, to be shown in microseconds.
+         */
+        public String toString(boolean nanos) {
+            if(nanos) {
+                return "count: " + count + ", mean: " + TimeUnit.NANOSECONDS.toMicros((long) getMean()) +
+                       "us, p50: " + TimeUnit.NANOSECONDS.toMicros(getPercentile(50)) +
+                       "us, p99: " + TimeUnit.NANOSECONDS.toMicros(getPercentile(99)) +
+                       "us, max: " + TimeUnit.NANOSECONDS.toMicros(max) + "us";
+            }
+            return "count: " + count + ", mean: " + getMean() + ", p50: " + getPercentile(50) +
+                   ", p99: " + getPercentile(99) + ", max: " + max;
+        }
+    }
+}
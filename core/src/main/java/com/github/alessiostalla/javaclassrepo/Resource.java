@@ -1,8 +1,13 @@
 package com.github.alessiostalla.javaclassrepo;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 public interface Resource extends Closeable {
 
@@ -10,8 +15,46 @@ public interface Resource extends Closeable {
 
     boolean isNewerThan(long timestamp);
 
+    /**
+     * @return when the content of the resource was last modified, as reported by its storage, or 0 if unknown.
+     * Together with {@link #getContentSize()}, it tells whether the content has changed since it was read, even when
+     * the storage records modification times with a coarse clock.
+     */
+    default long getLastModified() {
+        return 0;
+    }
+
+    /**
+     * @return the size of the content of the resource in bytes, or -1 if unknown.
+     */
+    default long getContentSize() {
+        return -1;
+    }
+
     InputStream getInputStream();
 
+    /**
+     * @return a channel to read the content of the resource. Implementations backed by local files return a
+     * {@link java.nio.channels.FileChannel}, which clients can read into their own (e.g. reused or direct) buffers or
+     * map. The caller must close it.
+     */
+    default ReadableByteChannel getChannel() throws IOException {
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * @return the whole content of the resource, ready to be read. It may be a read-only view of a memory-mapped
+     * file, so don't hold on to it longer than needed.
+     */
+    default ByteBuffer getByteBuffer() throws IOException {
+        InputStream in = getInputStream();
+        try {
+            return ByteBuffer.wrap(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
     boolean isClass();
 
     Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException;
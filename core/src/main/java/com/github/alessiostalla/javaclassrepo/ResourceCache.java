@@ -0,0 +1,270 @@
+package com.github.alessiostalla.javaclassrepo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the content of the resources returned by {@link ClassRepository#getResource(String)}, by path, within a
+ * budget of bytes, so that reading a resource again costs a map lookup instead of resolving and opening it. The
+ * content is kept on the heap or, optionally, in direct buffers outside of it; either way, it is handed out as
+ * read-only views, without copying. When the budget is exceeded, the least recently used resources are dropped.
+ *
+ * The cache does not know when resources change: the repository invalidates them as its change detector reports
+ * changes, and checks the others with {@link Resource#isNewerThan(long)} (see
+ * {@link ClassRepository#withResourceCache(long, boolean)}).
+ */
+public class ResourceCache {
+
+    protected final long maximumBytes;
+    protected final boolean offHeap;
+    protected final Cache<String, CachedResource> resources;
+
+    /**
+     * @param maximumBytes the maximum total size of the cached content.
+     * @param offHeap whether to keep the content in direct buffers, outside of the Java heap.
+     */
+    public ResourceCache(long maximumBytes, boolean offHeap) {
+        this.maximumBytes = maximumBytes;
+        this.offHeap = offHeap;
+        //A single segment, as Guava splits the budget among segments and would evict at once any resource larger than
+        //the share of its segment
+        this.resources = CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(maximumBytes).weigher(new Weigher<String, CachedResource>() {
+            @Override
+            public int weigh(String path, CachedResource resource) {
+                return resource.getSize();
+            }
+        }).build();
+    }
+
+    /**
+     * @return the cached resource with the given path, or null. It may be out of date.
+     */
+    public CachedResource get(String path) {
+        return resources.getIfPresent(path);
+    }
+
+    /**
+     * Reads the content of a resource and caches it, unless it is larger than the whole budget.
+     * @return the cached resource, or null if the resource was not cached.
+     */
+    public CachedResource put(String path, Resource resource) throws IOException {
+        long timestamp = System.currentTimeMillis();
+        //Before reading, so that a change made while reading is seen as a change afterwards
+        long lastModified = resource.getLastModified();
+        long size = resource.getContentSize();
+        ByteBuffer copy;
+        try {
+            ByteBuffer content = resource.getByteBuffer();
+            if(content.remaining() > maximumBytes) {
+                return null;
+            }
+            copy = offHeap ? ByteBuffer.allocateDirect(content.remaining()) : ByteBuffer.allocate(content.remaining());
+            copy.put(content).flip();
+        } finally {
+            resource.close();
+        }
+        CachedResource cached = new CachedResource(resource, copy.asReadOnlyBuffer(), timestamp, lastModified, size);
+        resources.put(path, cached);
+        return cached;
+    }
+
+    /**
+     * Removes the cached resources that come from the given resource of a provider, or from any of its resources if
+     * the name is null. Resources of other providers cached under the same path are removed too, as they might now
+     * be shadowed.
+     */
+    public void invalidate(ClassProvider provider, String resourceName) {
+        for(Iterator<Map.Entry<String, CachedResource>> it = resources.asMap().entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, CachedResource> entry = it.next();
+            Resource resource = entry.getValue().resource;
+            if((resource.getProvider() == provider && (resourceName == null || resourceName.equals(resource.getName()))) ||
+               entry.getKey().equals(resourceName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidate(String path) {
+        resources.invalidate(path);
+    }
+
+    public void invalidateAll() {
+        resources.invalidateAll();
+    }
+
+    /**
+     * @return the number of cached resources.
+     */
+    public long size() {
+        return resources.size();
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * A resource whose content is in memory. Class loading and change checks are delegated to the resource it was
+     * read from.
+     */
+    public static class CachedResource implements Resource {
+
+        protected final Resource resource;
+        protected final ByteBuffer content;
+        /**
+         * When the content started being read.
+         */
+        protected final long timestamp;
+        /**
+         * The modification time and the size of the resource when its content was read, or 0 and -1 if unknown.
+         */
+        protected final long lastModified;
+        protected final long size;
+        protected volatile long lastChecked;
+
+        public CachedResource(Resource resource, ByteBuffer content, long timestamp, long lastModified, long size) {
+            this.resource = resource;
+            this.content = content;
+            this.timestamp = timestamp;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.lastChecked = timestamp;
+        }
+
+        /**
+         * Checks whether the resource has changed or disappeared since it was read, at most once per the given
+         * interval. The resource has changed if its modification time or its size differ from when it was read;
+         * resources that don't report them are checked against the time the content was read instead.
+         */
+        public boolean isStale(long checkInterval) {
+            long now = System.currentTimeMillis();
+            if(checkInterval > 0 && now - lastChecked < checkInterval) {
+                return false;
+            }
+            lastChecked = now;
+            try {
+                if(!resource.exists()) {
+                    return true;
+                }
+                if(lastModified == 0 && size < 0) {
+                    return resource.isNewerThan(timestamp);
+                }
+                return resource.getLastModified() != lastModified || resource.getContentSize() != size;
+            } finally {
+                //Resources may cache what they know about their file until closed
+                IOUtils.closeQuietly(resource);
+            }
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public boolean isNewerThan(long timestamp) {
+            return resource.isNewerThan(timestamp);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public long getContentSize() {
+            return size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            final ByteBuffer buffer = content.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if(len == 0) {
+                        return 0;
+                    }
+                    if(!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int count = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, count);
+                    return count;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+                    buffer.position(buffer.position() + count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+
+        /**
+         * @return a read-only view of the cached content, with its own position and limit.
+         */
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return content.duplicate();
+        }
+
+        public int getSize() {
+            return content.capacity();
+        }
+
+        @Override
+        public boolean isClass() {
+            return resource.isClass();
+        }
+
+        @Override
+        public Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException {
+            return resource.loadClasses(repository);
+        }
+
+        /**
+         * Does nothing: the content stays cached.
+         */
+        @Override
+        public void close() {}
+
+        @Override
+        public ClassProvider getProvider() {
+            return resource.getProvider();
+        }
+
+        @Override
+        public String getName() {
+            return resource.getName();
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " (cached " + resource + ")";
+        }
+    }
+}
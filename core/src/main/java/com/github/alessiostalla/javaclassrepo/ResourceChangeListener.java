@@ -0,0 +1,18 @@
+package com.github.alessiostalla.javaclassrepo;
+
+/**
+ * Receives notifications of changes to the resources of a {@link ClassProvider}.
+ */
+public interface ResourceChangeListener {
+
+    enum ChangeType { CREATED, MODIFIED, DELETED }
+
+    /**
+     * @param provider the provider owning the resource.
+     * @param resourceName the name of the resource, as returned by {@link Resource#getName()}, or null if the
+     *                     changes could not be tracked precisely and any resource of the provider may have changed.
+     * @param type the kind of change.
+     */
+    void resourceChanged(ClassProvider provider, String resourceName, ChangeType type);
+
+}
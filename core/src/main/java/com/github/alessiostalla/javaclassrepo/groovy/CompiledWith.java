@@ -0,0 +1,20 @@
+package com.github.alessiostalla.javaclassrepo.groovy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Added by {@link GroovyClassProvider} to the classes it compiles, recording how they were compiled.
+ * @see GroovyCompilationProfile#getMode(Class)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CompiledWith {
+
+    GroovyCompilationProfile.Mode value();
+
+    boolean invokeDynamic() default false;
+
+}
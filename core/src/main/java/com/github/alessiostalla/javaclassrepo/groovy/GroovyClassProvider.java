@@ -1,21 +1,46 @@
 package com.github.alessiostalla.javaclassrepo.groovy;
 
+import com.github.alessiostalla.javaclassrepo.BatchClassProvider;
 import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.RepositoryListener;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSClassProvider;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSResource;
 import groovy.lang.GroovyClassLoader;
-import groovy.lang.GroovyCodeSource;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.tools.GroovyClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.*;
 
 /**
  * Created by alessio on 04/07/14.
+ *
+ * Scripts are compiled in a {@link CompilationUnit}, several at once when they are loaded as a batch (e.g. the
+ * scripts of a package, or the scripts reloaded together), so that references between them are resolved by the
+ * compiler instead of by loading each other through the repository. All the classes of a compilation are defined in
+ * a single pass.
  */
-public class GroovyClassProvider extends VFSClassProvider {
+public class GroovyClassProvider extends VFSClassProvider implements BatchClassProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroovyClassProvider.class);
+
+    protected final CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+    protected volatile GroovyCompilationProfile profile = new GroovyCompilationProfile();
 
     public GroovyClassProvider(FileObject root) {
         super(root);
@@ -31,23 +56,170 @@ public class GroovyClassProvider extends VFSClassProvider {
 
             @Override
             public Class[] loadClasses(final ClassRepository repository) throws ClassNotFoundException {
-                String className = getName().substring(0, getName().length() - ".groovy".length()).replace("/", ".");
-                GroovyClassLoader classLoader = createInnerLoader(repository);
-                GroovyCodeSource codeSource;
-                try {
-                    codeSource = new GroovyCodeSource(IOUtils.toString(getInputStream()), className, root.getURL().toString());
-                } catch (IOException e) {
-                    throw new ClassNotFoundException(className, e);
-                }
-                codeSource.setCachable(false);
-                Class<?> c = classLoader.parseClass(codeSource);
-                return new Class[] {c};
+                Class[] classes = GroovyClassProvider.this.loadClasses(Collections.singletonList(getName()), repository).get(getName());
+                return classes != null ? classes : new Class[0];
             }
         };
     }
 
+    /**
+     * Compiles the given scripts together and defines the resulting classes.
+     */
+    @Override
+    public Map<String, Class[]> loadClasses(Collection<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        return define(compile(new ArrayList<String>(resourceNames), repository), repository);
+    }
+
+    /**
+     * Compiles and loads together all the scripts in a package that the repository has not loaded yet. The loaded
+     * classes are put in the repository's cache.
+     * @return the loaded classes.
+     */
+    public Class[] loadPackage(String packageName, ClassRepository repository) throws ClassNotFoundException {
+        List<String> scripts = new ArrayList<String>();
+        String packagePath = packageName.replace(".", "/");
+        try {
+            FileObject folder = root.resolveFile(packagePath);
+            if(folder.exists()) {
+                for(FileObject child : folder.getChildren()) {
+                    String resourceName = root.getName().getRelativeName(child.getName());
+                    String className = getClassName(resourceName);
+                    if(className != null && child.getType() == FileType.FILE && !repository.getClassCache().containsKey(className)) {
+                        scripts.add(resourceName);
+                    }
+                }
+            }
+        } catch (FileSystemException e) {
+            throw new ClassNotFoundException("Could not list package " + packageName, e);
+        }
+        if(scripts.isEmpty()) {
+            return new Class[0];
+        }
+        long timestamp = System.currentTimeMillis();
+        List<Class> result = new ArrayList<Class>();
+        for(Map.Entry<String, Class[]> entry : loadClasses(scripts, repository).entrySet()) {
+            repository.cacheClasses(getResource(entry.getKey()), entry.getValue(), timestamp);
+            result.addAll(Arrays.asList(entry.getValue()));
+        }
+        return result.toArray(new Class[result.size()]);
+    }
+
+    /**
+     * Compiles the given scripts in a single compilation unit.
+     * @return the bytecode of the compiled classes (including closures and inner classes), by the name of the
+     * resource they were compiled from.
+     */
+    protected Map<String, Map<String, byte[]>> compile(List<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        RepositoryListener listener = repository.getListener();
+        long start = 0;
+        if(listener != null) {
+            listener.compileStarted(this, resourceNames);
+            start = System.nanoTime();
+        }
+        boolean successful = false;
+        int classCount = 0;
+        try {
+            GroovyClassLoader classLoader = createInnerLoader(repository);
+            CompilerConfiguration configuration = profile.createConfiguration(compilerConfiguration, classLoader);
+            CompilationUnit unit = new CompilationUnit(configuration, null, classLoader);
+            for(String resourceName : resourceNames) {
+                unit.addSource(new SourceUnit(resourceName, readScript(resourceName), configuration, classLoader, unit.getErrorCollector()));
+            }
+            unit.compile(Phases.CLASS_GENERATION);
+            Map<String, String> classResources = new HashMap<String, String>();
+            for(ModuleNode module : unit.getAST().getModules()) {
+                for(ClassNode classNode : module.getClasses()) {
+                    classResources.put(classNode.getName(), module.getContext().getName());
+                }
+            }
+            Map<String, Map<String, byte[]>> byResource = new LinkedHashMap<String, Map<String, byte[]>>();
+            for(String resourceName : resourceNames) {
+                byResource.put(resourceName, new LinkedHashMap<String, byte[]>());
+            }
+            for(Object output : unit.getClasses()) {
+                GroovyClass groovyClass = (GroovyClass) output;
+                String name = groovyClass.getName();
+                String resourceName = classResources.get(name);
+                if(resourceName == null && name.indexOf('$') > 0) {
+                    //Closures and inner classes belong to the script of their outermost class
+                    resourceName = classResources.get(name.substring(0, name.indexOf('$')));
+                }
+                Map<String, byte[]> resourceCode = byResource.get(resourceName);
+                if(resourceCode == null) {
+                    resourceCode = byResource.get(resourceNames.get(0));
+                }
+                resourceCode.put(name, groovyClass.getBytes());
+                classCount++;
+            }
+            successful = classCount > 0;
+            return byResource;
+        } catch (CompilationFailedException e) {
+            throw new ClassNotFoundException("Could not compile " + resourceNames, e);
+        } catch (IOException e) {
+            throw new ClassNotFoundException("Could not read " + resourceNames, e);
+        } finally {
+            if(listener != null) {
+                listener.compileFinished(this, resourceNames, classCount, System.nanoTime() - start, successful);
+            }
+        }
+    }
+
+    protected String readScript(String resourceName) throws IOException {
+        InputStream inputStream = root.resolveFile(resourceName).getContent().getInputStream();
+        try {
+            return IOUtils.toString(inputStream, compilerConfiguration.getSourceEncoding());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Defines the given bytecode in a single pass.
+     * @return the defined classes, by the name of the resource they were compiled from.
+     */
+    protected Map<String, Class[]> define(Map<String, Map<String, byte[]>> code, ClassRepository repository) {
+        Map<String, byte[]> allCode = new LinkedHashMap<String, byte[]>();
+        for(Map<String, byte[]> resourceCode : code.values()) {
+            allCode.putAll(resourceCode);
+        }
+        logger.debug("Defining " + allCode.keySet());
+        Map<String, Class> classes = repository.asClassLoader().defineClasses(allCode);
+        Map<String, Class[]> result = new LinkedHashMap<String, Class[]>();
+        for(Map.Entry<String, Map<String, byte[]>> entry : code.entrySet()) {
+            Class[] resourceClasses = new Class[entry.getValue().size()];
+            int i = 0;
+            for(String className : entry.getValue().keySet()) {
+                resourceClasses[i++] = classes.get(className);
+            }
+            result.put(entry.getKey(), resourceClasses);
+        }
+        return result;
+    }
+
+    /**
+     * @return the configuration shared by all the compilations. It can be modified before loading any class.
+     */
+    public CompilerConfiguration getCompilerConfiguration() {
+        return compilerConfiguration;
+    }
+
+    /**
+     * Sets how scripts are compiled from now on. Classes that are already loaded keep their mode until reloaded.
+     */
+    public GroovyClassProvider withProfile(GroovyCompilationProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    public GroovyCompilationProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the class loader the compiler resolves the classes referenced by the scripts with.
+     */
     protected GroovyClassLoader createInnerLoader(final ClassRepository repository) {
-        return new GroovyClassLoader(repository.asClassLoader());
+        return new GroovyClassLoader(repository.asClassLoader(), compilerConfiguration);
         /*return new URLClassLoader(new URL[0]) {
             @Override
             public Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
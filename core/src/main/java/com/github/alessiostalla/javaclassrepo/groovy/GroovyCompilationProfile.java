@@ -0,0 +1,199 @@
+package com.github.alessiostalla.javaclassrepo.groovy;
+
+import groovy.transform.CompilationUnitAware;
+import groovy.transform.CompileStatic;
+import groovy.transform.TypeChecked;
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How {@link GroovyClassProvider} compiles scripts: with dynamic dispatch, type checked, or statically compiled (as if
+ * annotated with {@link TypeChecked} or {@link CompileStatic}), globally or per package; the target bytecode version;
+ * and whether to use invokedynamic. The mode each class was compiled with is recorded with {@link CompiledWith}.
+ */
+public class GroovyCompilationProfile {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroovyCompilationProfile.class);
+
+    /**
+     * The runtime support for invokedynamic, only included in the "indy" Groovy jar.
+     */
+    public static final String INDY_SUPPORT_CLASS = "org.codehaus.groovy.vmplugin.v7.IndyInterface";
+
+    public enum Mode {
+        DYNAMIC, TYPE_CHECKED, STATIC
+    }
+
+    protected Mode mode;
+    /**
+     * Modes by package; the most specific package of a class wins.
+     */
+    protected final Map<String, Mode> packageModes = new LinkedHashMap<String, Mode>();
+    protected String targetBytecode;
+    protected boolean invokeDynamic;
+
+    public GroovyCompilationProfile() {
+        this(Mode.DYNAMIC);
+    }
+
+    public GroovyCompilationProfile(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the mode of the classes in packages with no mode of their own.
+     */
+    public GroovyCompilationProfile withMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets the mode of the classes in a package and its subpackages.
+     */
+    public GroovyCompilationProfile withPackageMode(String packageName, Mode mode) {
+        packageModes.put(packageName, mode);
+        return this;
+    }
+
+    /**
+     * @param targetBytecode a version accepted by {@link CompilerConfiguration#setTargetBytecode(String)}, e.g. "1.7".
+     */
+    public GroovyCompilationProfile withTargetBytecode(String targetBytecode) {
+        this.targetBytecode = targetBytecode;
+        return this;
+    }
+
+    /**
+     * Makes dynamic calls use invokedynamic instead of call site caching. This requires the "indy" Groovy jar at
+     * runtime; without it, the setting is ignored.
+     */
+    public GroovyCompilationProfile withInvokeDynamic(boolean invokeDynamic) {
+        this.invokeDynamic = invokeDynamic;
+        return this;
+    }
+
+    public Mode getMode(String className) {
+        Mode result = mode;
+        int matchLength = -1;
+        for(Map.Entry<String, Mode> entry : packageModes.entrySet()) {
+            String packageName = entry.getKey();
+            if(packageName.length() > matchLength && className.startsWith(packageName + ".")) {
+                result = entry.getValue();
+                matchLength = packageName.length();
+            }
+        }
+        return result;
+    }
+
+    public String getTargetBytecode() {
+        return targetBytecode;
+    }
+
+    public boolean isInvokeDynamic() {
+        return invokeDynamic;
+    }
+
+    /**
+     * @return the mode a class was compiled with by a {@link GroovyClassProvider}, or null if it was not.
+     */
+    public static Mode getMode(Class<?> theClass) {
+        CompiledWith compiledWith = theClass.getAnnotation(CompiledWith.class);
+        return compiledWith != null ? compiledWith.value() : null;
+    }
+
+    /**
+     * Creates the configuration of a compilation.
+     * @param base the configuration to start from; it is not modified.
+     * @param classLoader the class loader the compiled classes will see, used to check for invokedynamic support.
+     */
+    public CompilerConfiguration createConfiguration(CompilerConfiguration base, ClassLoader classLoader) {
+        CompilerConfiguration configuration = new CompilerConfiguration(base);
+        //The copy constructor does not copy the customizers
+        for(CompilationCustomizer customizer : base.getCompilationCustomizers()) {
+            configuration.addCompilationCustomizers(customizer);
+        }
+        if(targetBytecode != null) {
+            configuration.setTargetBytecode(targetBytecode);
+        }
+        boolean indy = invokeDynamic && isInvokeDynamicSupported(classLoader);
+        if(indy) {
+            configuration.getOptimizationOptions().put("indy", true);
+            configuration.getOptimizationOptions().put("int", false);
+        }
+        //Customizers hold per-compilation state, so each configuration gets its own
+        configuration.addCompilationCustomizers(new ModeCustomizer(indy));
+        return configuration;
+    }
+
+    protected boolean isInvokeDynamicSupported(ClassLoader classLoader) {
+        try {
+            Class.forName(INDY_SUPPORT_CLASS, false, classLoader);
+            return true;
+        } catch (ClassNotFoundException e) {
+            logger.warn("invokedynamic requested, but the Groovy runtime does not support it; using call sites");
+            return false;
+        } catch (LinkageError e) {
+            logger.warn("invokedynamic requested, but the Groovy runtime does not support it; using call sites", e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies the mode of each class and records it on the class.
+     */
+    protected class ModeCustomizer extends CompilationCustomizer implements CompilationUnitAware {
+
+        protected final boolean invokeDynamic;
+        protected final ASTTransformationCustomizer typeChecked = new ASTTransformationCustomizer(TypeChecked.class);
+        protected final ASTTransformationCustomizer compileStatic = new ASTTransformationCustomizer(CompileStatic.class);
+
+        public ModeCustomizer(boolean invokeDynamic) {
+            super(CompilePhase.INSTRUCTION_SELECTION);
+            this.invokeDynamic = invokeDynamic;
+        }
+
+        @Override
+        public void setCompilationUnit(CompilationUnit unit) {
+            typeChecked.setCompilationUnit(unit);
+            compileStatic.setCompilationUnit(unit);
+        }
+
+        @Override
+        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) throws CompilationFailedException {
+            Mode mode = getMode(classNode.getName());
+            if(mode == Mode.STATIC) {
+                compileStatic.call(source, context, classNode);
+            } else if(mode == Mode.TYPE_CHECKED) {
+                typeChecked.call(source, context, classNode);
+            }
+            ClassNode annotationType = ClassHelper.make(CompiledWith.class);
+            if(classNode.getAnnotations(annotationType).isEmpty()) {
+                AnnotationNode annotation = new AnnotationNode(annotationType);
+                annotation.setRuntimeRetention(true);
+                annotation.addMember("value", new PropertyExpression(new ClassExpression(ClassHelper.make(Mode.class)), mode.name()));
+                if(invokeDynamic) {
+                    annotation.addMember("invokeDynamic", ConstantExpression.TRUE);
+                }
+                classNode.addAnnotation(annotation);
+            }
+        }
+    }
+}
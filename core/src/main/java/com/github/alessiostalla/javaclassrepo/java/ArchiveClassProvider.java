@@ -0,0 +1,515 @@
+package com.github.alessiostalla.javaclassrepo.java;
+
+import com.github.alessiostalla.javaclassrepo.BatchClassProvider;
+import com.github.alessiostalla.javaclassrepo.ClassProvider;
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.ListableClassProvider;
+import com.github.alessiostalla.javaclassrepo.NonExistingResource;
+import com.github.alessiostalla.javaclassrepo.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Serves the classes and resources of a JAR or ZIP archive on the local file system, without going through VFS. The
+ * archive is memory-mapped when first used, and the names in its central directory are put in a hash table of
+ * offsets into the mapping, so resolving a resource costs a hash lookup and no I/O. Stored entries are served as
+ * views of the mapping; deflated entries are inflated on each read.
+ *
+ * The archive is checked for changes at most once per check interval; when it has changed, it is mapped again, and
+ * its resources become newer than the classes loaded from the old one, so the repository reloads them. Replace
+ * archives by moving a new file over them (as build tools do) rather than by rewriting them in place, which would
+ * change the content under the old mapping.
+ *
+ * Classes are defined like those of {@link CompiledJavaClassProvider}, in one {@link
+ * CompiledJavaClassProvider.GenerationClassLoader generation} per repository and reload.
+ */
+public class ArchiveClassProvider implements ListableClassProvider, BatchClassProvider, ClassFileSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveClassProvider.class);
+
+    protected final File file;
+    protected final long checkInterval;
+    protected volatile Archive archive;
+    protected volatile long lastChecked;
+    protected final Map<ClassRepository, CompiledJavaClassProvider.GenerationClassLoader> generations =
+            new WeakHashMap<ClassRepository, CompiledJavaClassProvider.GenerationClassLoader>();
+
+    public ArchiveClassProvider(File file) {
+        this(file, 1000);
+    }
+
+    /**
+     * @param checkInterval the minimum time, in milliseconds, between two checks of the archive for changes.
+     */
+    public ArchiveClassProvider(File file, long checkInterval) {
+        this.file = file;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return the current content of the archive, opening it again if it has changed since the last check.
+     */
+    protected Archive getArchive() {
+        Archive current = archive;
+        long now = System.currentTimeMillis();
+        if(current != null && now - lastChecked < checkInterval) {
+            return current;
+        }
+        synchronized (this) {
+            current = archive;
+            if(current == null || now - lastChecked >= checkInterval) {
+                lastChecked = now;
+                if(current == null || current.isStale()) {
+                    current = open(current);
+                    archive = current;
+                }
+            }
+            return current;
+        }
+    }
+
+    protected Archive open(Archive previous) {
+        try {
+            return Archive.open(file);
+        } catch (FileNotFoundException e) {
+            logger.debug("Archive not found: " + file);
+            return Archive.missing(file);
+        } catch (IOException e) {
+            if(previous == null) {
+                throw new RuntimeException("Could not open archive " + file, e);
+            }
+            //Possibly still being written; the next check will try again
+            logger.warn("Could not open archive " + file + ", keeping the previous version", e);
+            return previous;
+        }
+    }
+
+    @Override
+    public ArchiveResource getResourceForClass(String className) {
+        return getResource(getResourceName(className));
+    }
+
+    @Override
+    public ArchiveResource getResource(String path) {
+        return new ArchiveResource(path);
+    }
+
+    @Override
+    public Collection<String> listResources() {
+        return getArchive().listNames();
+    }
+
+    @Override
+    public String getResourceName(String className) {
+        return className.replace('.', '/').concat(".class");
+    }
+
+    @Override
+    public String getClassName(String resourceName) {
+        if(!resourceName.endsWith(".class") || resourceName.startsWith("META-INF/")) {
+            return null;
+        }
+        return resourceName.substring(0, resourceName.length() - ".class".length()).replace('/', '.');
+    }
+
+    @Override
+    public ByteBuffer readClassFile(String className) throws IOException {
+        Archive archive = getArchive();
+        int entry = archive.find(getResourceName(className));
+        if(entry < 0) {
+            throw new FileNotFoundException(getResourceName(className) + " in " + file);
+        }
+        return archive.read(entry);
+    }
+
+    @Override
+    public Map<String, Class[]> loadClasses(Collection<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        Map<String, String> classNames = new LinkedHashMap<String, String>();
+        for(String resourceName : resourceNames) {
+            String className = getClassName(resourceName);
+            if(className == null) {
+                throw new ClassNotFoundException("Not a class file: " + resourceName);
+            }
+            classNames.put(className, resourceName);
+        }
+        Map<String, Class<?>> classes = defineClasses(classNames.keySet(), repository);
+        Map<String, Class[]> result = new LinkedHashMap<String, Class[]>();
+        for(Map.Entry<String, String> e : classNames.entrySet()) {
+            result.put(e.getValue(), new Class[] { classes.get(e.getKey()) });
+        }
+        return result;
+    }
+
+    /**
+     * Each package is a group, as classes can only access the package-private members of classes defined by the same
+     * class loader.
+     */
+    @Override
+    public String getLoadGroup(String resourceName) {
+        return resourceName.substring(0, resourceName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Defines the given classes in the current generation of the repository, or in a new one if any of them is
+     * already defined there.
+     */
+    protected Map<String, Class<?>> defineClasses(Collection<String> classNames, ClassRepository repository) throws ClassNotFoundException {
+        CompiledJavaClassProvider.GenerationClassLoader generation;
+        synchronized (generations) {
+            generation = generations.get(repository);
+            if(generation == null || generation.isAnyDefined(classNames)) {
+                generation = new CompiledJavaClassProvider.GenerationClassLoader(this, repository, generation != null ? generation.getNumber() + 1 : 1);
+                generations.put(repository, generation);
+            }
+        }
+        return generation.defineClasses(classNames);
+    }
+
+    public CompiledJavaClassProvider.GenerationClassLoader getGeneration(ClassRepository repository) {
+        synchronized (generations) {
+            return generations.get(repository);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveClassProvider(" + file + ")";
+    }
+
+    public class ArchiveResource implements Resource {
+
+        protected final String name;
+
+        public ArchiveResource(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean exists() {
+            return getArchive().find(name) >= 0;
+        }
+
+        /**
+         * @return true if the archive has been modified after the given time. Entries are not tracked individually,
+         * so replacing the archive makes all of its resources newer.
+         */
+        @Override
+        public boolean isNewerThan(long timestamp) {
+            return getArchive().lastModified > timestamp;
+        }
+
+        /**
+         * @return when the archive was last modified, as entries are not tracked individually.
+         */
+        @Override
+        public long getLastModified() {
+            return getArchive().lastModified;
+        }
+
+        /**
+         * @return the size of the archive.
+         */
+        @Override
+        public long getContentSize() {
+            return getArchive().size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            try {
+                ByteBuffer buffer = getByteBuffer();
+                byte[] content = new byte[buffer.remaining()];
+                buffer.get(content);
+                return new ByteArrayInputStream(content);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * @return a read-only view of the mapped archive if the entry is stored, or the inflated content if it is
+         * deflated.
+         */
+        @Override
+        public ByteBuffer getByteBuffer() throws IOException {
+            Archive archive = getArchive();
+            int entry = archive.find(name);
+            if(entry < 0) {
+                throw new FileNotFoundException(name + " in " + file);
+            }
+            return archive.read(entry);
+        }
+
+        @Override
+        public boolean isClass() {
+            return getClassName(name) != null && exists();
+        }
+
+        @Override
+        public Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException {
+            String className = getClassName(name);
+            if(className == null) {
+                return new NonExistingResource(ArchiveClassProvider.this, name).loadClasses(repository);
+            }
+            return new Class[] { defineClasses(Collections.singleton(className), repository).get(className) };
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public ClassProvider getProvider() {
+            return ArchiveClassProvider.this;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " (" + name + " in " + file + ")";
+        }
+    }
+
+    /**
+     * A mapped archive and the index of its central directory.
+     */
+    protected static class Archive {
+
+        protected static final int END_SIGNATURE = 0x06054b50;
+        protected static final int ENTRY_SIGNATURE = 0x02014b50;
+        protected static final int LOCAL_SIGNATURE = 0x04034b50;
+        protected static final int END_SIZE = 22;
+        protected static final int ENTRY_HEADER_SIZE = 46;
+        protected static final int LOCAL_HEADER_SIZE = 30;
+        protected static final int STORED = 0;
+        protected static final int DEFLATED = 8;
+
+        protected final File file;
+        protected final long lastModified;
+        protected final long size;
+        /**
+         * The whole archive, little-endian like the ZIP format. Only read with absolute gets, so it can be shared.
+         */
+        protected final ByteBuffer content;
+        /**
+         * The offset of the central directory header of each entry.
+         */
+        protected final int[] entries;
+        /**
+         * Open-addressing hash table of entry names: each slot holds an index in {@link #entries} plus one, or 0.
+         */
+        protected final int[] table;
+
+        protected Archive(File file, long lastModified, long size, ByteBuffer content, int[] entries) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.content = content;
+            this.entries = entries;
+            int capacity = Integer.highestOneBit(Math.max(entries.length, 1) * 2) << 1;
+            this.table = new int[capacity];
+            for(int i = 0; i < entries.length; i++) {
+                int offset = entries[i];
+                int slot = hash(content, offset + ENTRY_HEADER_SIZE, u16(offset + 28)) & (capacity - 1);
+                while(table[slot] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        public static Archive missing(File file) {
+            return new Archive(file, 0, -1, ByteBuffer.allocate(0), new int[0]);
+        }
+
+        public static Archive open(File file) throws IOException {
+            long lastModified = file.lastModified();
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(file.toString());
+            }
+            ByteBuffer content;
+            try {
+                long size = channel.size();
+                if(size > Integer.MAX_VALUE) {
+                    throw new IOException("Archive too large: " + file);
+                }
+                content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                channel.close();
+            }
+            int end = findEnd(content);
+            if(end < 0) {
+                throw new IOException("Not a ZIP archive: " + file);
+            }
+            int count = content.getShort(end + 10) & 0xFFFF;
+            long directoryOffset = content.getInt(end + 16) & 0xFFFFFFFFL;
+            if(count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported: " + file);
+            }
+            int[] entries = new int[count];
+            int offset = (int) directoryOffset;
+            for(int i = 0; i < count; i++) {
+                if(offset + ENTRY_HEADER_SIZE > end || content.getInt(offset) != ENTRY_SIGNATURE) {
+                    throw new IOException("Corrupt central directory in " + file + " at entry " + i);
+                }
+                entries[i] = offset;
+                offset += ENTRY_HEADER_SIZE + (content.getShort(offset + 28) & 0xFFFF) +
+                          (content.getShort(offset + 30) & 0xFFFF) + (content.getShort(offset + 32) & 0xFFFF);
+            }
+            return new Archive(file, lastModified, content.capacity(), content, entries);
+        }
+
+        /**
+         * @return the offset of the end of central directory record, which is followed by a comment of up to 64K.
+         */
+        protected static int findEnd(ByteBuffer content) {
+            int limit = Math.max(0, content.capacity() - END_SIZE - 0xFFFF);
+            for(int offset = content.capacity() - END_SIZE; offset >= limit; offset--) {
+                if(content.getInt(offset) == END_SIGNATURE) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the file has been modified or removed since it was mapped.
+         */
+        public boolean isStale() {
+            return file.lastModified() != lastModified || file.length() != Math.max(size, 0);
+        }
+
+        /**
+         * @return the index of the entry with the given name, or -1.
+         */
+        public int find(String name) {
+            if(entries.length == 0) {
+                return -1;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int h = 0;
+            for(byte b : bytes) {
+                h = 31 * h + b;
+            }
+            int mask = table.length - 1;
+            for(int slot = h & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if(nameEquals(entries[entry], bytes)) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        protected boolean nameEquals(int offset, byte[] name) {
+            if(u16(offset + 28) != name.length) {
+                return false;
+            }
+            int start = offset + ENTRY_HEADER_SIZE;
+            for(int i = 0; i < name.length; i++) {
+                if(content.get(start + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected static int hash(ByteBuffer content, int start, int length) {
+            int h = 0;
+            for(int i = 0; i < length; i++) {
+                h = 31 * h + content.get(start + i);
+            }
+            return h;
+        }
+
+        protected int u16(int offset) {
+            return content.getShort(offset) & 0xFFFF;
+        }
+
+        /**
+         * @return the names of the files in the archive (directories excluded).
+         */
+        public List<String> listNames() {
+            List<String> names = new ArrayList<String>(entries.length);
+            for(int offset : entries) {
+                byte[] name = new byte[u16(offset + 28)];
+                for(int i = 0; i < name.length; i++) {
+                    name[i] = content.get(offset + ENTRY_HEADER_SIZE + i);
+                }
+                if(name.length > 0 && name[name.length - 1] != '/') {
+                    names.add(new String(name, StandardCharsets.UTF_8));
+                }
+            }
+            return names;
+        }
+
+        /**
+         * @return the content of an entry: a read-only view of the mapping if it is stored, a heap buffer otherwise.
+         */
+        public ByteBuffer read(int entry) throws IOException {
+            int offset = entries[entry];
+            int method = u16(offset + 10);
+            int compressedSize = content.getInt(offset + 20);
+            int uncompressedSize = content.getInt(offset + 24);
+            int local = content.getInt(offset + 42);
+            if(content.getInt(local) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupt local header in " + file + " at " + local);
+            }
+            int start = local + LOCAL_HEADER_SIZE + u16(local + 26) + u16(local + 28);
+            ByteBuffer data = content.duplicate();
+            data.limit(start + compressedSize).position(start);
+            data = data.slice();
+            if(method == STORED) {
+                return data.asReadOnlyBuffer();
+            } else if(method != DEFLATED) {
+                throw new IOException("Unsupported compression method " + method + " in " + file);
+            }
+            //The inflater only takes arrays in Java 8; it also needs a dummy byte after the input when nowrap is set
+            byte[] input = new byte[compressedSize + 1];
+            data.get(input, 0, compressedSize);
+            byte[] output = new byte[uncompressedSize];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int length = 0;
+                while(length < output.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(output, length, output.length - length);
+                    if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated entry in " + file);
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt entry in " + file, e);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(output);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.github.alessiostalla.javaclassrepo.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, content-addressed cache of compiled bytecode. Entries are keyed by a hash of the source code and of
+ * the compiler options, so a changed source simply has a different key. What else the compiler read (e.g. the source
+ * or bytecode of the classes it referenced, whose constants it may have inlined) is not known before compiling, so
+ * each entry records a hash of each of those dependencies, and an entry whose dependencies have changed is a miss
+ * (see {@link #get(String, DependencyValidator)}). The cache is bounded in size and evicts the least recently used
+ * entries first.
+ *
+ * Each entry is a file in the cache directory, written to a temporary file and then renamed, so that a crash while
+ * writing never leaves a corrupt entry behind. Corrupt or unreadable entries are treated as misses and deleted.
+ */
+public class BytecodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BytecodeCache.class);
+
+    protected static final int FORMAT_VERSION = 2;
+    protected static final String ENTRY_SUFFIX = ".classes";
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    protected final File directory;
+    protected final long maxSize;
+    protected long size;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong writes = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory where to store the entries. It is created if it does not exist.
+     * @param maxSize the maximum total size of the entries, in bytes.
+     */
+    public BytecodeCache(File directory, long maxSize) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        for(File file : listFiles()) {
+            if(file.getName().endsWith(TEMP_SUFFIX)) {
+                //Left over by a crash while writing
+                delete(file);
+            } else {
+                size += file.length();
+            }
+        }
+    }
+
+    /**
+     * Computes the key for a source.
+     * @param source the source code.
+     * @param options the compiler options and anything else that affects the compiled code.
+     */
+    public static String computeKey(byte[] source, Collection<String> options) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(FORMAT_VERSION);
+        for(String option : options) {
+            hasher.putString(option, Charsets.UTF_8).putByte((byte) 0);
+        }
+        hasher.putInt(source.length);
+        hasher.putBytes(source);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Computes the hash of a dependency, to record with an entry (see {@link #put(String, Map, Map)}).
+     */
+    public static String hash(byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+
+    /**
+     * @return the bytecode stored under the given key, by class name, or null if there is none.
+     */
+    public Map<String, byte[]> get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * @param validator checks the dependencies recorded with the entry, or null not to check them.
+     * @return the bytecode stored under the given key, by class name, or null if there is none or if one of its
+     * dependencies has changed.
+     */
+    public Map<String, byte[]> get(String key, DependencyValidator validator) {
+        File file = getFile(key);
+        if(!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if(in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unsupported format");
+                }
+                int dependencyCount = in.readInt();
+                for(int i = 0; i < dependencyCount; i++) {
+                    String dependency = in.readUTF();
+                    String hash = in.readUTF();
+                    if(validator != null && !validator.isCurrent(dependency, hash)) {
+                        logger.debug("Cache entry " + key + " is out of date, " + dependency + " has changed");
+                        misses.incrementAndGet();
+                        return null;
+                    }
+                }
+                int count = in.readInt();
+                Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+                for(int i = 0; i < count; i++) {
+                    String className = in.readUTF();
+                    byte[] code = new byte[in.readInt()];
+                    in.readFully(code);
+                    classes.put(className, code);
+                }
+                hits.incrementAndGet();
+                //The modification time records the last use, for eviction
+                if(!file.setLastModified(System.currentTimeMillis())) {
+                    logger.debug("Could not update last use of cache entry " + file);
+                }
+                return classes;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Discarding unreadable cache entry " + file, e);
+            synchronized (this) {
+                size -= file.length();
+                delete(file);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores bytecode that depends on nothing but the key.
+     * @see #put(String, Map, Map)
+     */
+    public void put(String key, Map<String, byte[]> classes) {
+        put(key, classes, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Stores bytecode under the given key, replacing any existing entry, then evicts the least recently used entries
+     * if the cache has grown beyond its maximum size. Failures are logged, not thrown, as the cache is only an
+     * optimization.
+     * @param dependencies the hash of each input the bytecode was compiled from besides the key, by name.
+     */
+    public void put(String key, Map<String, byte[]> classes, Map<String, String> dependencies) {
+        File file = getFile(key);
+        File temp = new File(directory, key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(dependencies.size());
+                for(Map.Entry<String, String> entry : dependencies.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+                out.writeInt(classes.size());
+                for(Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            synchronized (this) {
+                long oldLength = file.length();
+                if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                    throw new IOException("Could not rename " + temp + " to " + file);
+                }
+                size += file.length() - oldLength;
+                writes.incrementAndGet();
+                evict();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write cache entry " + file, e);
+            delete(temp);
+        }
+    }
+
+    protected synchronized void evict() {
+        if(size <= maxSize) {
+            return;
+        }
+        List<File> files = new ArrayList<File>();
+        for(File file : listFiles()) {
+            if(file.getName().endsWith(ENTRY_SUFFIX)) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for(File file : files) {
+            if(size <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if(delete(file)) {
+                size -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    protected File getFile(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    protected File[] listFiles() {
+        File[] files = directory.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    protected boolean delete(File file) {
+        boolean deleted = file.delete();
+        if(!deleted && file.exists()) {
+            logger.warn("Could not delete " + file);
+        }
+        return deleted;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(hits.get(), misses.get(), writes.get(), evictions.get(), getSize());
+    }
+
+    /**
+     * Tells whether the dependencies of an entry still have the content they had when it was stored.
+     */
+    public interface DependencyValidator {
+        /**
+         * @param dependency the name of the dependency, as given to {@link #put(String, Map, Map)}.
+         * @param hash its hash when the entry was stored.
+         */
+        boolean isCurrent(String dependency, String hash);
+    }
+
+    public static class Statistics {
+        public final long hits;
+        public final long misses;
+        public final long writes;
+        public final long evictions;
+        public final long size;
+
+        public Statistics(long hits, long misses, long writes, long evictions, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.writes = writes;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        public double getHitRatio() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", misses: " + misses + " (hit ratio: " + getHitRatio() + "), writes: " + writes +
+                   ", evictions: " + evictions + ", size: " + size + " bytes";
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.alessiostalla.javaclassrepo.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies the bytecode of the classes that a {@link CompiledJavaClassProvider.GenerationClassLoader} defines.
+ */
+public interface ClassFileSource {
+
+    /**
+     * @return the content of the class file of the given class, ready to be read. It may be a pooled or a mapped
+     * buffer: give it back with {@link #releaseClassFile(ByteBuffer)} once the class is defined.
+     */
+    ByteBuffer readClassFile(String className) throws IOException;
+
+    /**
+     * Tells that a buffer returned by {@link #readClassFile(String)} is no longer used.
+     */
+    default void releaseClassFile(ByteBuffer buffer) {}
+
+}
@@ -0,0 +1,211 @@
+package com.github.alessiostalla.javaclassrepo.java;
+
+import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.ParentClassProvider;
+import com.github.alessiostalla.javaclassrepo.ProviderIndex;
+import com.github.alessiostalla.javaclassrepo.Resource;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What the compilations of a {@link SourceJavaClassProvider} share: the compiler, its file managers, which index the
+ * platform classes once and keep it, and the bytecode of the classes the provider compiled. File managers can't be
+ * used by two compilations at once, so the context pools them.
+ *
+ * Each compilation sees the sources of the provider (from the repository's {@link ProviderIndex} when the provider is
+ * indexed, without touching its storage) and, on the class path, the classes in the repository's cache whose
+ * bytecode is available: those compiled by the provider and those loaded from class files, and the same for the
+ * repository's ancestors. So the compiler does not recompile the sources of classes the repository already has.
+ * Both are views over indexes that the repository keeps up to date, looked up as the compiler lists packages, so
+ * preparing a compilation costs nothing however many classes the repository has.
+ */
+public class CompilationContext implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompilationContext.class);
+
+    protected final SourceJavaClassProvider provider;
+    protected final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    protected final Queue<VFSFileManager<StandardJavaFileManager>> idleFileManagers = new ConcurrentLinkedQueue<VFSFileManager<StandardJavaFileManager>>();
+    /**
+     * The bytecode of the classes compiled by the provider, until they are unloaded.
+     */
+    protected final ConcurrentMap<Class, byte[]> compiledCode = CacheBuilder.newBuilder().weakKeys().<Class, byte[]>build().asMap();
+    protected volatile boolean closed;
+
+    public CompilationContext(SourceJavaClassProvider provider) {
+        this.provider = provider;
+    }
+
+    public JavaCompiler getCompiler() {
+        return compiler;
+    }
+
+    /**
+     * @return a file manager prepared for a compilation of classes for the given repository. Give it back with
+     * {@link #release(VFSFileManager)} when the compilation is over.
+     */
+    public VFSFileManager<StandardJavaFileManager> acquire(ClassRepository repository) {
+        VFSFileManager<StandardJavaFileManager> fileManager = idleFileManagers.poll();
+        if(fileManager == null) {
+            fileManager = new VFSFileManager<StandardJavaFileManager>(provider.getRoot(), compiler.getStandardFileManager(null, null, null));
+        }
+        fileManager.prepare(getSourceIndex(repository), new RepositoryClasses(repository));
+        return fileManager;
+    }
+
+    public void release(VFSFileManager<StandardJavaFileManager> fileManager) {
+        try {
+            fileManager.reset();
+            if(!closed) {
+                idleFileManagers.add(fileManager);
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not reset file manager, discarding it", e);
+        }
+        closeQuietly(fileManager);
+    }
+
+    /**
+     * Records the bytecode of classes compiled (or taken from the bytecode cache) by the provider.
+     * @param classes the classes defined from the bytecode, by name.
+     * @param code the bytecode, by class name.
+     */
+    public void recordCompiledCode(Map<String, Class> classes, Map<String, byte[]> code) {
+        for(Map.Entry<String, Class> entry : classes.entrySet()) {
+            byte[] classCode = code.get(entry.getKey());
+            if(entry.getValue() != null && classCode != null) {
+                compiledCode.put(entry.getValue(), classCode);
+            }
+        }
+    }
+
+    /**
+     * @return a live view of the resources of the provider by package path, or null if the provider is not indexed.
+     */
+    protected Map<String, Set<String>> getSourceIndex(ClassRepository repository) {
+        ProviderIndex index = repository.getProviderIndex();
+        return index != null ? index.getResourcesByPackage(provider) : null;
+    }
+
+    /**
+     * @return the bytecode of a class that a compilation for the given repository sees on the class path (see
+     * {@link RepositoryClasses}), or null if it doesn't see it.
+     */
+    public byte[] getBytecode(ClassRepository repository, String className) throws IOException {
+        for(ClassRepository r = repository; r != null; r = r.getParent()) {
+            ClassRepository.ClassCacheEntry entry = r.getClassCache().get(className);
+            if(entry != null && !(entry.provider instanceof ParentClassProvider)) {
+                VFSFileManager.BytecodeFileObject file = getBytecodeFile(entry, r != repository);
+                return file != null ? file.getBytecode() : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytecode of a cached class, or null if it is not available: it is available for classes compiled by
+     * the provider (or, in an ancestor repository, by any source provider) and for those loaded from class files.
+     */
+    protected VFSFileManager.BytecodeFileObject getBytecodeFile(final ClassRepository.ClassCacheEntry entry, boolean inherited) {
+        if(entry.provider == provider || (inherited && entry.provider instanceof SourceJavaClassProvider)) {
+            byte[] code = ((SourceJavaClassProvider) entry.provider).getCompilationContext().compiledCode.get(entry.loadedClass);
+            return code != null ? new VFSFileManager.BytecodeFileObject(entry.className, code, entry.timestamp) : null;
+        } else if(entry.resourceName.endsWith(".class")) {
+            return new VFSFileManager.BytecodeFileObject(entry.className, null, entry.timestamp) {
+                @Override
+                protected byte[] getBytecode() throws IOException {
+                    return readClassFile(entry);
+                }
+            };
+        }
+        return null;
+    }
+
+    protected byte[] readClassFile(ClassRepository.ClassCacheEntry entry) throws IOException {
+        Resource resource = entry.provider.getResource(entry.resourceName);
+        try {
+            InputStream in = resource.getInputStream();
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            resource.close();
+        }
+    }
+
+    /**
+     * The classes in the cache of a repository whose bytecode is available, followed by those of its ancestors that it
+     * doesn't override (see {@link ClassRepository#withParent(ClassRepository)}), looked up in the package index of
+     * the repositories as the compiler lists their packages.
+     */
+    protected class RepositoryClasses implements VFSFileManager.ExtraClasses {
+
+        protected final ClassRepository repository;
+
+        public RepositoryClasses(ClassRepository repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public Collection<VFSFileManager.BytecodeFileObject> getClasses(String packageName) {
+            List<VFSFileManager.BytecodeFileObject> classes = new ArrayList<VFSFileManager.BytecodeFileObject>();
+            Set<String> classNames = new HashSet<String>();
+            for(ClassRepository r = repository; r != null; r = r.getParent()) {
+                for(ClassRepository.ClassCacheEntry entry : r.getCachedEntries(packageName)) {
+                    if(entry.provider instanceof ParentClassProvider || !classNames.add(entry.className)) {
+                        continue; //Found in the parent, or overridden
+                    }
+                    VFSFileManager.BytecodeFileObject file = getBytecodeFile(entry, r != repository);
+                    if(file != null) {
+                        classes.add(file);
+                    }
+                }
+            }
+            return classes;
+        }
+
+        @Override
+        public Collection<String> getPackageNames() {
+            Set<String> packageNames = new HashSet<String>();
+            for(ClassRepository r = repository; r != null; r = r.getParent()) {
+                packageNames.addAll(r.getCachedPackages());
+            }
+            return packageNames;
+        }
+    }
+
+    /**
+     * Closes the pooled file managers. File managers in use are closed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        VFSFileManager<StandardJavaFileManager> fileManager;
+        while((fileManager = idleFileManagers.poll()) != null) {
+            closeQuietly(fileManager);
+        }
+    }
+
+    protected void closeQuietly(VFSFileManager<StandardJavaFileManager> fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+            logger.warn("Could not close file manager", e);
+        }
+    }
+}
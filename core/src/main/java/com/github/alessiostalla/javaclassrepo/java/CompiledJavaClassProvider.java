@@ -1,26 +1,58 @@
 package com.github.alessiostalla.javaclassrepo.java;
 
+import com.github.alessiostalla.javaclassrepo.BatchClassProvider;
 import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.RepositoryListener;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSClassProvider;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSResource;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs2.FileObject;
 
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by alessio on 04/07/14.
+ *
+ * Class files on the local file system are read through NIO channels into direct buffers, reused by each thread, or
+ * memory-mapped if they are large, and defined from there, so the bytecode is never copied to the Java heap.
+ *
+ * Classes are defined in a class loader shared by all the classes loaded for a repository, its current
+ * {@link GenerationClassLoader generation}. A class that is already defined in the current generation (i.e. it is
+ * being reloaded) is defined in a new generation instead, together with the rest of the classes reloaded with it, and
+ * the new generation becomes the current one. Thus, the number of class loaders grows with the number of reloads
+ * rather than with the number of classes.
  */
-public class CompiledJavaClassProvider extends VFSClassProvider {
+public class CompiledJavaClassProvider extends VFSClassProvider implements BatchClassProvider, ClassFileSource {
+
+    /**
+     * Buffers kept by each thread for reuse. Several are needed as loading a class can load others (e.g. its
+     * superclass) on the same thread before the buffer of the first is released.
+     */
+    protected static final int MAX_POOLED_BUFFERS = 4;
+    protected static final int MIN_BUFFER_SIZE = 4096;
 
     public CompiledJavaClassProvider(FileObject root) {
         super(root);
     }
 
-    private String className;
-    private ClassLoader classLoader;
+    /**
+     * The current generation for each repository. Generations only refer weakly to their repository, so they don't
+     * keep it in this map after it is discarded.
+     */
+    protected final Map<ClassRepository, GenerationClassLoader> generations = new WeakHashMap<ClassRepository, GenerationClassLoader>();
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> buffers = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+        @Override
+        protected ArrayDeque<ByteBuffer> initialValue() {
+            return new ArrayDeque<ByteBuffer>(MAX_POOLED_BUFFERS);
+        }
+    };
 
     @Override
     protected VFSResource getResource(FileObject fileObject) {
@@ -32,48 +64,269 @@ public class CompiledJavaClassProvider extends VFSClassProvider {
 
             @Override
             public Class[] loadClasses(final ClassRepository repository) throws ClassNotFoundException {
-                String className = getName().substring(0, getName().length() - ".class".length()).replace("/", ".");
-                CompiledJavaClassProvider.this.className = className;
-                if(classLoader == null) {
-                    classLoader = createInnerLoader(repository);
-                }
-                Class<?> c = classLoader.loadClass(className);
-                classLoader = null;
-                CompiledJavaClassProvider.this.className = null;
-                return new Class[] {c};
+                String className = getClassName(getName());
+                return new Class[] { defineClasses(Collections.singleton(className), repository).get(className) };
             }
         };
     }
 
-    protected URLClassLoader createInnerLoader(final ClassRepository repository) {
-        return new URLClassLoader(new URL[0]) {
-            @Override
-            public Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-                if(name.equals(CompiledJavaClassProvider.this.className)) {
-                    VFSResource resource = getResourceForClass(name);
-                    try {
-                        byte[] buf = IOUtils.toByteArray(resource.getInputStream());
-                        Class<?> c = defineClass(name, buf, 0, buf.length);
-                        if(resolve) {
-                            resolveClass(c);
-                        }
-                        return c;
-                    } catch (IOException e) {
-                        throw new ClassNotFoundException(name, e);
-                    } finally {
-                        IOUtils.closeQuietly(resource);
-                    }
-                } else try {
-                    return repository.getClass(name);
-                } catch (ClassNotFoundException e) {
-                    return super.loadClass(name, resolve);
-                }
+    @Override
+    public Map<String, Class[]> loadClasses(Collection<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        Map<String, String> classNames = new LinkedHashMap<String, String>();
+        for(String resourceName : resourceNames) {
+            String className = getClassName(resourceName);
+            if(className == null) {
+                throw new ClassNotFoundException("Not a class file: " + resourceName);
             }
-        };
+            classNames.put(className, resourceName);
+        }
+        Map<String, Class<?>> classes = defineClasses(classNames.keySet(), repository);
+        Map<String, Class[]> result = new LinkedHashMap<String, Class[]>();
+        for(Map.Entry<String, String> e : classNames.entrySet()) {
+            result.put(e.getValue(), new Class[] { classes.get(e.getKey()) });
+        }
+        return result;
+    }
+
+    /**
+     * Each package is a group, as classes can only access the package-private members of classes defined by the same
+     * class loader.
+     */
+    @Override
+    public String getLoadGroup(String resourceName) {
+        return resourceName.substring(0, resourceName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Defines the given classes in the current generation of the repository, or in a new one if any of them is
+     * already defined there.
+     */
+    protected Map<String, Class<?>> defineClasses(Collection<String> classNames, ClassRepository repository) throws ClassNotFoundException {
+        GenerationClassLoader generation;
+        synchronized (generations) {
+            generation = generations.get(repository);
+            if(generation == null || generation.isAnyDefined(classNames)) {
+                generation = createGeneration(repository, generation);
+                generations.put(repository, generation);
+            }
+        }
+        return generation.defineClasses(classNames);
+    }
+
+    protected GenerationClassLoader createGeneration(ClassRepository repository, GenerationClassLoader previous) {
+        return new GenerationClassLoader(this, repository, previous != null ? previous.getNumber() + 1 : 1);
+    }
+
+    /**
+     * @return the loader the next classes loaded for the given repository will be defined in, or null if no class
+     * has been loaded for it yet.
+     */
+    public GenerationClassLoader getGeneration(ClassRepository repository) {
+        synchronized (generations) {
+            return generations.get(repository);
+        }
+    }
+
+    /**
+     * Reads a class file. Give the buffer back with {@link #releaseBuffer(ByteBuffer)} once the class is defined.
+     * @return the content of the class file, in a pooled direct buffer or a mapped buffer for local files, in a heap
+     * buffer otherwise.
+     */
+    protected ByteBuffer readClassFile(VFSResource resource) throws IOException {
+        if(resource.toLocalFile() == null) {
+            return resource.getByteBuffer();
+        }
+        ReadableByteChannel channel = resource.getChannel();
+        try {
+            FileChannel fileChannel = (FileChannel) channel;
+            long size = fileChannel.size();
+            if(size >= VFSResource.MAP_THRESHOLD) {
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = acquireBuffer((int) size);
+            while(buffer.hasRemaining() && fileChannel.read(buffer) >= 0);
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public ByteBuffer readClassFile(String className) throws IOException {
+        VFSResource resource = getResourceForClass(className);
+        try {
+            return readClassFile(resource);
+        } finally {
+            IOUtils.closeQuietly(resource);
+        }
+    }
+
+    @Override
+    public void releaseClassFile(ByteBuffer buffer) {
+        releaseBuffer(buffer);
+    }
+
+    protected ByteBuffer acquireBuffer(int size) {
+        for(Iterator<ByteBuffer> it = buffers.get().iterator(); it.hasNext(); ) {
+            ByteBuffer buffer = it.next();
+            if(buffer.capacity() >= size) {
+                it.remove();
+                buffer.clear();
+                buffer.limit(size);
+                return buffer;
+            }
+        }
+        int capacity = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(size - 1, 1)) << 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Makes a buffer returned by {@link #readClassFile(VFSResource)} available for reuse by the current thread, if
+     * it came from the pool.
+     */
+    protected void releaseBuffer(ByteBuffer buffer) {
+        //Mapped buffers are read-only; heap buffers are not worth pooling
+        if(!buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> pool = buffers.get();
+        if(pool.size() >= MAX_POOLED_BUFFERS) {
+            pool.removeFirst();
+        }
+        pool.addLast(buffer);
     }
 
     @Override
     protected String translateToPath(String className) {
         return className.replace(".", "/").concat(".class");
     }
+
+    /**
+     * A class loader shared by the classes of a provider loaded for a repository between two reloads. It defines the
+     * classes it is asked to, reading them from a {@link ClassFileSource}, and resolves any other class through the
+     * repository, so that it always gets the current version of classes that have been reloaded.
+     */
+    public static class GenerationClassLoader extends ClassLoader {
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        protected final ClassFileSource provider;
+        protected final WeakReference<ClassRepository> repository;
+        protected final int number;
+        /**
+         * Classes being defined by {@link #defineClasses(Collection)}. They are defined here when they are requested
+         * (e.g. as the superclass of another), rather than resolved through the repository, which would return the
+         * version being replaced.
+         */
+        protected final Set<String> pendingClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        public GenerationClassLoader(ClassFileSource provider, ClassRepository repository, int number) {
+            this.provider = provider;
+            this.repository = new WeakReference<ClassRepository>(repository);
+            this.number = number;
+        }
+
+        /**
+         * @return 1 for the first generation of a repository, incremented with each generation created by a reload.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        public boolean isAnyDefined(Collection<String> classNames) {
+            for(String className : classNames) {
+                if(findLoadedClass(className) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Defines the given classes in this loader. Classes in the set that refer to each other are defined here
+         * regardless of the order.
+         * @return the defined classes, by name.
+         */
+        public Map<String, Class<?>> defineClasses(Collection<String> classNames) throws ClassNotFoundException {
+            pendingClasses.addAll(classNames);
+            try {
+                Map<String, Class<?>> result = new LinkedHashMap<String, Class<?>>();
+                for(String className : classNames) {
+                    result.put(className, findOwnClass(className));
+                }
+                return result;
+            } finally {
+                pendingClasses.removeAll(classNames);
+            }
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> c = null;
+            if(pendingClasses.contains(name)) {
+                c = findOwnClass(name);
+            } else {
+                ClassRepository repository = this.repository.get();
+                if(repository != null) {
+                    try {
+                        c = repository.getClass(name);
+                    } catch (ClassNotFoundException e) {
+                        //Try the parent
+                    }
+                }
+            }
+            if(c == null) {
+                return super.loadClass(name, resolve);
+            }
+            if(resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+
+        protected Class<?> findOwnClass(String name) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if(c == null) {
+                    pendingClasses.remove(name);
+                    c = defineOwnClass(name);
+                }
+                return c;
+            }
+        }
+
+        protected Class<?> defineOwnClass(String name) throws ClassNotFoundException {
+            try {
+                ByteBuffer buffer = provider.readClassFile(name);
+                try {
+                    ByteBuffer code = buffer.duplicate();
+                    ClassRepository repository = this.repository.get();
+                    RepositoryListener listener = repository != null ? repository.getListener() : null;
+                    long start = listener != null ? System.nanoTime() : 0;
+                    Class<?> c = defineClass(name, buffer, (ProtectionDomain) null);
+                    if(listener != null) {
+                        listener.classDefined(name, code.remaining(), System.nanoTime() - start);
+                    }
+                    if(repository != null) {
+                        repository.recordReferences(c, code);
+                    }
+                    return c;
+                } finally {
+                    provider.releaseClassFile(buffer);
+                }
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Generation " + number + " of " + provider;
+        }
+    }
 }
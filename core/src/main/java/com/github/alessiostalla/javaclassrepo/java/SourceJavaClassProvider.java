@@ -1,22 +1,51 @@
 package com.github.alessiostalla.javaclassrepo.java;
 
+import com.github.alessiostalla.javaclassrepo.BatchClassProvider;
 import com.github.alessiostalla.javaclassrepo.ClassRepository;
+import com.github.alessiostalla.javaclassrepo.RepositoryListener;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSClassProvider;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSResource;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.tools.*;
 import java.io.*;
-import java.util.Arrays;
-import java.util.Map;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by alessio on 04/07/14.
  */
-public class SourceJavaClassProvider extends VFSClassProvider {
+public class SourceJavaClassProvider extends VFSClassProvider implements BatchClassProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(SourceJavaClassProvider.class);
+
+    protected static final Pattern PACKAGE = Pattern.compile("\\bpackage\\s+([\\w$.]+)\\s*;");
+    protected static final Pattern IMPORT = Pattern.compile("\\bimport\\s+(?:static\\s+)?([\\w$.]+?)(\\.\\*)?\\s*;");
+    protected static final Pattern QUALIFIED_NAME = Pattern.compile("[A-Za-z_$][\\w$]*(?:\\.[A-Za-z_$][\\w$]*)+");
+    protected static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+    protected final boolean batchCompilation;
+    protected final List<String> compilerOptions = new ArrayList<String>();
+    protected BytecodeCache bytecodeCache;
+    protected final CompilationContext compilationContext = new CompilationContext(this);
 
     public SourceJavaClassProvider(FileObject root) {
+        this(root, false);
+    }
+
+    /**
+     * @param batchCompilation if true, loading a class also compiles the sources it references, directly or
+     *                         indirectly, that the repository has not loaded yet, all in the same compiler run.
+     */
+    public SourceJavaClassProvider(FileObject root, boolean batchCompilation) {
         super(root);
+        this.batchCompilation = batchCompilation;
     }
 
     @Override
@@ -29,34 +58,459 @@ public class SourceJavaClassProvider extends VFSClassProvider {
 
             @Override
             public Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException {
-                String className = getName().substring(0, getName().length() - ".java".length()).replace("/", ".");
-                JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-                VFSFileManager fileManager = new VFSFileManager<StandardJavaFileManager>(root, compiler.getStandardFileManager(null, null, null));
+                String name = getName();
+                long timestamp = System.currentTimeMillis();
+                List<String> resourceNames = Collections.singletonList(name);
+                Map<String, Class[]> classes = batchCompilation ?
+                        SourceJavaClassProvider.this.loadClasses(resourceNames, repository) : compile(resourceNames, repository);
+                //The sources the compiler read and compiled along with this one
+                for(Map.Entry<String, Class[]> entry : classes.entrySet()) {
+                    if(!entry.getKey().equals(name)) {
+                        repository.cacheClasses(getResource(entry.getKey()), entry.getValue(), timestamp);
+                    }
+                }
+                Class[] result = classes.get(name);
+                return result != null ? result : new Class[0];
+            }
+        };
+    }
+
+    /**
+     * Compiles the given sources, together with the sources they reference that the repository has not loaded yet,
+     * in a single compiler run. If that fails, falls back to compiling just the requested sources.
+     */
+    @Override
+    public Map<String, Class[]> loadClasses(Collection<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        List<String> sources;
+        try {
+            sources = findUncompiledClosure(resourceNames, repository);
+        } catch (IOException e) {
+            throw new ClassNotFoundException("Could not scan sources " + resourceNames, e);
+        }
+        if(sources.size() > resourceNames.size()) {
+            logger.debug("Compiling " + resourceNames + " together with " + (sources.size() - resourceNames.size()) + " uncompiled dependencies");
+            Map<String, Class[]> result = compile(sources, repository);
+            if(result != null) {
+                return result;
+            }
+            logger.warn("Batch compilation of " + sources + " failed, compiling only " + resourceNames);
+        }
+        return compile(new ArrayList<String>(resourceNames), repository);
+    }
+
+    /**
+     * Compiles and loads in a single compiler run all the sources in a package that the repository has not loaded
+     * yet, together with the uncompiled sources they reference. The loaded classes are put in the repository's cache.
+     * @return the loaded classes.
+     */
+    public Class[] loadPackage(String packageName, ClassRepository repository) throws ClassNotFoundException {
+        List<String> sources = new ArrayList<String>();
+        try {
+            String packagePath = packageName.replace(".", "/");
+            for(String simpleName : listSources(packagePath, new HashMap<String, Set<String>>())) {
+                String path = toSourcePath(packagePath, simpleName);
+                if(!isLoaded(path, repository)) {
+                    sources.add(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new ClassNotFoundException("Could not list package " + packageName, e);
+        }
+        if(sources.isEmpty()) {
+            return new Class[0];
+        }
+        long timestamp = System.currentTimeMillis();
+        List<Class> result = new ArrayList<Class>();
+        for(Map.Entry<String, Class[]> entry : loadClasses(sources, repository).entrySet()) {
+            repository.cacheClasses(getResource(entry.getKey()), entry.getValue(), timestamp);
+            result.addAll(Arrays.asList(entry.getValue()));
+        }
+        return result.toArray(new Class[result.size()]);
+    }
+
+    /**
+     * Compiles the given sources in one compiler run and defines all the resulting classes in a single pass. If a
+     * bytecode cache is configured and it holds the classes of all the sources, compiled from the same sources and
+     * classes that the compiler would read now, the compiler is not run at all.
+     * @return the defined classes by the name of the resource they were compiled from, which includes the sources that
+     * the compiler compiled implicitly because the given ones reference them (classes the compiler does not attribute
+     * to a source of this provider are attributed to the first given one), or null if the compilation of more than one
+     * source failed.
+     */
+    protected Map<String, Class[]> compile(List<String> resourceNames, ClassRepository repository) throws ClassNotFoundException {
+        Map<String, String> cacheKeys = null;
+        if(bytecodeCache != null) {
+            try {
+                cacheKeys = computeCacheKeys(resourceNames);
+            } catch (IOException e) {
+                throw new ClassNotFoundException("Could not read sources " + resourceNames, e);
+            }
+            Map<String, Map<String, byte[]>> cached = new LinkedHashMap<String, Map<String, byte[]>>();
+            BytecodeCache.DependencyValidator validator = newDependencyValidator(repository);
+            for(String resourceName : resourceNames) {
+                Map<String, byte[]> code = bytecodeCache.get(cacheKeys.get(resourceName), validator);
+                if(code == null) {
+                    cached = null;
+                    break;
+                }
+                cached.put(resourceName, code);
+            }
+            if(cached != null) {
+                logger.debug("Loading " + resourceNames + " from the bytecode cache");
+                return define(cached, repository);
+            }
+        }
+        Map<String, String> inputs = new HashMap<String, String>();
+        Map<String, Map<String, byte[]>> code = runCompiler(resourceNames, repository, inputs);
+        if(code == null) {
+            return null;
+        }
+        if(cacheKeys != null) {
+            Map<String, String> implicitKeys = Collections.emptyMap();
+            List<String> implicitSources = new ArrayList<String>(code.keySet());
+            implicitSources.removeAll(resourceNames);
+            try {
+                implicitKeys = computeCacheKeys(implicitSources);
+            } catch (IOException e) {
+                logger.warn("Could not read sources " + implicitSources + ", not caching their bytecode", e);
+            }
+            for(Map.Entry<String, Map<String, byte[]>> entry : code.entrySet()) {
+                Map<String, String> dependencies = new TreeMap<String, String>(inputs);
+                String key = cacheKeys.get(entry.getKey());
+                if(key != null) {
+                    dependencies.remove(VFSFileManager.SOURCE_INPUT + entry.getKey()); //Part of the key
+                } else {
+                    //Read after compiling, so the content the compiler read is checked too
+                    key = implicitKeys.get(entry.getKey());
+                }
+                if(key != null) {
+                    bytecodeCache.put(key, entry.getValue(), dependencies);
+                }
+            }
+        }
+        return define(code, repository);
+    }
+
+    /**
+     * Runs the compiler on the given sources.
+     * @param repository the repository the classes are for; its listener is notified of the start and end of the
+     *                   compilation.
+     * @param inputs receives the hash of each source and class the compiler read (see
+     *               {@link VFSFileManager#getInputs()}), except the classes it compiled.
+     * @return the bytecode of the compiled classes, by the name of the resource they were compiled from, or null if
+     * the compilation of more than one source failed.
+     */
+    protected Map<String, Map<String, byte[]>> runCompiler(List<String> resourceNames, ClassRepository repository, Map<String, String> inputs) throws ClassNotFoundException {
+        RepositoryListener listener = repository.getListener();
+        long start = 0;
+        if(listener != null) {
+            listener.compileStarted(this, resourceNames);
+            start = System.nanoTime();
+        }
+        boolean successful = false;
+        int classCount = 0;
+        try {
+            Map<String, Map<String, byte[]>> code = runCompiler(resourceNames, compilationContext.acquire(repository), inputs);
+            if(code != null) {
+                for(Map<String, byte[]> resourceCode : code.values()) {
+                    classCount += resourceCode.size();
+                }
+            }
+            successful = code != null && classCount > 0;
+            return code;
+        } finally {
+            if(listener != null) {
+                listener.compileFinished(this, resourceNames, classCount, System.nanoTime() - start, successful);
+            }
+        }
+    }
+
+    /**
+     * Runs the compiler on the given sources with the given file manager, then releases it.
+     * @param inputs receives the hash of each source and class the compiler read, except the classes it compiled.
+     * @return the bytecode of the compiled classes, by the name of the resource they were compiled from, or null if
+     * the compilation of more than one source failed.
+     */
+    protected Map<String, Map<String, byte[]>> runCompiler(List<String> resourceNames, VFSFileManager<StandardJavaFileManager> fileManager, Map<String, String> inputs) throws ClassNotFoundException {
+        JavaCompiler compiler = compilationContext.getCompiler();
+        try {
+            List<JavaFileObject> javaFiles = new ArrayList<JavaFileObject>(resourceNames.size());
+            for(String resourceName : resourceNames) {
+                FileObject fileObject = root.resolveFile(resourceName);
+                String className = resourceName.substring(0, resourceName.length() - ".java".length()).replace("/", ".");
+                javaFiles.add(fileManager.getJavaFileForInput(StandardLocation.locationFor(fileObject.getName().getPath()), className, JavaFileObject.Kind.SOURCE));
+            }
+            Boolean success = compiler.getTask(null, fileManager, null, compilerOptions, null, javaFiles).call();
+            if(!Boolean.TRUE.equals(success) && resourceNames.size() > 1) {
+                return null;
+            }
+            Map<String, Map<String, byte[]>> byResource = new LinkedHashMap<String, Map<String, byte[]>>();
+            for(String resourceName : resourceNames) {
+                byResource.put(resourceName, new LinkedHashMap<String, byte[]>());
+            }
+            for(Map.Entry<String, ByteArrayOutputStream> entry : fileManager.getClasses().entrySet()) {
+                String resourceName = getSourceResourceName(fileManager.getClassSources().get(entry.getKey()));
+                if(resourceName == null) {
+                    resourceName = resourceNames.get(0);
+                }
+                Map<String, byte[]> resourceCode = byResource.get(resourceName);
+                if(resourceCode == null) {
+                    //A source the compiler found on the source path and compiled implicitly
+                    resourceCode = new LinkedHashMap<String, byte[]>();
+                    byResource.put(resourceName, resourceCode);
+                }
+                resourceCode.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+            inputs.putAll(fileManager.getInputs());
+            for(String className : fileManager.getClasses().keySet()) {
+                inputs.remove(VFSFileManager.CLASS_INPUT + className);
+            }
+            return byResource;
+        } catch (IOException e) {
+            throw new ClassNotFoundException("Could not compile " + resourceNames, e);
+        } finally {
+            compilationContext.release(fileManager);
+        }
+    }
+
+    /**
+     * Defines the given bytecode in a single pass.
+     * @return the defined classes, by the name of the resource they were compiled from.
+     */
+    protected Map<String, Class[]> define(Map<String, Map<String, byte[]>> code, ClassRepository repository) {
+        Map<String, byte[]> allCode = new LinkedHashMap<String, byte[]>();
+        for(Map<String, byte[]> resourceCode : code.values()) {
+            allCode.putAll(resourceCode);
+        }
+        Map<String, Class> classes = repository.asClassLoader().defineClasses(allCode);
+        compilationContext.recordCompiledCode(classes, allCode);
+        Map<String, Class[]> result = new LinkedHashMap<String, Class[]>();
+        for(Map.Entry<String, Map<String, byte[]>> entry : code.entrySet()) {
+            Class[] resourceClasses = new Class[entry.getValue().size()];
+            int i = 0;
+            for(String className : entry.getValue().keySet()) {
+                resourceClasses[i++] = classes.get(className);
+            }
+            result.put(entry.getKey(), resourceClasses);
+        }
+        return result;
+    }
+
+    /**
+     * @return the bytecode cache key of each source, by resource name.
+     */
+    protected Map<String, String> computeCacheKeys(List<String> resourceNames) throws IOException {
+        List<String> keyOptions = new ArrayList<String>(compilerOptions);
+        keyOptions.add("java.version=" + System.getProperty("java.version"));
+        Map<String, String> keys = new HashMap<String, String>();
+        for(String resourceName : resourceNames) {
+            InputStream inputStream = root.resolveFile(resourceName).getContent().getInputStream();
+            try {
+                keys.put(resourceName, BytecodeCache.computeKey(IOUtils.toByteArray(inputStream), keyOptions));
+            } finally {
+                inputStream.close();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return a validator of the dependencies of cached bytecode that compares them with what the compiler would read
+     * now: the sources of this provider and the classes of the repository. Hashes are computed once per validator.
+     */
+    protected BytecodeCache.DependencyValidator newDependencyValidator(final ClassRepository repository) {
+        return new BytecodeCache.DependencyValidator() {
+            final Map<String, String> currentHashes = new HashMap<String, String>();
+
+            @Override
+            public boolean isCurrent(String dependency, String hash) {
+                if(!currentHashes.containsKey(dependency)) {
+                    currentHashes.put(dependency, computeHash(dependency));
+                }
+                return hash.equals(currentHashes.get(dependency));
+            }
+
+            protected String computeHash(String dependency) {
                 try {
-                    JavaFileObject javaFile = fileManager.getJavaFileForInput(StandardLocation.locationFor(fileObject.getName().getPath()), className, JavaFileObject.Kind.SOURCE);
-                    compiler.getTask(null, fileManager, null, null, null, Arrays.asList(javaFile)).call();
-                    Map<String, ByteArrayOutputStream> classes = fileManager.getClasses();
-                    ClassRepository.ClassLoaderFacade classLoaderFacade = repository.asClassLoader();
-                    Class[] result = new Class[classes.size()];
-                    int i = 0;
-                    for(Map.Entry<String, ByteArrayOutputStream> entry : classes.entrySet()) {
-                        result[i++] = classLoaderFacade.defineClass(entry.getKey(), entry.getValue().toByteArray());
+                    byte[] content = null;
+                    if(dependency.startsWith(VFSFileManager.SOURCE_INPUT)) {
+                        FileObject source = root.resolveFile(dependency.substring(VFSFileManager.SOURCE_INPUT.length()));
+                        if(source.exists()) {
+                            InputStream inputStream = source.getContent().getInputStream();
+                            try {
+                                content = IOUtils.toByteArray(inputStream);
+                            } finally {
+                                inputStream.close();
+                            }
+                        }
+                    } else if(dependency.startsWith(VFSFileManager.CLASS_INPUT)) {
+                        content = compilationContext.getBytecode(repository, dependency.substring(VFSFileManager.CLASS_INPUT.length()));
                     }
-                    return result;
+                    return content != null ? BytecodeCache.hash(content) : null;
                 } catch (IOException e) {
-                    throw new ClassNotFoundException(className, e);
-                } finally {
-                    try {
-                        fileManager.close();
-                    } catch (IOException e) {
-                        e.printStackTrace(); //TODO log
-                    }
+                    logger.debug("Could not read " + dependency, e);
+                    return null;
                 }
-
             }
         };
     }
 
+    /**
+     * Makes this provider store compiled classes in the given cache, and load them from it instead of running the
+     * compiler when the source, the compiler options and the sources and classes it depends on have not changed.
+     */
+    public SourceJavaClassProvider withBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+        return this;
+    }
+
+    public BytecodeCache getBytecodeCache() {
+        return bytecodeCache;
+    }
+
+    public CompilationContext getCompilationContext() {
+        return compilationContext;
+    }
+
+    /**
+     * @return the options passed to the compiler. They can be modified before loading any class.
+     */
+    public List<String> getCompilerOptions() {
+        return compilerOptions;
+    }
+
+    /**
+     * @return the encoding of the sources, as given to the compiler with the -encoding option; UTF-8 by default.
+     */
+    public String getSourceEncoding() {
+        int index = compilerOptions.indexOf("-encoding");
+        if(index >= 0 && index + 1 < compilerOptions.size()) {
+            return compilerOptions.get(index + 1);
+        }
+        return "UTF-8";
+    }
+
+    protected String getSourceResourceName(javax.tools.FileObject source) throws FileSystemException {
+        if(source instanceof VFSFileManager.VFSFileObject) {
+            return root.getName().getRelativeName(((VFSFileManager.VFSFileObject) source).getFileObject().getName());
+        }
+        return null;
+    }
+
+    /**
+     * Collects the given sources together with the sources they reference, directly or indirectly, that the
+     * repository has not loaded yet. References are found with a lexical scan, so the result may include sources
+     * that are not strictly needed; compiling them too is harmless.
+     */
+    protected List<String> findUncompiledClosure(Collection<String> resourceNames, ClassRepository repository) throws IOException {
+        Set<String> closure = new LinkedHashSet<String>(resourceNames);
+        Queue<String> toScan = new LinkedList<String>(resourceNames);
+        Map<String, Set<String>> listings = new HashMap<String, Set<String>>();
+        while(!toScan.isEmpty()) {
+            for(String referenced : findReferencedSources(toScan.remove(), listings)) {
+                if(!closure.contains(referenced) && !isLoaded(referenced, repository)) {
+                    closure.add(referenced);
+                    toScan.add(referenced);
+                }
+            }
+        }
+        return new ArrayList<String>(closure);
+    }
+
+    protected boolean isLoaded(String resourceName, ClassRepository repository) {
+        String className = resourceName.substring(0, resourceName.length() - ".java".length()).replace("/", ".");
+        return repository.getClassCache().containsKey(className) || repository.findInClassLoaders(className) != null;
+    }
+
+    /**
+     * Finds the sources in this provider that might be referenced by the given source: sources in the same package,
+     * imported ones and ones named with a qualified name, provided their simple name occurs in the text.
+     */
+    protected Set<String> findReferencedSources(String resourceName, Map<String, Set<String>> listings) throws IOException {
+        String text;
+        InputStream inputStream = root.resolveFile(resourceName).getContent().getInputStream();
+        try {
+            text = IOUtils.toString(inputStream, getSourceEncoding());
+        } finally {
+            inputStream.close();
+        }
+        Set<String> identifiers = new HashSet<String>();
+        Matcher matcher = IDENTIFIER.matcher(text);
+        while(matcher.find()) {
+            identifiers.add(matcher.group());
+        }
+        Set<String> result = new LinkedHashSet<String>();
+        matcher = PACKAGE.matcher(text);
+        String packagePath = matcher.find() ? matcher.group(1).replace(".", "/") : "";
+        addReferencedSources(packagePath, identifiers, listings, result);
+        matcher = IMPORT.matcher(text);
+        while(matcher.find()) {
+            if(matcher.group(2) != null) {
+                addReferencedSources(matcher.group(1).replace(".", "/"), identifiers, listings, result);
+            }
+            addQualifiedSources(matcher.group(1), listings, result);
+        }
+        matcher = QUALIFIED_NAME.matcher(text);
+        while(matcher.find()) {
+            addQualifiedSources(matcher.group(), listings, result);
+        }
+        result.remove(resourceName);
+        return result;
+    }
+
+    protected void addReferencedSources(String packagePath, Set<String> identifiers, Map<String, Set<String>> listings, Set<String> result) throws FileSystemException {
+        for(String simpleName : listSources(packagePath, listings)) {
+            if(identifiers.contains(simpleName)) {
+                result.add(toSourcePath(packagePath, simpleName));
+            }
+        }
+    }
+
+    /**
+     * Adds the source of each prefix of a qualified name that names a top-level class in this provider (e.g. for
+     * a.b.C.D, the source of a.b.C).
+     */
+    protected void addQualifiedSources(String qualifiedName, Map<String, Set<String>> listings, Set<String> result) throws FileSystemException {
+        String[] parts = qualifiedName.split("\\.");
+        StringBuilder packagePath = new StringBuilder();
+        for(int i = 0; i < parts.length; i++) {
+            if(i > 0 && listSources(packagePath.toString(), listings).contains(parts[i])) {
+                result.add(toSourcePath(packagePath.toString(), parts[i]));
+                return;
+            }
+            if(packagePath.length() > 0) {
+                packagePath.append("/");
+            }
+            packagePath.append(parts[i]);
+        }
+    }
+
+    /**
+     * @return the simple names of the sources directly in the given package folder, or an empty set if there is no
+     * such folder. Listings are memoized in the given map.
+     */
+    protected Set<String> listSources(String packagePath, Map<String, Set<String>> listings) throws FileSystemException {
+        Set<String> listing = listings.get(packagePath);
+        if(listing == null) {
+            listing = new HashSet<String>();
+            FileObject folder = packagePath.isEmpty() ? root : root.resolveFile(packagePath);
+            if(folder.exists() && folder.getType().hasChildren()) {
+                for(FileObject child : folder.getChildren()) {
+                    if(child.getType() == FileType.FILE && "java".equals(child.getName().getExtension())) {
+                        String baseName = child.getName().getBaseName();
+                        listing.add(baseName.substring(0, baseName.length() - ".java".length()));
+                    }
+                }
+            }
+            listings.put(packagePath, listing);
+        }
+        return listing;
+    }
+
+    protected String toSourcePath(String packagePath, String simpleName) {
+        return packagePath.isEmpty() ? simpleName + ".java" : packagePath + "/" + simpleName + ".java";
+    }
+
     @Override
     protected String translateToPath(String className) {
         return className.replace(".", "/").concat(".java");
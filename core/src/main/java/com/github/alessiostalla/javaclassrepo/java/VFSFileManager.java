@@ -9,19 +9,43 @@ import javax.lang.model.element.NestingKind;
 import javax.tools.*;
 import java.io.*;
 import java.net.URI;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by alessio on 17/07/14.
+ *
+ * Sources are read from a VFS root, which acts as the source path, and classes are compiled in memory. The compiler
+ * can also be given the bytecode of classes that are not on the class path (see {@link #prepare(Map, ExtraClasses)}). An
+ * instance can be reused for several compilations, one at a time, calling {@link #reset()} between them.
  */
 public class VFSFileManager<M extends JavaFileManager> extends ForwardingJavaFileManager<M> {
 
+    /**
+     * Prefix of the names of the sources in the inputs, followed by their path relative to the root.
+     */
+    public static final String SOURCE_INPUT = "source:";
+    /**
+     * Prefix of the names of the extra classes in the inputs, followed by their binary name.
+     */
+    public static final String CLASS_INPUT = "class:";
+
     protected final FileObject root;
     protected final Queue<FileObject> openFiles = new ConcurrentLinkedQueue<FileObject>();
     protected final Map<String, ByteArrayOutputStream> compiledClasses = new LinkedHashMap<String, ByteArrayOutputStream>();
+    protected final Map<String, javax.tools.FileObject> classSources = new LinkedHashMap<String, javax.tools.FileObject>();
+    /**
+     * The resources in the root by package path, or null to list the root when needed.
+     */
+    protected Map<String, ? extends Collection<String>> sourceIndex;
+    /**
+     * Bytecode of classes to add to the class path, or null.
+     */
+    protected ExtraClasses extraClasses;
+    /**
+     * The hash of each input the compiler read (see {@link #getInputs()}).
+     */
+    protected final Map<String, String> inputs = new LinkedHashMap<String, String>();
 
     /**
      * Creates a new instance of ForwardingJavaFileManager.
@@ -33,15 +57,143 @@ public class VFSFileManager<M extends JavaFileManager> extends ForwardingJavaFil
         this.root = root;
     }
 
-    @Override
-    public void close() throws IOException {
+    /**
+     * Prepares for a compilation. Both arguments are only read when the compiler lists a package, so they can be
+     * live views that change between compilations.
+     * @param sourceIndex the names of the resources in the root (relative to it) by package path (e.g. a/b), or null
+     *                    to list the root as needed. Only the sources among them are used.
+     * @param extraClasses bytecode of classes to add to the class path, or null.
+     */
+    public void prepare(Map<String, ? extends Collection<String>> sourceIndex, ExtraClasses extraClasses) {
+        this.sourceIndex = sourceIndex;
+        this.extraClasses = extraClasses;
+    }
+
+    /**
+     * Forgets the outcome of the last compilation, so that the file manager can be used for another one.
+     */
+    public void reset() throws IOException {
         for(FileObject file : openFiles) {
             file.close();
         }
         openFiles.clear();
+        compiledClasses.clear();
+        classSources.clear();
+        inputs.clear();
+        sourceIndex = null;
+        extraClasses = null;
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reset();
         super.close();
     }
 
+    @Override
+    public boolean hasLocation(Location location) {
+        return location == StandardLocation.SOURCE_PATH || super.hasLocation(location);
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+        if(location == StandardLocation.SOURCE_PATH) {
+            return kinds.contains(JavaFileObject.Kind.SOURCE) ? listSources(packageName, recurse) : Collections.<JavaFileObject>emptyList();
+        }
+        Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+        if(location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS) || extraClasses == null) {
+            return listed;
+        }
+        List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        List<String> packageNames = Collections.singletonList(packageName);
+        if(recurse) {
+            packageNames = new ArrayList<String>();
+            for(String name : extraClasses.getPackageNames()) {
+                if(name.equals(packageName) || packageName.isEmpty() || name.startsWith(packageName + ".")) {
+                    packageNames.add(name);
+                }
+            }
+        }
+        for(String name : packageNames) {
+            for(BytecodeFileObject file : extraClasses.getClasses(name)) {
+                result.add(recordingInput(file));
+            }
+        }
+        if(result.isEmpty()) {
+            return listed;
+        }
+        //Ahead of the class path, as they are the classes actually in use
+        for(JavaFileObject file : listed) {
+            result.add(file);
+        }
+        return result;
+    }
+
+    protected List<JavaFileObject> listSources(String packageName, boolean recurse) throws IOException {
+        String packagePath = packageName.replace('.', '/');
+        List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        if(sourceIndex != null) {
+            List<Collection<String>> packages = new ArrayList<Collection<String>>();
+            if(recurse) {
+                for(Map.Entry<String, ? extends Collection<String>> entry : sourceIndex.entrySet()) {
+                    String path = entry.getKey();
+                    if(path.equals(packagePath) || packagePath.isEmpty() || path.startsWith(packagePath + "/")) {
+                        packages.add(entry.getValue());
+                    }
+                }
+            } else {
+                Collection<String> resourceNames = sourceIndex.get(packagePath);
+                if(resourceNames != null) {
+                    packages.add(resourceNames);
+                }
+            }
+            for(Collection<String> resourceNames : packages) {
+                for(String resourceName : resourceNames) {
+                    if(resourceName.endsWith(".java")) {
+                        result.add(newJavaFileObject(root.resolveFile(resourceName), JavaFileObject.Kind.SOURCE));
+                    }
+                }
+            }
+        } else {
+            FileObject folder = packagePath.isEmpty() ? root : root.resolveFile(packagePath);
+            if(folder.exists() && folder.getType().hasChildren()) {
+                FileObject[] files = folder.findFiles(recurse ? Selectors.SELECT_FILES : new FileDepthSelector(1, 1));
+                for(FileObject file : files) {
+                    if(file.getType() == FileType.FILE && "java".equals(file.getName().getExtension())) {
+                        result.add(newJavaFileObject(file, JavaFileObject.Kind.SOURCE));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if(file instanceof BytecodeFileObject) {
+            return ((BytecodeFileObject) file).binaryName;
+        }
+        if(file instanceof VFSJavaFileObject) {
+            try {
+                String path = root.getName().getRelativeName(((VFSJavaFileObject) file).getFileObject().getName());
+                int dot = path.lastIndexOf('.');
+                return (dot > path.lastIndexOf('/') ? path.substring(0, dot) : path).replace('/', '.');
+            } catch (FileSystemException e) {
+                return null;
+            }
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(javax.tools.FileObject a, javax.tools.FileObject b) {
+        if(a instanceof VFSFileObject || a instanceof BytecodeFileObject || b instanceof VFSFileObject || b instanceof BytecodeFileObject) {
+            return a.toUri().equals(b.toUri());
+        }
+        return super.isSameFile(a, b);
+    }
+
     @Override
     public javax.tools.FileObject getFileForOutput(Location location, String packageName, String relativeName, javax.tools.FileObject sibling) throws IOException {
         FileObject file = root.resolveFile(location.getName());
@@ -58,6 +210,9 @@ public class VFSFileManager<M extends JavaFileManager> extends ForwardingJavaFil
 
     @Override
     public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, javax.tools.FileObject sibling) throws IOException {
+        if(sibling != null) {
+            classSources.put(className, sibling);
+        }
         return new SimpleJavaFileObject(URI.create(className), kind) {
             public OutputStream openOutputStream() {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -77,16 +232,121 @@ public class VFSFileManager<M extends JavaFileManager> extends ForwardingJavaFil
                 }
             };
         } else {
-            FileObject file = root.resolveFile(location.getName());
-            openFiles.add(file);
+            return newJavaFileObject(root.resolveFile(location.getName()), kind);
+        }
+    }
+
+    /**
+     * @return a file for the compiler to read. Reads of sources are recorded in the inputs.
+     */
+    protected VFSJavaFileObject newJavaFileObject(final FileObject file, JavaFileObject.Kind kind) {
+        openFiles.add(file);
+        if(kind != JavaFileObject.Kind.SOURCE) {
             return new VFSJavaFileObject(file, kind);
         }
+        return new VFSJavaFileObject(file, kind) {
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return recordInput(SOURCE_INPUT + root.getName().getRelativeName(file.getName()), super.openInputStream());
+            }
+        };
+    }
+
+    /**
+     * @return a copy of an extra class that records in the inputs when the compiler reads it. The extra classes
+     * themselves can be shared by several file managers.
+     */
+    protected BytecodeFileObject recordingInput(final BytecodeFileObject file) {
+        return new BytecodeFileObject(file.binaryName, null, file.getLastModified()) {
+            @Override
+            protected byte[] getBytecode() throws IOException {
+                byte[] code = file.getBytecode();
+                inputs.put(CLASS_INPUT + binaryName, BytecodeCache.hash(code));
+                return code;
+            }
+        };
+    }
+
+    protected InputStream recordInput(String name, InputStream in) throws IOException {
+        byte[] content;
+        try {
+            content = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        inputs.put(name, BytecodeCache.hash(content));
+        return new ByteArrayInputStream(content);
     }
 
     public Map<String, ByteArrayOutputStream> getClasses() {
         return compiledClasses;
     }
 
+    /**
+     * @return the hash of the content of each source and extra class that the compiler read in the last compilation,
+     * by name: {@link #SOURCE_INPUT} or {@link #CLASS_INPUT} followed by the path or the name. The platform classes
+     * and the class path of the underlying file manager are not included.
+     */
+    public Map<String, String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return the source file each compiled class was generated from, as reported by the compiler, by class name.
+     */
+    public Map<String, javax.tools.FileObject> getClassSources() {
+        return classSources;
+    }
+
+    /**
+     * Classes to add to the class path, looked up as the compiler lists their packages.
+     */
+    public interface ExtraClasses {
+        /**
+         * @return the classes in the given package (e.g. a.b), not counting subpackages.
+         */
+        Collection<BytecodeFileObject> getClasses(String packageName);
+
+        /**
+         * @return the names of the packages that have classes.
+         */
+        Collection<String> getPackageNames();
+    }
+
+    /**
+     * A compiled class, held in memory or read on demand.
+     */
+    public static class BytecodeFileObject extends SimpleJavaFileObject {
+
+        public final String binaryName;
+        protected final byte[] code;
+        protected final long lastModified;
+
+        /**
+         * @param code the bytecode, or null if {@link #getBytecode()} reads it.
+         */
+        public BytecodeFileObject(String binaryName, byte[] code, long lastModified) {
+            super(URI.create("bytecode:///" + binaryName.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.code = code;
+            this.lastModified = lastModified;
+        }
+
+        protected byte[] getBytecode() throws IOException {
+            return code;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return new ByteArrayInputStream(getBytecode());
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
     public static class VFSFileObject implements javax.tools.FileObject {
 
         protected final FileObject impl;
@@ -95,6 +355,10 @@ public class VFSFileManager<M extends JavaFileManager> extends ForwardingJavaFil
             this.impl = impl;
         }
 
+        public FileObject getFileObject() {
+            return impl;
+        }
+
         @Override
         public URI toUri() {
             try {
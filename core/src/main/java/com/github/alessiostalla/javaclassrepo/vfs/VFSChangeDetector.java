@@ -0,0 +1,266 @@
+package com.github.alessiostalla.javaclassrepo.vfs;
+
+import com.github.alessiostalla.javaclassrepo.ChangeDetector;
+import com.github.alessiostalla.javaclassrepo.ClassProvider;
+import com.github.alessiostalla.javaclassrepo.ResourceChangeListener;
+import com.github.alessiostalla.javaclassrepo.ResourceChangeListener.ChangeType;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.vfs2.FileChangeEvent;
+import org.apache.commons.vfs2.FileListener;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.impl.DefaultFileMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the roots of {@link VFSClassProvider}s for changes. Roots on the local file system are watched with a
+ * {@link WatchService}, which is notified by the operating system; other roots are watched with a VFS
+ * {@link DefaultFileMonitor}, which polls them on a background thread. Roots that can't be watched either way are
+ * left to the clients to poll (see {@link #isWatching(ClassProvider)}).
+ */
+public class VFSChangeDetector implements ChangeDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(VFSChangeDetector.class);
+
+    protected final List<ResourceChangeListener> listeners = new CopyOnWriteArrayList<ResourceChangeListener>();
+    protected final Map<VFSClassProvider, Object> watchedProviders = new ConcurrentHashMap<VFSClassProvider, Object>();
+    protected final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+    protected final long monitorDelay;
+    protected WatchService watchService;
+    protected Thread watchThread;
+    protected volatile boolean closed;
+
+    public VFSChangeDetector() {
+        this(1000);
+    }
+
+    /**
+     * @param monitorDelay how often, in milliseconds, roots that are not on the local file system are checked for
+     *                     changes in the background.
+     */
+    public VFSChangeDetector(long monitorDelay) {
+        this.monitorDelay = monitorDelay;
+    }
+
+    /**
+     * Starts watching the root of the given provider.
+     * @return true if the provider is being watched, false if its root can't be watched and must be polled.
+     */
+    public synchronized boolean watch(VFSClassProvider provider) {
+        if(closed) {
+            throw new IllegalStateException("Change detector closed");
+        }
+        if(watchedProviders.containsKey(provider)) {
+            return true;
+        }
+        FileObject root = provider.getRoot();
+        try {
+            File localRoot = toLocalFile(root);
+            if(localRoot != null) {
+                ensureWatchServiceStarted();
+                registerRecursively(localRoot.toPath(), false);
+                watchedProviders.put(provider, localRoot.toPath());
+            } else {
+                root.getChildren(); //Fails if the file system can't list folders, which the monitor needs
+                DefaultFileMonitor monitor = new DefaultFileMonitor(new MonitorListener(provider));
+                monitor.setRecursive(true);
+                monitor.setDelay(monitorDelay);
+                monitor.addFile(root);
+                monitor.start();
+                watchedProviders.put(provider, monitor);
+            }
+            return true;
+        } catch (Exception e) {
+            logger.info("Cannot watch " + root.getName().getFriendlyURI() + ", it will be polled", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isWatching(ClassProvider provider) {
+        return provider instanceof VFSClassProvider && watchedProviders.containsKey(provider);
+    }
+
+    @Override
+    public void addListener(ResourceChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(ResourceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for(Object watcher : watchedProviders.values()) {
+            if(watcher instanceof DefaultFileMonitor) {
+                ((DefaultFileMonitor) watcher).stop();
+            }
+        }
+        watchedProviders.clear();
+        if(watchService != null) {
+            watchService.close();
+            watchThread.interrupt();
+        }
+    }
+
+    protected File toLocalFile(FileObject fileObject) {
+        try {
+            if("file".equals(fileObject.getName().getScheme())) {
+                return new File(fileObject.getURL().toURI());
+            }
+        } catch (Exception e) {
+            logger.debug("Not a local file: " + fileObject, e);
+        }
+        return null;
+    }
+
+    protected void ensureWatchServiceStarted() throws IOException {
+        if(watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            watchThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("class-repository-watcher-%d").build().newThread(new Runnable() {
+                @Override
+                public void run() {
+                    processEvents();
+                }
+            });
+            watchThread.start();
+        }
+    }
+
+    /**
+     * Registers a directory and its subdirectories with the watch service, which only watches single directories.
+     * @param notifyFiles whether to report the files found as created (for directories created after watching began).
+     */
+    protected void registerRecursively(Path directory, final boolean notifyFiles) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(notifyFiles) {
+                    fireLocalChange(file, ChangeType.CREATED);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    protected void processEvents() {
+        while(!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            Path directory = watchedDirectories.get(key);
+            if(directory != null) {
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        processEvent(directory, event);
+                    } catch (Exception e) {
+                        logger.error("Could not process file system event " + event.kind() + " in " + directory, e);
+                    }
+                }
+            }
+            if(!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    protected void processEvent(Path directory, WatchEvent<?> event) throws IOException {
+        if(event.kind() == OVERFLOW) {
+            //Events were lost, so anything under the directory may have changed
+            for(Map.Entry<VFSClassProvider, Object> entry : watchedProviders.entrySet()) {
+                if(entry.getValue() instanceof Path && directory.startsWith((Path) entry.getValue())) {
+                    fireChange(entry.getKey(), null, ChangeType.MODIFIED);
+                }
+            }
+            return;
+        }
+        Path path = directory.resolve((Path) event.context());
+        if(event.kind() == ENTRY_CREATE) {
+            if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                registerRecursively(path, true);
+            } else {
+                fireLocalChange(path, ChangeType.CREATED);
+            }
+        } else if(event.kind() == ENTRY_DELETE) {
+            fireLocalChange(path, ChangeType.DELETED);
+        } else if(!Files.isDirectory(path)) {
+            fireLocalChange(path, ChangeType.MODIFIED);
+        }
+    }
+
+    protected void fireLocalChange(Path path, ChangeType type) {
+        for(Map.Entry<VFSClassProvider, Object> entry : watchedProviders.entrySet()) {
+            if(entry.getValue() instanceof Path) {
+                Path root = (Path) entry.getValue();
+                if(path.startsWith(root)) {
+                    fireChange(entry.getKey(), root.relativize(path).toString().replace(File.separatorChar, '/'), type);
+                }
+            }
+        }
+    }
+
+    protected void fireChange(ClassProvider provider, String resourceName, ChangeType type) {
+        logger.debug("Resource " + resourceName + " of " + provider + ": " + type);
+        for(ResourceChangeListener listener : listeners) {
+            try {
+                listener.resourceChanged(provider, resourceName, type);
+            } catch (Exception e) {
+                logger.error("Resource change listener failed: " + listener, e);
+            }
+        }
+    }
+
+    protected class MonitorListener implements FileListener {
+
+        protected final VFSClassProvider provider;
+
+        public MonitorListener(VFSClassProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public void fileCreated(FileChangeEvent event) throws FileSystemException {
+            fire(event, ChangeType.CREATED);
+        }
+
+        @Override
+        public void fileDeleted(FileChangeEvent event) throws FileSystemException {
+            fire(event, ChangeType.DELETED);
+        }
+
+        @Override
+        public void fileChanged(FileChangeEvent event) throws FileSystemException {
+            fire(event, ChangeType.MODIFIED);
+        }
+
+        protected void fire(FileChangeEvent event, ChangeType type) throws FileSystemException {
+            fireChange(provider, provider.getRoot().getName().getRelativeName(event.getFile().getName()), type);
+        }
+    }
+}
@@ -1,28 +1,43 @@
 package com.github.alessiostalla.javaclassrepo.vfs;
 
-import com.github.alessiostalla.javaclassrepo.ClassProvider;
-import com.github.alessiostalla.javaclassrepo.Resource;
+import com.github.alessiostalla.javaclassrepo.ListableClassProvider;
 import org.apache.commons.vfs2.FileObject;
-import org.apache.commons.vfs2.FileSystem;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.Selectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Created by alessio on 02/07/14.
  */
-public abstract class VFSClassProvider implements ClassProvider {
+public abstract class VFSClassProvider implements ListableClassProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(VFSClassProvider.class);
 
     protected final FileObject root;
+    protected volatile VFSMirror mirror;
 
     public VFSClassProvider(FileObject root) {
         this.root = root;
     }
 
+    /**
+     * Reads the resources from a local mirror of a remote root, copying the ones it doesn't have yet when they are
+     * requested. The provider must have been created over the root of the mirror (see {@link VFSMirror#getRoot()}).
+     */
+    public VFSClassProvider withMirror(VFSMirror mirror) {
+        if(!mirror.getRoot().getName().equals(root.getName())) {
+            throw new IllegalArgumentException("The root of the provider, " + root.getName().getFriendlyURI() +
+                                               ", is not the root of the mirror, " + mirror.getRoot().getName().getFriendlyURI());
+        }
+        this.mirror = mirror;
+        return this;
+    }
+
     @Override
     public VFSResource getResourceForClass(String className) {
         String path = translateToPath(className);
@@ -31,6 +46,10 @@ public abstract class VFSClassProvider implements ClassProvider {
 
     @Override
     public VFSResource getResource(String path) {
+        VFSMirror mirror = this.mirror;
+        if(mirror != null) {
+            mirror.fetch(path);
+        }
         FileObject fileObject;
         try {
             fileObject = root.resolveFile(path);
@@ -40,10 +59,45 @@ public abstract class VFSClassProvider implements ClassProvider {
         return getResource(fileObject);
     }
 
+    @Override
+    public Collection<String> listResources() {
+        try {
+            FileObject[] files = root.findFiles(Selectors.SELECT_FILES);
+            List<String> names = new ArrayList<String>(files != null ? files.length : 0);
+            if(files != null) {
+                for(FileObject file : files) {
+                    names.add(root.getName().getRelativeName(file.getName()));
+                }
+            }
+            return names;
+        } catch (FileSystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getResourceName(String className) {
+        return translateToPath(className);
+    }
+
+    @Override
+    public String getClassName(String resourceName) {
+        int dot = resourceName.lastIndexOf('.');
+        if(dot <= resourceName.lastIndexOf('/')) {
+            return null;
+        }
+        String className = resourceName.substring(0, dot).replace('/', '.');
+        return resourceName.equals(translateToPath(className)) ? className : null;
+    }
+
     public FileObject getRoot() {
         return root;
     }
 
+    public VFSMirror getMirror() {
+        return mirror;
+    }
+
     protected abstract VFSResource getResource(FileObject fileObject);
 
     protected abstract String translateToPath(String className);
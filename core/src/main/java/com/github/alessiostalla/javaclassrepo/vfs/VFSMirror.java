@@ -0,0 +1,308 @@
+package com.github.alessiostalla.javaclassrepo.vfs;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.VFS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Mirrors a remote VFS root (e.g. over sftp, http or webdav) to a local directory, so that a
+ * {@link VFSClassProvider} created over the mirror (see {@link VFSClassProvider#withMirror(VFSMirror)}) reads its
+ * resources, and checks them for changes, on the local file system instead of over the network. Resources are
+ * copied the first time they are requested; a background revalidation (see {@link #withRevalidation(long)}) then
+ * keeps the copies up to date.
+ *
+ * Revalidation works a folder at a time. If the remote file system can list folders, a folder is listed once, which
+ * on most of them also fetches the size and modification time of every file in it, and the whole folder is mirrored,
+ * including files that were never requested; otherwise, only the files already mirrored are checked, one at a time.
+ * A copy is current if it has the size of the remote file and was made after the remote file was last modified; only
+ * the files that are not current are downloaded again. Files that no longer exist remotely are deleted.
+ *
+ * Copies made on request have the modification time of the remote file, while those updated by a revalidation have
+ * the time they were downloaded, so that they look changed to the provider's staleness checks (and to a
+ * {@link VFSChangeDetector} watching the mirror) even if the remote clock is behind. If the remote root can't be
+ * reached, the copies are served as they are.
+ */
+public class VFSMirror implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VFSMirror.class);
+
+    protected static final String TEMP_PREFIX = ".mirror-";
+
+    protected final FileObject remoteRoot;
+    protected final File directory;
+    protected final FileObject root;
+    /**
+     * Serializes downloads and deletions of the same file.
+     */
+    protected final Striped<Lock> locks = Striped.lock(64);
+    /**
+     * The paths requested since the last revalidation that the remote root doesn't have.
+     */
+    protected final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    protected final AtomicLong downloadCount = new AtomicLong();
+    protected final AtomicLong revalidationCount = new AtomicLong();
+    protected ScheduledExecutorService revalidationExecutor;
+
+    public VFSMirror(FileObject remoteRoot, File directory) throws FileSystemException {
+        this.remoteRoot = remoteRoot;
+        this.directory = directory;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileSystemException("Could not create the mirror directory " + directory);
+        }
+        this.root = VFS.getManager().toFileObject(directory);
+    }
+
+    /**
+     * Revalidates the mirror on a background thread, right away and then every given interval.
+     * @param interval the time between the end of a revalidation and the start of the next one, in milliseconds.
+     */
+    public synchronized VFSMirror withRevalidation(long interval) {
+        if(revalidationExecutor != null) {
+            revalidationExecutor.shutdownNow();
+        }
+        revalidationExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("class-repository-mirror-%d").build());
+        revalidationExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                revalidate();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Makes sure the mirror has a copy of the given file, downloading it if it doesn't. Only the local file system is
+     * accessed if it does, or if the file was found missing since the last revalidation.
+     * @param path the path of the file, relative to the root.
+     * @return true if the file exists.
+     */
+    public boolean fetch(String path) {
+        File local = new File(directory, path);
+        if(local.isFile()) {
+            return true;
+        }
+        if(missing.contains(path)) {
+            return false;
+        }
+        Lock lock = locks.get(path);
+        lock.lock();
+        try {
+            if(local.isFile()) {
+                return true;
+            }
+            FileObject remote = remoteRoot.resolveFile(path);
+            //VFS may still know the file from before a revalidation found it deleted
+            remote.refresh();
+            if(remote.getType() != FileType.FILE) {
+                missing.add(path);
+                return false;
+            }
+            //Classes may be loaded from it before the request completes, so it must not look newer than them
+            long lastModified = Math.min(remote.getContent().getLastModifiedTime(), System.currentTimeMillis());
+            download(path, remote, local);
+            if(!local.setLastModified(lastModified)) {
+                logger.warn("Could not set the modification time of " + local);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Could not fetch " + path + " from " + remoteRoot.getName().getFriendlyURI(), e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Brings the mirror up to date with the remote root, in the calling thread. Failures are logged, leaving the
+     * affected copies as they are.
+     */
+    public void revalidate() {
+        missing.clear();
+        try {
+            revalidateFolder("", remoteRoot);
+        } catch (Exception e) {
+            logger.warn("Could not revalidate the mirror of " + remoteRoot.getName().getFriendlyURI(), e);
+        }
+        revalidationCount.incrementAndGet();
+    }
+
+    protected void revalidateFolder(String path, FileObject remoteFolder) throws IOException {
+        remoteFolder.refresh();
+        FileObject[] children = null;
+        if(remoteFolder.getType() == FileType.FOLDER) {
+            try {
+                children = remoteFolder.getChildren();
+            } catch (FileSystemException e) {
+                logger.debug("Cannot list " + remoteFolder.getName().getFriendlyURI() + ", checking its files one by one", e);
+            }
+        }
+        File localFolder = new File(directory, path);
+        String[] localNames = localFolder.list();
+        if(children != null) {
+            Set<String> remoteNames = new HashSet<String>();
+            for(FileObject child : children) {
+                String name = child.getName().getBaseName();
+                remoteNames.add(name);
+                if(child.getType() == FileType.FOLDER) {
+                    revalidateFolder(path + name + "/", child);
+                } else if(child.getType() == FileType.FILE) {
+                    revalidateFile(path + name, child);
+                }
+            }
+            if(localNames != null) {
+                for(String name : localNames) {
+                    if(!remoteNames.contains(name) && !name.startsWith(TEMP_PREFIX)) {
+                        delete(path + name);
+                    }
+                }
+            }
+        } else if(localNames != null) {
+            for(String name : localNames) {
+                if(name.startsWith(TEMP_PREFIX)) {
+                    continue;
+                }
+                FileObject child = remoteFolder.resolveFile(name);
+                if(new File(localFolder, name).isDirectory()) {
+                    revalidateFolder(path + name + "/", child);
+                } else {
+                    child.refresh();
+                    revalidateFile(path + name, child);
+                }
+            }
+        }
+    }
+
+    protected void revalidateFile(String path, FileObject remote) throws IOException {
+        Lock lock = locks.get(path);
+        lock.lock();
+        try {
+            File local = new File(directory, path);
+            if(remote.getType() != FileType.FILE) {
+                delete(path);
+            } else if(!isCurrent(remote.getContent(), local)) {
+                download(path, remote, local);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected boolean isCurrent(FileContent remote, File local) throws FileSystemException {
+        return local.isFile() && remote.getSize() == local.length() && remote.getLastModifiedTime() <= local.lastModified();
+    }
+
+    /**
+     * Downloads a file to a temporary file next to its copy, then moves it in place, so that readers never see a
+     * partial copy.
+     */
+    protected void download(String path, FileObject remote, File local) throws IOException {
+        File folder = local.getParentFile();
+        if(!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder);
+        }
+        File temp = File.createTempFile(TEMP_PREFIX, ".tmp", folder);
+        try {
+            InputStream in = remote.getContent().getInputStream();
+            try {
+                FileUtils.copyInputStreamToFile(in, temp);
+            } finally {
+                in.close();
+                remote.close();
+            }
+            Files.move(temp.toPath(), local.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(temp.exists() && !temp.delete()) {
+                logger.warn("Could not delete " + temp);
+            }
+        }
+        downloadCount.incrementAndGet();
+        logger.debug("Mirrored " + path + " from " + remoteRoot.getName().getFriendlyURI());
+        refresh(path);
+    }
+
+    protected void delete(String path) throws IOException {
+        Lock lock = locks.get(path);
+        lock.lock();
+        try {
+            File local = new File(directory, path);
+            if(local.exists()) {
+                FileUtils.forceDelete(local);
+                logger.debug("Deleted " + path + " from the mirror of " + remoteRoot.getName().getFriendlyURI());
+                refresh(path);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes VFS forget what it knew about the copy of a file.
+     */
+    protected void refresh(String path) throws FileSystemException {
+        root.resolveFile(path).refresh();
+    }
+
+    /**
+     * @return the root of the local copy, to create providers over.
+     */
+    public FileObject getRoot() {
+        return root;
+    }
+
+    public FileObject getRemoteRoot() {
+        return remoteRoot;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of files downloaded so far.
+     */
+    public long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+    /**
+     * @return the number of revalidations completed so far.
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * Stops the background revalidation. The local copy is kept.
+     */
+    @Override
+    public synchronized void close() {
+        if(revalidationExecutor != null) {
+            revalidationExecutor.shutdownNow();
+            revalidationExecutor = null;
+        }
+    }
+}
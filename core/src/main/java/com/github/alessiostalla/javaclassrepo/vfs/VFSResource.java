@@ -6,14 +6,25 @@ import com.github.alessiostalla.javaclassrepo.Resource;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Created by alessio on 02/07/14.
  */
 public abstract class VFSResource implements Resource {
 
+    /**
+     * Local files at least this large are memory-mapped by {@link #getByteBuffer()}; smaller ones are read, as
+     * mapping costs more than reading them.
+     */
+    public static final int MAP_THRESHOLD = 64 * 1024;
+
     protected final VFSClassProvider provider;
     protected final FileObject fileObject;
 
@@ -41,6 +52,24 @@ public abstract class VFSResource implements Resource {
         }
     }
 
+    @Override
+    public long getLastModified() {
+        try {
+            return fileObject.exists() ? fileObject.getContent().getLastModifiedTime() : 0;
+        } catch (FileSystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getContentSize() {
+        try {
+            return fileObject.exists() ? fileObject.getContent().getSize() : -1;
+        } catch (FileSystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public InputStream getInputStream() {
         try {
@@ -50,6 +79,53 @@ public abstract class VFSResource implements Resource {
         }
     }
 
+    /**
+     * @return a {@link FileChannel} if the resource is a local file, otherwise a channel over its input stream.
+     */
+    @Override
+    public ReadableByteChannel getChannel() throws IOException {
+        File file = toLocalFile();
+        if(file != null) {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return Resource.super.getChannel();
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        File file = toLocalFile();
+        if(file == null) {
+            return Resource.super.getByteBuffer();
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if(size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the file of this resource, if it is on the local file system, otherwise null.
+     */
+    public File toLocalFile() {
+        try {
+            if("file".equals(fileObject.getName().getScheme())) {
+                return new File(fileObject.getURL().toURI());
+            }
+        } catch (Exception e) {
+            //Not a local file after all
+        }
+        return null;
+    }
+
     @Override
     public void close() throws IOException {
         try {
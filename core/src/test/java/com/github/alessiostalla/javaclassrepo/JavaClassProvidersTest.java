@@ -1,15 +1,49 @@
 package com.github.alessiostalla.javaclassrepo;
 
 import com.github.alessiostalla.javaclassrepo.groovy.GroovyClassProvider;
+import com.github.alessiostalla.javaclassrepo.groovy.GroovyCompilationProfile;
+import com.github.alessiostalla.javaclassrepo.java.ArchiveClassProvider;
+import com.github.alessiostalla.javaclassrepo.java.BytecodeCache;
 import com.github.alessiostalla.javaclassrepo.java.CompiledJavaClassProvider;
 import com.github.alessiostalla.javaclassrepo.java.SourceJavaClassProvider;
+import com.github.alessiostalla.javaclassrepo.vfs.VFSChangeDetector;
+import com.github.alessiostalla.javaclassrepo.vfs.VFSClassProvider;
+import com.github.alessiostalla.javaclassrepo.vfs.VFSMirror;
 import com.github.alessiostalla.javaclassrepo.vfs.VFSResource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemManager;
 import org.apache.commons.vfs2.VFS;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import javax.tools.ToolProvider;
 
 import static org.testng.Assert.*;
 
@@ -30,11 +64,10 @@ public class JavaClassProvidersTest {
         aClass = classRepository.getClass(getClass().getName());
         assertNotEquals(getClass(), aClass, "Classes should NOT be the same as we explicitly told the ClassRepository not to use any predefined classloader");
         classRepository.getClass(AnotherTopLevelClass.class.getName());
-        //If the order of the following two instructions is swapped, CompiledJavaClassProvider fails because it uses
-        //two different classloaders, so the the superclass is not accessible to the subclass (package-protected means
-        //same package AND same classloader). This is a known limitation.
-        Class staticInnerSubclass = classRepository.getClass(AnotherTopLevelClass.StaticInnerSubclass.class.getName());
+        //The superclass is package-protected, so it is only accessible to the subclass if they share the classloader
+        //(package-protected means same package AND same classloader), whatever the order they are loaded in
         Class staticInner = classRepository.getClass(AnotherTopLevelClass.StaticInnerClass.class.getName());
+        Class staticInnerSubclass = classRepository.getClass(AnotherTopLevelClass.StaticInnerSubclass.class.getName());
         classRepository.getClass(AnotherTopLevelClass.InnerClass.class.getName());
         assertEquals(staticInnerSubclass.getSuperclass(), staticInner);
     }
@@ -64,8 +97,165 @@ public class JavaClassProvidersTest {
     }
 
     @Test
-    public void testSourceClassProvider() throws Exception {
+    public void testLocalClassFiles() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, AnotherTopLevelClass.class.getPackage().getName().replace('.', '/'));
+        assertTrue(packageDir.mkdirs());
+        for(Class c : new Class[] { AnotherTopLevelClass.class, AnotherTopLevelClass.StaticInnerClass.class, AnotherTopLevelClass.StaticInnerSubclass.class }) {
+            String fileName = c.getName().substring(c.getName().lastIndexOf('.') + 1) + ".class";
+            InputStream in = c.getResourceAsStream(fileName);
+            try {
+                Files.copy(in, new File(packageDir, fileName).toPath());
+            } finally {
+                in.close();
+            }
+        }
+        CompiledJavaClassProvider classProvider = new CompiledJavaClassProvider(VFS.getManager().resolveFile(root.toURI().toString()));
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider);
+        //The subclass first, so the superclass is loaded while defining it
+        Class staticInnerSubclass = classRepository.getClass(AnotherTopLevelClass.StaticInnerSubclass.class.getName());
+        Class staticInner = classRepository.getClass(AnotherTopLevelClass.StaticInnerClass.class.getName());
+        assertEquals(staticInnerSubclass.getSuperclass(), staticInner);
+        assertNotEquals(staticInner, AnotherTopLevelClass.StaticInnerClass.class);
+        CompiledJavaClassProvider.GenerationClassLoader generation = classProvider.getGeneration(classRepository);
+        assertEquals(generation.getNumber(), 1);
+        assertSame(staticInner.getClassLoader(), generation);
+        assertSame(staticInnerSubclass.getClassLoader(), generation, "Classes should share the loader of their generation");
+
+        classRepository.getClassCache().get(staticInner.getName()).markChanged();
+        Class reloadedSubclass = classRepository.getClass(staticInnerSubclass.getName());
+        assertNotEquals(reloadedSubclass, staticInnerSubclass);
+        assertNotEquals(reloadedSubclass.getSuperclass(), staticInner);
+        assertSame(reloadedSubclass.getSuperclass(), classRepository.getClass(staticInner.getName()));
+        generation = classProvider.getGeneration(classRepository);
+        assertEquals(generation.getNumber(), 2, "A reload should create exactly one generation");
+        assertSame(reloadedSubclass.getClassLoader(), generation);
+        assertSame(reloadedSubclass.getSuperclass().getClassLoader(), generation);
+        assertSame(classRepository.getClass(AnotherTopLevelClass.class.getName()).getClassLoader(), generation,
+                   "New classes should be defined in the current generation");
+
+        VFSResource resource = classProvider.getResourceForClass(AnotherTopLevelClass.class.getName());
+        assertNotNull(resource.toLocalFile());
+        ByteBuffer buffer = resource.getByteBuffer();
+        assertFalse(buffer.isDirect(), "Small files should not be mapped");
+        assertEquals(buffer.remaining(), resource.toLocalFile().length());
+        File large = new File(root, "large.bin");
+        Files.write(large.toPath(), new byte[VFSResource.MAP_THRESHOLD]);
+        buffer = classProvider.getResource("large.bin").getByteBuffer();
+        assertTrue(buffer.isDirect(), "Large files should be mapped");
+        assertEquals(buffer.remaining(), VFSResource.MAP_THRESHOLD);
+    }
+
+    @Test
+    public void testArchiveClassProvider() throws Exception {
+        File root = createTempDir();
+        File jar = new File(root, "plugin.jar");
+        writeArchive(jar, "v1");
+        assertTrue(jar.setLastModified(System.currentTimeMillis() - 10000));
+        ArchiveClassProvider classProvider = new ArchiveClassProvider(jar, 0);
+        assertTrue(classProvider.getResourceForClass(AnotherTopLevelClass.StaticInnerClass.class.getName()).isClass());
+        assertFalse(classProvider.getResourceForClass("no.such.Class").exists());
+        assertTrue(classProvider.listResources().contains("META-INF/plugin.txt"));
+        assertEquals(IOUtils.toString(classProvider.getResource("META-INF/plugin.txt").getInputStream(), "UTF-8"), "v1");
+        ByteBuffer stored = classProvider.getResourceForClass(AnotherTopLevelClass.class.getName()).getByteBuffer();
+        assertTrue(stored.isDirect() && stored.isReadOnly(), "Stored entries should be views of the mapped archive");
+
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider);
+        Class staticInnerSubclass = classRepository.getClass(AnotherTopLevelClass.StaticInnerSubclass.class.getName());
+        Class staticInner = classRepository.getClass(AnotherTopLevelClass.StaticInnerClass.class.getName());
+        assertEquals(staticInnerSubclass.getSuperclass(), staticInner);
+        assertNotEquals(staticInner, AnotherTopLevelClass.StaticInnerClass.class);
+        assertSame(staticInner.getClassLoader(), classProvider.getGeneration(classRepository));
+        assertSame(classRepository.getClass(staticInner.getName()), staticInner);
+
+        //Replace the archive like a build would, moving a new file over it
+        File replacement = new File(root, "plugin.jar.tmp");
+        writeArchive(replacement, "v2");
+        Files.move(replacement.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(IOUtils.toString(classProvider.getResource("META-INF/plugin.txt").getInputStream(), "UTF-8"), "v2");
+        Class reloaded = classRepository.getClass(staticInnerSubclass.getName());
+        assertNotSame(reloaded, staticInnerSubclass, "The class should have been reloaded from the new archive");
+        assertSame(reloaded.getSuperclass(), classRepository.getClass(staticInner.getName()));
+        assertEquals(classProvider.getGeneration(classRepository).getNumber(), 2);
+    }
+
+    /**
+     * Writes a JAR with some classes of this test, the first one stored and the others deflated, and a text file.
+     */
+    protected void writeArchive(File file, String text) throws IOException {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+        try {
+            boolean first = true;
+            for(Class c : new Class[] { AnotherTopLevelClass.class, AnotherTopLevelClass.StaticInnerClass.class, AnotherTopLevelClass.StaticInnerSubclass.class }) {
+                String name = c.getName().replace('.', '/') + ".class";
+                byte[] code = IOUtils.toByteArray(c.getResourceAsStream("/" + name));
+                JarEntry entry = new JarEntry(name);
+                if(first) {
+                    CRC32 crc = new CRC32();
+                    crc.update(code);
+                    entry.setMethod(JarEntry.STORED);
+                    entry.setSize(code.length);
+                    entry.setCrc(crc.getValue());
+                    first = false;
+                }
+                out.putNextEntry(entry);
+                out.write(code);
+                out.closeEntry();
+            }
+            out.putNextEntry(new JarEntry("META-INF/plugin.txt"));
+            out.write(text.getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testResourceCache() throws Exception {
+        File root = createTempDir();
+        File config = new File(root, "config.txt");
+        Files.write(config.toPath(), "a=1".getBytes("UTF-8"));
+        assertTrue(config.setLastModified(System.currentTimeMillis() - 10000));
+        Files.write(new File(root, "large.bin").toPath(), new byte[4096]);
+        Files.write(new File(root, "medium.bin").toPath(), new byte[500]);
+        CompiledJavaClassProvider classProvider = new CompiledJavaClassProvider(VFS.getManager().resolveFile(root.toURI().toString()));
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider);
+        assertTrue(classRepository.getResource("config.txt") instanceof VFSResource, "Without a cache, resources are resolved every time");
+
+        classRepository.withResourceCache(1024, true);
+        Resource resource = classRepository.getResource("config.txt");
+        assertSame(classRepository.getResource("config.txt"), resource);
+        ByteBuffer content = resource.getByteBuffer();
+        assertTrue(content.isReadOnly() && content.isDirect());
+        content.get();
+        assertEquals(resource.getByteBuffer().remaining(), 3, "Each view should have its own position");
+        assertEquals(IOUtils.toString(resource.getInputStream(), "UTF-8"), "a=1");
+        assertNotSame(classRepository.getResource("large.bin"), classRepository.getResource("large.bin"), "Content over the budget should not be cached");
+        assertEquals(classRepository.getResourceCache().size(), 1);
+        assertSame(classRepository.getResource("medium.bin"), classRepository.getResource("medium.bin"), "Content within the budget should be cached");
+        assertEquals(classRepository.getResourceCache().size(), 2);
+
+        Files.write(config.toPath(), "a=2".getBytes("UTF-8"));
+        Resource changed = classRepository.getResource("config.txt");
+        assertNotSame(changed, resource);
+        assertEquals(IOUtils.toString(changed.getInputStream(), "UTF-8"), "a=2");
+        assertEquals(IOUtils.toString(resource.getInputStream(), "UTF-8"), "a=1", "Views handed out should not change");
+        assertTrue(config.delete());
+        assertFalse(classRepository.getResource("config.txt").exists());
+    }
+
+    protected File getTestSourceDir() {
         File sourceDir = new File(new File("").getAbsoluteFile(), "core/src/test/java");
+        if(!sourceDir.isDirectory()) {
+            //Running from the module directory (e.g. under Maven)
+            sourceDir = new File(new File("").getAbsoluteFile(), "src/test/java");
+        }
+        return sourceDir;
+    }
+
+    @Test
+    public void testSourceClassProvider() throws Exception {
+        File sourceDir = getTestSourceDir();
         if(sourceDir.isDirectory()) {
             FileSystemManager manager = VFS.getManager();
             FileObject fo = manager.resolveFile(sourceDir.toURI().toString());
@@ -96,6 +286,742 @@ public class JavaClassProvidersTest {
         classRepository.getClass("com.github.alessiostalla.javaclassrepo.source.SourceSub");
     }
 
+    @Test
+    public void testBatchSourceCompilation() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        SourceJavaClassProvider source = new SourceJavaClassProvider(fo, true);
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(source);
+        String packageName = "com.github.alessiostalla.javaclassrepo.batch";
+        Class a = classRepository.getClass(packageName + ".BatchA");
+        assertTrue(classRepository.getClassCache().containsKey(packageName + ".BatchB"), "Referenced sources should be compiled in the same batch");
+        assertTrue(classRepository.getClassCache().containsKey(packageName + ".BatchC"), "Referenced sources should be compiled in the same batch");
+        assertFalse(classRepository.getClassCache().containsKey(packageName + ".BatchD"), "Unreferenced sources should not be compiled");
+        assertSame(a.getSuperclass(), classRepository.getClass(packageName + ".BatchB"));
+        assertSame(a.getSuperclass().getClassLoader(), a.getClassLoader(), "Classes compiled together should share the package-private access");
+
+        Class[] rest = source.loadPackage(packageName, classRepository);
+        assertEquals(rest.length, 1);
+        assertEquals(rest[0].getName(), packageName + ".BatchD");
+        assertSame(classRepository.getClass(packageName + ".BatchD"), rest[0]);
+    }
+
+    @Test
+    public void testBytecodeDependencies() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo, true));
+        String packageName = "com.github.alessiostalla.javaclassrepo.batch";
+        Class a = classRepository.getClass(packageName + ".BatchA");
+        Class d = classRepository.getClass(packageName + ".BatchD");
+        Map<String, ClassRepository.ClassCacheEntry> cache = classRepository.getClassCache();
+        ClassRepository.ClassCacheEntry oldB = cache.get(packageName + ".BatchB");
+        ClassRepository.ClassCacheEntry c = cache.get(packageName + ".BatchC");
+        assertTrue(cache.get(packageName + ".BatchA").references.containsAll(Arrays.asList(oldB.className, c.className)));
+        assertTrue(cache.get(packageName + ".BatchA").getDependencies().containsAll(Arrays.asList(oldB, c)));
+        assertTrue(cache.get(packageName + ".BatchD").getDependencies().isEmpty());
+
+        oldB.markChanged();
+        Class reloadedA = classRepository.getClass(packageName + ".BatchA");
+        assertNotSame(reloadedA, a, "Classes depending on a changed class should be reloaded");
+        assertSame(reloadedA.getSuperclass(), classRepository.getClass(packageName + ".BatchB"));
+        assertSame(classRepository.getClass(packageName + ".BatchD"), d, "Unrelated classes should not be reloaded");
+        Collection<ClassRepository.ClassCacheEntry> dependencies = cache.get(packageName + ".BatchA").getDependencies();
+        assertFalse(dependencies.contains(oldB), "Replaced entries should be unlinked");
+        assertTrue(dependencies.contains(cache.get(packageName + ".BatchB")));
+        assertTrue(dependencies.contains(cache.get(packageName + ".BatchC")));
+        assertSame(classRepository.getClass(packageName + ".BatchA"), reloadedA, "Now, no further reloading should happen");
+    }
+
+    @Test
+    public void testBytecodeScanner() throws Exception {
+        InputStream in = getClass().getResourceAsStream("CountingResource.class");
+        byte[] code;
+        try {
+            code = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        Set<String> references = BytecodeScanner.getReferencedClasses(code);
+        assertTrue(references.contains(Resource.class.getName()), "Field types should be found");
+        assertTrue(references.contains(AtomicInteger.class.getName()), "Field types should be found");
+        assertTrue(references.contains(ClassRepository.class.getName()), "Method parameter types should be found");
+        assertFalse(references.contains("com.github.alessiostalla.javaclassrepo.CountingResource"));
+    }
+
+    @Test
+    public void testCompilationContext() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, "ctx");
+        assertTrue(packageDir.mkdirs());
+        Files.write(new File(packageDir, "Dep.java").toPath(), "package ctx; public class Dep {}".getBytes());
+        Files.write(new File(packageDir, "User.java").toPath(), "package ctx; public class User extends Dep {}".getBytes());
+        FileObject fo = VFS.getManager().resolveFile(root.toURI().toString());
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo)).withListener(metrics);
+        Class dep = classRepository.getClass("ctx.Dep");
+        Class user = classRepository.getClass("ctx.User");
+        assertSame(user.getSuperclass(), dep);
+        assertEquals(metrics.getCompiles().getCount(), 2);
+        assertEquals(metrics.getCompiledClasses(), 2, "Dep should be compiled against, not recompiled");
+
+        //Sources not yet loaded are found in the root, which is not on the class path
+        classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo));
+        assertEquals(classRepository.getClass("ctx.User").getSuperclass().getName(), "ctx.Dep");
+
+        //Dep, compiled along with User, belongs to its own source, so editing that source reloads it
+        ClassRepository.ClassCacheEntry depEntry = classRepository.getClassCache().get("ctx.Dep");
+        assertEquals(depEntry.resourceName, "ctx/Dep.java");
+        File depSource = new File(packageDir, "Dep.java");
+        Files.write(depSource.toPath(), "package ctx; public class Dep { public static String v() { return \"two\"; } }".getBytes());
+        assertTrue(depSource.setLastModified(depEntry.timestamp + 1000));
+        while(System.currentTimeMillis() <= depEntry.timestamp + 1000) {
+            Thread.sleep(50);
+        }
+        Class reloaded = classRepository.getClass("ctx.Dep");
+        assertNotSame(reloaded, depEntry.loadedClass);
+        assertEquals(reloaded.getMethod("v").invoke(null), "two");
+        assertSame(classRepository.getClass("ctx.User").getSuperclass(), reloaded);
+    }
+
+    @Test
+    public void testBytecodeCache() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        File cacheDir = createTempDir();
+        BytecodeCache cache = new BytecodeCache(cacheDir, 1024 * 1024);
+        String className = "com.github.alessiostalla.javaclassrepo.source.SourceSub";
+
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo).withBytecodeCache(cache));
+        Class compiled = classRepository.getClass(className);
+        assertEquals(cache.getStatistics().misses, 1);
+        assertEquals(cache.getStatistics().writes, 1);
+
+        //Simulate a restart
+        cache = new BytecodeCache(cacheDir, 1024 * 1024);
+        classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo).withBytecodeCache(cache));
+        Class cached = classRepository.getClass(className);
+        assertEquals(cache.getStatistics().hits, 1);
+        assertEquals(cache.getStatistics().writes, 0, "The class should not have been compiled again");
+        assertNotSame(cached, compiled);
+        assertEquals(cached.getName(), className);
+        assertEquals(cached.getSuperclass(), compiled.getSuperclass());
+    }
+
+    @Test
+    public void testBytecodeCacheDependencyChange() throws Exception {
+        File root = createTempDir();
+        assertTrue(new File(root, "consts").mkdirs());
+        File constants = new File(root, "consts/Constants.java");
+        writeSource(constants, "package consts; public class Constants { public static final String VALUE = \"one\"; }");
+        writeSource(new File(root, "consts/User.java"), "package consts; public class User { public static String get() { return Constants.VALUE; } }");
+        FileObject fo = VFS.getManager().resolveFile(root.toURI().toString());
+        File cacheDir = createTempDir();
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(
+                new SourceJavaClassProvider(fo).withBytecodeCache(new BytecodeCache(cacheDir, 1024 * 1024)));
+        assertEquals(classRepository.getClass("consts.User").getMethod("get").invoke(null), "one");
+
+        //Restart after changing the constant, which the compiler inlined in User
+        writeSource(constants, "package consts; public class Constants { public static final String VALUE = \"two\"; }");
+        BytecodeCache cache = new BytecodeCache(cacheDir, 1024 * 1024);
+        classRepository = new ClassRepository(false).withClassProviders(new SourceJavaClassProvider(fo).withBytecodeCache(cache));
+        assertEquals(classRepository.getClass("consts.User").getMethod("get").invoke(null), "two");
+        assertEquals(cache.getStatistics().hits, 0);
+        assertEquals(cache.getStatistics().writes, 2, "Constants, compiled along with User, should be cached on its own");
+
+        //Restart with nothing changed
+        cache = new BytecodeCache(cacheDir, 1024 * 1024);
+        classRepository = new ClassRepository(false).withClassProviders(new SourceJavaClassProvider(fo).withBytecodeCache(cache));
+        assertEquals(classRepository.getClass("consts.User").getMethod("get").invoke(null), "two");
+        assertEquals(cache.getStatistics().hits, 1);
+        assertEquals(cache.getStatistics().writes, 0);
+    }
+
+    @Test
+    public void testBytecodeCacheEviction() throws Exception {
+        BytecodeCache cache = new BytecodeCache(createTempDir(), 2500);
+        List<String> options = Collections.emptyList();
+        String key1 = BytecodeCache.computeKey("class A {}".getBytes(), options);
+        String key2 = BytecodeCache.computeKey("class B {}".getBytes(), options);
+        String key3 = BytecodeCache.computeKey("class B {}".getBytes(), Arrays.asList("-g"));
+        assertNotEquals(key1, key2);
+        assertNotEquals(key2, key3);
+        cache.put(key1, Collections.singletonMap("A", new byte[1000]));
+        File entry1 = new File(cache.getDirectory(), key1 + ".classes");
+        assertTrue(entry1.setLastModified(System.currentTimeMillis() - 60000));
+        cache.put(key2, Collections.singletonMap("B", new byte[1000]));
+        assertTrue(new File(cache.getDirectory(), key2 + ".classes").setLastModified(System.currentTimeMillis() - 30000));
+        assertEquals(cache.get(key1).get("A").length, 1000);
+        cache.put(key3, Collections.singletonMap("B", new byte[1000]));
+        assertNotNull(cache.get(key1), "Recently used entries should be kept");
+        assertNull(cache.get(key2), "The least recently used entry should have been evicted");
+        assertTrue(cache.getSize() <= 2500);
+        assertEquals(cache.getStatistics().evictions, 1);
+    }
+
+    @Test
+    public void testRepositoryMetrics() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        SourceJavaClassProvider source = new SourceJavaClassProvider(fo);
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                source).withListener(metrics);
+        String className = "com.github.alessiostalla.javaclassrepo.source.SourceSub";
+        classRepository.getClass(className);
+        assertEquals(metrics.getLookups(RepositoryListener.LookupOutcome.LOADED).getCount(), 1);
+        assertEquals(metrics.getCompiles().getCount(), 1);
+        assertEquals(metrics.getCompileFailures(), 0);
+        assertEquals(metrics.getCompiledClasses(), 1);
+        assertEquals(metrics.getCompilesInProgress(), 0);
+        assertEquals(metrics.getDefines().getCount(), 1);
+        assertTrue(metrics.getDefinedBytes() > 0);
+        assertTrue(metrics.getResolutions(source).getCount() > 0);
+
+        classRepository.getClass(className);
+        assertEquals(metrics.getLookups(RepositoryListener.LookupOutcome.CACHE_HIT).getCount(), 1);
+        try {
+            classRepository.getClass(className + "Missing");
+            fail("The class should not exist");
+        } catch (ClassNotFoundException e) {
+            //Ok
+        }
+        assertEquals(metrics.getLookups(RepositoryListener.LookupOutcome.NOT_FOUND).getCount(), 1);
+        assertTrue(metrics.getResourcesNotFound() > 0);
+
+        classRepository.getClassCache().get(className).markChanged();
+        classRepository.getClass(className);
+        assertEquals(metrics.getReloads().getCount(), 1);
+        assertEquals(metrics.getReloadSizes().getSnapshot().max, 1);
+        assertEquals(metrics.getCompiles().getCount(), 2);
+        RepositoryMetrics.Snapshot lookups = metrics.getLookups(RepositoryListener.LookupOutcome.LOADED).getSnapshot();
+        assertTrue(lookups.getPercentile(50) >= lookups.sum / 2 && lookups.getPercentile(50) <= lookups.max);
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(new CompiledJavaClassProvider(fo))
+                .withMaximumCacheSize(2).withListener(metrics);
+        String superclassName = AnotherTopLevelClass.StaticInnerClass.class.getName();
+        String subclassName = AnotherTopLevelClass.StaticInnerSubclass.class.getName();
+        Class subclass = classRepository.getClass(subclassName);
+        assertEquals(classRepository.getClassCache().size(), 2);
+        //The superclass is the least recently used; evicting it evicts its subclass too
+        classRepository.getClass(AnotherTopLevelClass.class.getName());
+        assertEquals(metrics.getEvictedClasses(), 2);
+        assertFalse(classRepository.getClassCache().containsKey(superclassName));
+        assertFalse(classRepository.getClassCache().containsKey(subclassName));
+        assertTrue(classRepository.getClassCache().containsKey(AnotherTopLevelClass.class.getName()));
+        assertEquals(new HashSet<ClassRepository.ClassCacheEntry>(classRepository.getCachedEntries(AnotherTopLevelClass.class.getPackage().getName())),
+                     new HashSet<ClassRepository.ClassCacheEntry>(classRepository.getClassCache().values()),
+                     "Evicted classes should leave the package index");
+        assertEquals(classRepository.getRemovedClassCount(), 2);
+        Class reloaded = classRepository.getClass(subclassName);
+        assertNotSame(reloaded, subclass);
+        assertNotSame(reloaded.getSuperclass(), subclass.getSuperclass(), "The subclass should use the new superclass");
+        assertTrue(classRepository.getClassCache().size() <= 2);
+        try {
+            classRepository.withMaximumCacheSize(10);
+            fail("The cache size should not change once classes are loaded");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testReloadedClassesAreUnloaded() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(new CompiledJavaClassProvider(fo));
+        String superclassName = AnotherTopLevelClass.StaticInnerClass.class.getName();
+        String subclassName = AnotherTopLevelClass.StaticInnerSubclass.class.getName();
+        assertNotNull(classRepository.getClass(subclassName));
+        classRepository.getClassCache().get(superclassName).markChanged();
+        assertNotNull(classRepository.getClass(subclassName));
+        assertEquals(classRepository.getRemovedClassCount(), 2);
+        long deadline = System.currentTimeMillis() + 30000;
+        while(classRepository.getUnloadedClassCount() < 2 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(classRepository.getUnloadedClassCount(), 2, "The replaced generation should have been unloaded");
+    }
+
+    @Test
+    public void testChangeDetector() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, "com/github/alessiostalla/javaclassrepo/compiled");
+        assertTrue(packageDir.mkdirs());
+        File classFile = new File(packageDir, "CompiledBase.class");
+        InputStream in = getClass().getResourceAsStream("compiled/CompiledBase.class");
+        try {
+            Files.copy(in, classFile.toPath());
+        } finally {
+            in.close();
+        }
+        FileObject fo = VFS.getManager().resolveFile(root.toURI().toString());
+        CompiledJavaClassProvider classProvider = new CompiledJavaClassProvider(fo);
+        VFSChangeDetector changeDetector = new VFSChangeDetector();
+        try {
+            assertTrue(changeDetector.watch(classProvider));
+            ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider).withChangeDetector(changeDetector);
+            String className = "com.github.alessiostalla.javaclassrepo.compiled.CompiledBase";
+            Class loaded = classRepository.getClass(className);
+            assertSame(classRepository.getClass(className), loaded);
+            assertFalse(classRepository.getClassCache().get(className).isChanged());
+
+            byte[] code = Files.readAllBytes(classFile.toPath());
+            Files.write(classFile.toPath(), code);
+            long deadline = System.currentTimeMillis() + 30000;
+            while(!classRepository.getClassCache().get(className).isChanged() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(classRepository.getClassCache().get(className).isChanged(), "The change should have been detected");
+            Thread.sleep(500); //Writing a file can produce more than one event
+            Class reloaded = classRepository.getClass(className);
+            assertNotSame(reloaded, loaded);
+            assertSame(classRepository.getClass(className), reloaded);
+        } finally {
+            changeDetector.close();
+        }
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, "com/github/alessiostalla/javaclassrepo/compiled");
+        assertTrue(packageDir.mkdirs());
+        FileObject fo = VFS.getManager().resolveFile(root.toURI().toString());
+        final AtomicInteger probes = new AtomicInteger();
+        CompiledJavaClassProvider classProvider = new CompiledJavaClassProvider(fo) {
+            @Override
+            public VFSResource getResourceForClass(String className) {
+                probes.incrementAndGet();
+                return super.getResourceForClass(className);
+            }
+        };
+        VFSChangeDetector changeDetector = new VFSChangeDetector();
+        try {
+            assertTrue(changeDetector.watch(classProvider));
+            ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider).withChangeDetector(changeDetector).withNegativeCache(100);
+            String className = "com.github.alessiostalla.javaclassrepo.compiled.CompiledBase";
+            for(int i = 0; i < 3; i++) {
+                try {
+                    classRepository.getClass(className);
+                    fail("The class should not be found");
+                } catch (ClassNotFoundException e) {
+                    //Ok
+                }
+            }
+            assertEquals(probes.get(), 1, "Repeated misses should not probe the providers");
+
+            copyCompiledBase(root);
+            Class found = null;
+            long deadline = System.currentTimeMillis() + 30000;
+            while(found == null && System.currentTimeMillis() < deadline) {
+                try {
+                    found = classRepository.getClass(className);
+                } catch (ClassNotFoundException e) {
+                    Thread.sleep(50);
+                }
+            }
+            assertNotNull(found, "The class should be found once its file appears");
+        } finally {
+            changeDetector.close();
+        }
+    }
+
+    @Test
+    public void testNegativeCacheNestedClasses() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, "neg");
+        assertTrue(packageDir.mkdirs());
+        SourceJavaClassProvider classProvider = new SourceJavaClassProvider(VFS.getManager().resolveFile(root.toURI().toString()));
+        VFSChangeDetector changeDetector = new VFSChangeDetector();
+        try {
+            assertTrue(changeDetector.watch(classProvider));
+            ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader())
+                    .withClassProviders(classProvider).withChangeDetector(changeDetector).withNegativeCache(100);
+            String inner = "neg.Outer$Inner";
+            try {
+                classRepository.getClass(inner);
+                fail("The class should not be found");
+            } catch (ClassNotFoundException e) {
+                //Ok
+            }
+            File outer = new File(packageDir, "Outer.java");
+            writeSource(outer, "package neg; public class Outer { public static class Inner {} }");
+            assertNotNull(awaitClass(classRepository, inner), "The nested class should be found once its outer class appears");
+
+            String other = "neg.Outer$Other";
+            try {
+                classRepository.getClass(other);
+                fail("The class should not be found");
+            } catch (ClassNotFoundException e) {
+                //Ok
+            }
+            writeSource(outer, "package neg; public class Outer { public static class Inner {} public static class Other {} }");
+            assertTrue(outer.setLastModified(System.currentTimeMillis() + 2000));
+            assertNotNull(awaitClass(classRepository, other), "The nested class should be found once its outer class defines it");
+        } finally {
+            changeDetector.close();
+        }
+    }
+
+    protected Class awaitClass(ClassRepository classRepository, String className) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while(System.currentTimeMillis() < deadline) {
+            try {
+                return classRepository.getClass(className);
+            } catch (ClassNotFoundException e) {
+                Thread.sleep(50);
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testProviderIndex() throws Exception {
+        String className = "com.github.alessiostalla.javaclassrepo.compiled.CompiledBase";
+        File root1 = createTempDir();
+        File root2 = createTempDir();
+        copyCompiledBase(root2);
+        final AtomicInteger probes = new AtomicInteger();
+        CompiledJavaClassProvider provider1 = new CompiledJavaClassProvider(VFS.getManager().resolveFile(root1.toURI().toString())) {
+            @Override
+            public VFSResource getResourceForClass(String className) {
+                probes.incrementAndGet();
+                return super.getResourceForClass(className);
+            }
+        };
+        CompiledJavaClassProvider provider2 = new CompiledJavaClassProvider(VFS.getManager().resolveFile(root2.toURI().toString()));
+        VFSChangeDetector changeDetector = new VFSChangeDetector();
+        try {
+            assertTrue(changeDetector.watch(provider1));
+            assertTrue(changeDetector.watch(provider2));
+            ClassRepository classRepository = new ClassRepository(false).withClassProviders(provider1, provider2).withChangeDetector(changeDetector).withProviderIndex();
+            assertTrue(classRepository.getProviderIndex().isIndexed(provider1));
+            assertSame(classRepository.getResourceForClass(className).getProvider(), provider2);
+            assertEquals(probes.get(), 0, "The provider that does not have the class should not be probed");
+
+            copyCompiledBase(root1);
+            long deadline = System.currentTimeMillis() + 30000;
+            while(classRepository.getResourceForClass(className).getProvider() != provider1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertSame(classRepository.getResourceForClass(className).getProvider(), provider1, "The first provider should take precedence once it has the class");
+        } finally {
+            changeDetector.close();
+        }
+    }
+
+    protected void copyCompiledBase(File root) throws IOException {
+        File packageDir = new File(root, "com/github/alessiostalla/javaclassrepo/compiled");
+        //Write elsewhere and move, so the class is never seen half-written
+        File temp = new File(root, "CompiledBase.tmp");
+        InputStream in = getClass().getResourceAsStream("compiled/CompiledBase.class");
+        try {
+            Files.copy(in, temp.toPath());
+        } finally {
+            in.close();
+        }
+        assertTrue(packageDir.isDirectory() || packageDir.mkdirs());
+        Files.move(temp.toPath(), new File(packageDir, "CompiledBase.class").toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected File createTempDir() throws IOException {
+        File dir = File.createTempFile("javaclassrepo", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo), new GroovyClassProvider(fo));
+        String packageName = "com.github.alessiostalla.javaclassrepo.batch";
+        Preload preload = classRepository.preload(packageName);
+        Preload.Report report = preload.await(60, TimeUnit.SECONDS);
+        assertNotNull(report, "Preload did not complete in time");
+        assertEquals(report.total, 4);
+        assertEquals(preload.getCompleted(), 4);
+        assertTrue(report.getFailures().isEmpty(), report.getFailures().toString());
+        for(String name : new String[] { "BatchA", "BatchB", "BatchC", "BatchD" }) {
+            assertTrue(classRepository.getClassCache().containsKey(packageName + "." + name), name + " should have been preloaded");
+        }
+        assertEquals(classRepository.preload(packageName).getTotal(), 0, "Loaded classes should not be preloaded again");
+
+        report = classRepository.preload("com.github.**.Groovy*").await(60, TimeUnit.SECONDS);
+        assertEquals(report.results.size(), 1);
+        assertEquals(report.results.get(0).className, "com.github.alessiostalla.javaclassrepo.groovy.GroovySub");
+        assertTrue(report.results.get(0).isSuccessful());
+
+        //Classes the executor rejects are reported as failed, rather than never completing
+        ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+        classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(new SourceJavaClassProvider(fo));
+        preload = classRepository.preload(classRepository.classProviders, packageName, shutDown);
+        report = preload.await(5, TimeUnit.SECONDS);
+        assertNotNull(report, "A rejected preload should complete");
+        assertTrue(preload.isDone());
+        assertEquals(report.getFailures().size(), 4);
+    }
+
+    @Test
+    public void testAccessTrace() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        String packageName = "com.github.alessiostalla.javaclassrepo.batch";
+        AccessTrace trace = new AccessTrace();
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo)).withAccessTrace(trace);
+        classRepository.getClass(packageName + ".BatchA");
+        classRepository.getClass(packageName + ".BatchA");
+        classRepository.getClass(packageName + ".BatchB");
+        classRepository.getClass(getClass().getName());
+        assertEquals(trace.size(), 2, "Only classes from providers should be traced: " + trace.getEntries());
+        AccessTrace.Entry first = trace.getEntries().get(0);
+        assertEquals(first.className, packageName + ".BatchA");
+        assertEquals(first.resourceName, "com/github/alessiostalla/javaclassrepo/batch/BatchA.java");
+        assertEquals(first.getLookups(), 2);
+        assertTrue(first.getLoadNanos() > 0);
+
+        trace.recordLoad(packageName + ".Missing", "com/github/alessiostalla/javaclassrepo/batch/Missing.java", Long.MAX_VALUE / 2);
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        trace.save(file);
+        AccessTrace loaded = AccessTrace.load(file);
+        assertEquals(loaded.size(), 3);
+        List<String> order = new ArrayList<String>();
+        for(AccessTrace.Entry entry : loaded.getWarmUpOrder()) {
+            order.add(entry.className);
+        }
+        assertEquals(order.get(0), packageName + ".Missing", "The most expensive class should come first");
+        assertEquals(loaded.getEntries().get(0).getLookups(), 2);
+
+        classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo));
+        Preload preload = classRepository.warmUp(loaded);
+        assertEquals(preload.getClassNames().size(), 2, "The class whose resource is gone should be skipped");
+        assertFalse(preload.getClassNames().contains(packageName + ".Missing"));
+        Preload.Report report = preload.await(60, TimeUnit.SECONDS);
+        assertNotNull(report, "Warm-up did not complete in time");
+        assertTrue(report.getFailures().isEmpty(), report.getFailures().toString());
+        assertTrue(classRepository.getClassCache().containsKey(packageName + ".BatchA"));
+        assertTrue(classRepository.getClassCache().containsKey(packageName + ".BatchB"));
+        assertEquals(classRepository.warmUp(loaded).getTotal(), 0, "Loaded classes should not be warmed up again");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(AccessTrace.MAGIC);
+        data.writeInt(AccessTrace.VERSION + 1);
+        data.writeInt(0);
+        try {
+            AccessTrace.read(new ByteArrayInputStream(bytes.toByteArray()));
+            fail("A trace of a newer version should be rejected");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testConcurrentLoadingCompilesOnce() throws Exception {
+        FileSystemManager manager = VFS.getManager();
+        FileObject fo = manager.resolveFile("res://");
+        final AtomicInteger loads = new AtomicInteger();
+        final SourceJavaClassProvider source = new SourceJavaClassProvider(fo);
+        ClassProvider countingProvider = new ClassProvider() {
+            @Override
+            public Resource getResourceForClass(String className) {
+                return new CountingResource(source.getResourceForClass(className), loads);
+            }
+
+            @Override
+            public Resource getResource(String path) {
+                return new CountingResource(source.getResource(path), loads);
+            }
+        };
+        final ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(countingProvider);
+        final String className = "com.github.alessiostalla.javaclassrepo.source.SourceSub";
+        int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Class>> results = new ArrayList<Future<Class>>();
+        for(int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Class>() {
+                @Override
+                public Class call() throws Exception {
+                    barrier.await();
+                    return classRepository.getClass(className);
+                }
+            }));
+        }
+        Class first = results.get(0).get();
+        for(Future<Class> result : results) {
+            assertSame(result.get(), first, "All threads should get the same class");
+        }
+        executor.shutdown();
+        assertEquals(loads.get(), 1, "The class should have been compiled exactly once");
+    }
+
+    @Test
+    public void testConcurrentCyclicLoading() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Map<String, CyclicResource> resources = new HashMap<String, CyclicResource>();
+        ClassProvider provider = new ClassProvider() {
+            @Override
+            public Resource getResourceForClass(String className) {
+                Resource resource = resources.get(className);
+                return resource != null ? resource : new NonExistingResource(this, className);
+            }
+
+            @Override
+            public Resource getResource(String path) {
+                return getResourceForClass(path);
+            }
+        };
+        final String first = AnotherTopLevelClass.class.getName();
+        final String second = CountingResource.class.getName();
+        resources.put(first, new CyclicResource(provider, AnotherTopLevelClass.class, second, barrier));
+        resources.put(second, new CyclicResource(provider, CountingResource.class, first, barrier));
+        final ClassRepository classRepository = new ClassRepository(false).withClassProviders(provider);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Class> firstResult = executor.submit(new Callable<Class>() {
+            @Override
+            public Class call() throws Exception {
+                return classRepository.getClass(first);
+            }
+        });
+        Future<Class> secondResult = executor.submit(new Callable<Class>() {
+            @Override
+            public Class call() throws Exception {
+                return classRepository.getClass(second);
+            }
+        });
+        assertSame(firstResult.get(10, TimeUnit.SECONDS), AnotherTopLevelClass.class);
+        assertSame(secondResult.get(10, TimeUnit.SECONDS), CountingResource.class);
+        executor.shutdown();
+        assertEquals(resources.get(first).loads.get(), 1, "Only one thread should have loaded " + first);
+        assertEquals(resources.get(second).loads.get(), 1, "Only one thread should have loaded " + second);
+        assertSame(classRepository.classCache.get(first).getLoadedClass(), AnotherTopLevelClass.class);
+        assertSame(classRepository.classCache.get(second).getLoadedClass(), CountingResource.class);
+    }
+
+    @Test
+    public void testGetClassAsync() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(
+                new SourceJavaClassProvider(fo)).withCompileExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        String className = "com.github.alessiostalla.javaclassrepo.source.SourceSub";
+        CompletableFuture<Class> future = classRepository.getClassAsync(className);
+        assertSame(classRepository.getClassAsync(className), future, "Concurrent requests should share the future");
+        assertEquals(tasks.size(), 1);
+        assertFalse(future.isDone());
+        tasks.remove(0).run();
+        assertTrue(future.isDone());
+        assertSame(future.get(), classRepository.getClass(className));
+        CompletableFuture<Class> hit = classRepository.getClassAsync(className);
+        assertTrue(hit.isDone(), "Cache hits should not go through the executor");
+        assertSame(hit.get(), future.get());
+        assertTrue(tasks.isEmpty());
+
+        CompletableFuture<Class> missing = classRepository.getClassAsync(className + "Missing");
+        tasks.remove(0).run();
+        try {
+            missing.get();
+            fail("The class should not exist");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClassNotFoundException);
+        }
+        assertNotSame(classRepository.getClassAsync(className + "Missing"), missing, "Completed lookups should not be shared");
+    }
+
+    @Test
+    public void testBackgroundReload() throws Exception {
+        File root = createTempDir();
+        File packageDir = new File(root, "background");
+        assertTrue(packageDir.mkdirs());
+        File greeting = new File(packageDir, "Greeting.java");
+        writeSource(greeting, "package background; public class Greeting { public String toString() { return \"v1\"; } }");
+        writeSource(new File(packageDir, "Greeter.java"), "package background; public class Greeter { public static Object greet() { return new Greeting(); } }");
+        FileObject fo = VFS.getManager().resolveFile(root.toURI().toString());
+        SourceJavaClassProvider classProvider = new SourceJavaClassProvider(fo, true);
+        VFSChangeDetector changeDetector = new VFSChangeDetector();
+        try {
+            assertTrue(changeDetector.watch(classProvider));
+            RepositoryMetrics metrics = new RepositoryMetrics();
+            ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(classProvider)
+                    .withChangeDetector(changeDetector).withBackgroundReload(true).withListener(metrics);
+            Class greeter = classRepository.getClass("background.Greeter");
+            assertEquals(greeter.getMethod("greet").invoke(null).toString(), "v1");
+
+            writeSource(greeting, "package background; public class Greeting { public String toString() { return \"v2\"; } }");
+            Class reloaded = awaitReload(classRepository, "background.Greeter", greeter);
+            assertEquals(reloaded.getMethod("greet").invoke(null).toString(), "v2");
+            assertSame(reloaded.getMethod("greet").invoke(null).getClass(), classRepository.getClass("background.Greeting"),
+                       "The dependent should use the new version of its dependency");
+            Thread.sleep(500); //Writing a file can produce more than one event, each one reloading the class
+            reloaded = classRepository.getClass("background.Greeter");
+
+            long failures = metrics.getReloadFailures();
+            writeSource(greeting, "package background; public class Greeting { public String toString() { return v3; } }");
+            long deadline = System.currentTimeMillis() + 30000;
+            while(metrics.getReloadFailures() == failures && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(metrics.getReloadFailures() > failures, "The failure should have been reported");
+            assertSame(classRepository.getClass("background.Greeter"), reloaded, "The current version should stay in place");
+            assertEquals(reloaded.getMethod("greet").invoke(null).toString(), "v2");
+
+            writeSource(greeting, "package background; public class Greeting { public String toString() { return \"v3\"; } }");
+            assertEquals(awaitReload(classRepository, "background.Greeter", reloaded).getMethod("greet").invoke(null).toString(), "v3");
+        } finally {
+            changeDetector.close();
+        }
+    }
+
+    protected void writeSource(File file, String source) throws IOException {
+        Files.write(file.toPath(), source.getBytes("UTF-8"));
+    }
+
+    protected void compile(File sourceDir, File classesDir, String... sources) {
+        List<String> arguments = new ArrayList<String>(Arrays.asList("-d", classesDir.getPath(), "-sourcepath", sourceDir.getPath()));
+        for(String source : sources) {
+            arguments.add(new File(sourceDir, source).getPath());
+        }
+        assertEquals(ToolProvider.getSystemJavaCompiler().run(null, null, null, arguments.toArray(new String[arguments.size()])), 0);
+    }
+
+    /**
+     * Waits for a background reload to replace the given class. Lookups must return the current version meanwhile.
+     */
+    protected Class awaitReload(ClassRepository classRepository, String className, Class current) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        Class found = classRepository.getClass(className);
+        while(found == current && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            found = classRepository.getClass(className);
+        }
+        assertNotSame(found, current, "The class should have been reloaded in the background");
+        return found;
+    }
+
     @Test
     public void testGroovyClassProvider() throws Exception {
         FileSystemManager manager = VFS.getManager();
@@ -113,6 +1039,464 @@ public class JavaClassProvidersTest {
         assertEquals(aClass.getName(), className);
     }
 
+    @Test
+    public void testGroovyBatchCompilation() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        GroovyClassProvider classProvider = new GroovyClassProvider(fo);
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        ClassRepository classRepository = new ClassRepository().withClassProviders(classProvider).withListener(metrics);
+        String packageName = "com.github.alessiostalla.javaclassrepo.groovybatch";
+        Class[] classes = classProvider.loadPackage(packageName, classRepository);
+        assertEquals(metrics.getCompiles().getCount(), 1, "The package should have been compiled at once");
+        assertTrue(classes.length > 2, "The closure should have been loaded too");
+        for(Class c : classes) {
+            assertSame(classRepository.getClassCache().get(c.getName()).loadedClass, c);
+            if(c.getName().startsWith(packageName + ".Shape$")) {
+                assertEquals(classRepository.getClassCache().get(c.getName()).resourceName, packageName.replace('.', '/') + "/Shape.groovy");
+            }
+        }
+        Class square = classRepository.getClass(packageName + ".Square");
+        Class shape = classRepository.getClass(packageName + ".Shape");
+        assertSame(square.getSuperclass(), shape);
+        Object instance = square.newInstance();
+        square.getMethod("setSide", int.class).invoke(instance, 3);
+        assertEquals(square.getMethod("total", List.class).invoke(instance, Arrays.asList(instance, instance)), 18);
+        assertEquals(classProvider.loadPackage(packageName, classRepository).length, 0, "Loaded scripts should not be compiled again");
+
+        classRepository.getClassCache().get(shape.getName()).markChanged();
+        Class reloadedSquare = classRepository.getClass(square.getName());
+        assertNotSame(reloadedSquare, square);
+        assertSame(reloadedSquare.getSuperclass(), classRepository.getClass(shape.getName()));
+        assertEquals(metrics.getCompiles().getCount(), 2, "The reloaded scripts should have been compiled at once");
+    }
+
+    @Test
+    public void testGroovyCompilationProfile() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        String packageName = "com.github.alessiostalla.javaclassrepo.groovybatch";
+        GroovyClassProvider classProvider = new GroovyClassProvider(fo).withProfile(
+                new GroovyCompilationProfile().withPackageMode(packageName, GroovyCompilationProfile.Mode.STATIC).withTargetBytecode("1.7"));
+        ClassRepository classRepository = new ClassRepository().withClassProviders(classProvider);
+        Class square = classRepository.getClass(packageName + ".Square");
+        assertEquals(GroovyCompilationProfile.getMode(square), GroovyCompilationProfile.Mode.STATIC);
+        assertEquals(GroovyCompilationProfile.getMode(square.getSuperclass()), GroovyCompilationProfile.Mode.STATIC);
+        for(java.lang.reflect.Method method : square.getSuperclass().getDeclaredMethods()) {
+            //Filled with the names of the dynamic call sites
+            assertNotEquals(method.getName(), "$createCallSiteArray_1", "Statically compiled classes don't use call sites");
+        }
+        Object instance = square.newInstance();
+        square.getMethod("setSide", int.class).invoke(instance, 2);
+        assertEquals(square.getMethod("total", List.class).invoke(instance, Arrays.asList(instance, instance)), 8);
+        Class groovySub = classRepository.getClass("com.github.alessiostalla.javaclassrepo.groovy.GroovySub");
+        assertEquals(GroovyCompilationProfile.getMode(groovySub), GroovyCompilationProfile.Mode.DYNAMIC);
+        assertNull(GroovyCompilationProfile.getMode(String.class));
+    }
+
+    @Test
+    public void testMirror() throws Exception {
+        File remoteDir = createTempDir();
+        String className = AnotherTopLevelClass.StaticInnerClass.class.getName();
+        String classPath = className.replace('.', '/') + ".class";
+        FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("/" + classPath), new File(remoteDir, classPath));
+        File text = new File(remoteDir, "META-INF/plugin.txt");
+        FileUtils.writeStringToFile(text, "v1", "UTF-8");
+        assertTrue(text.setLastModified(System.currentTimeMillis() - 10000));
+        AtomicInteger gets = new AtomicInteger();
+        AtomicInteger heads = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new FileHandler(remoteDir, gets, heads));
+        server.start();
+        try {
+            FileObject remoteRoot = VFS.getManager().resolveFile("http://localhost:" + server.getAddress().getPort() + "/");
+            VFSMirror mirror = new VFSMirror(remoteRoot, createTempDir());
+            VFSClassProvider classProvider = new CompiledJavaClassProvider(mirror.getRoot()).withMirror(mirror);
+            ClassRepository classRepository = new ClassRepository(false).withClassProviders(classProvider);
+            Class mirrored = classRepository.getClass(className);
+            assertNotEquals(mirrored, AnotherTopLevelClass.StaticInnerClass.class);
+            assertTrue(new File(mirror.getDirectory(), classPath).isFile());
+            assertEquals(IOUtils.toString(classProvider.getResource("META-INF/plugin.txt").getInputStream(), "UTF-8"), "v1");
+            assertFalse(classProvider.getResource("no/such.txt").exists());
+
+            //Reads, staleness checks and known misses don't go to the remote root
+            int requests = gets.get() + heads.get();
+            assertSame(classRepository.getClass(className), mirrored);
+            assertEquals(IOUtils.toString(classProvider.getResource("META-INF/plugin.txt").getInputStream(), "UTF-8"), "v1");
+            assertFalse(classProvider.getResource("no/such.txt").exists());
+            assertEquals(gets.get() + heads.get(), requests);
+
+            //Revalidation only downloads what changed
+            FileUtils.writeStringToFile(text, "version 2", "UTF-8");
+            int downloads = gets.get();
+            mirror.revalidate();
+            assertEquals(gets.get(), downloads + 1);
+            assertEquals(mirror.getDownloadCount(), 3);
+            assertEquals(IOUtils.toString(classProvider.getResource("META-INF/plugin.txt").getInputStream(), "UTF-8"), "version 2");
+
+            assertTrue(new File(remoteDir, classPath).delete());
+            mirror.revalidate();
+            assertFalse(new File(mirror.getDirectory(), classPath).exists());
+            assertFalse(classProvider.getResource(classPath).exists());
+            mirror.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testReloadPlan() throws Exception {
+        File root = createTempDir();
+        File classesDir = createTempDir();
+        for(String name : new String[] { "base", "left", "right", "cyclea", "cycleb" }) {
+            assertTrue(new File(root, "plan/" + name).mkdirs());
+        }
+        File base = new File(root, "plan/base/Base.java");
+        writeSource(base, "package plan.base; public class Base { public String toString() { return \"v1\"; } }");
+        writeSource(new File(root, "plan/left/Left.java"), "package plan.left; public class Left extends plan.base.Base {}");
+        writeSource(new File(root, "plan/right/Right.java"), "package plan.right; public class Right extends plan.base.Base {}");
+        writeSource(new File(root, "plan/cyclea/CycleA.java"), "package plan.cyclea; public class CycleA extends plan.left.Left { public plan.cycleb.CycleB b; }");
+        writeSource(new File(root, "plan/cycleb/CycleB.java"), "package plan.cycleb; public class CycleB { public plan.cyclea.CycleA a; }");
+        writeSource(new File(root, "plan/Top.java"), "package plan; public class Top { public plan.left.Left left; public plan.right.Right right; public plan.cyclea.CycleA cycle; }");
+        compile(root, classesDir, "plan/Top.java");
+        //Class files are loaded a package at a time, so each of these classes can be loaded on its own
+        CompiledJavaClassProvider classProvider = new CompiledJavaClassProvider(VFS.getManager().resolveFile(classesDir.toURI().toString()));
+        final AtomicInteger parallelTasks = new AtomicInteger();
+        final List<ReloadPlan> plans = new CopyOnWriteArrayList<ReloadPlan>();
+        ClassRepository classRepository = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(classProvider)
+                .withCompileExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        parallelTasks.incrementAndGet();
+                        new Thread(command).start();
+                    }
+                }).withListener(new RepositoryListener() {
+                    @Override
+                    public void reloadPlanned(ReloadPlan plan) {
+                        plans.add(plan);
+                    }
+                });
+        Class top = classRepository.getClass("plan.Top");
+        for(String className : Arrays.asList("plan.base.Base", "plan.left.Left", "plan.right.Right", "plan.cyclea.CycleA", "plan.cycleb.CycleB")) {
+            classRepository.getClass(className);
+        }
+        assertTrue(classRepository.planReload("plan.Top").isEmpty());
+
+        writeSource(base, "package plan.base; public class Base { public String toString() { return \"v2\"; } }");
+        compile(root, classesDir, "plan/base/Base.java");
+        classRepository.resourceChanged(classProvider, "plan/base/Base.class", ResourceChangeListener.ChangeType.MODIFIED);
+        Thread.sleep(5); //Classes loaded in the same millisecond as a change are considered stale
+        ReloadPlan plan = classRepository.planReload("plan.Top");
+        assertEquals(plan.getLevels().size(), 4, plan.toString());
+        assertEquals(plan.getComponents().get(0).getClassNames(), Collections.singletonList("plan.base.Base"));
+        assertEquals(plan.getLevels().get(1).size(), 2, "Left and Right only depend on Base");
+        ReloadPlan.Component cycle = plan.getLevels().get(2).get(0);
+        assertTrue(cycle.isCycle());
+        assertEquals(new HashSet<String>(cycle.getClassNames()), new HashSet<String>(Arrays.asList("plan.cyclea.CycleA", "plan.cycleb.CycleB")));
+        assertEquals(plan.getComponents().get(plan.getComponents().size() - 1).getClassNames(), Collections.singletonList("plan.Top"));
+
+        Class reloaded = classRepository.getClass("plan.Top");
+        assertNotSame(reloaded, top);
+        assertEquals(plans.size(), 1);
+        assertEquals(plans.get(0).getClassNames().size(), 6);
+        assertTrue(parallelTasks.get() > 0, "Left and Right should have been loaded in parallel");
+        Class newBase = classRepository.getClass("plan.base.Base");
+        assertEquals(newBase.newInstance().toString(), "v2");
+        assertSame(reloaded.getField("left").getType().getSuperclass(), newBase);
+        assertSame(reloaded.getField("right").getType().getSuperclass(), newBase);
+        assertSame(reloaded.getField("cycle").getType().getField("b").getType(), classRepository.getClass("plan.cycleb.CycleB"));
+        assertSame(classRepository.getClass("plan.cycleb.CycleB").getField("a").getType(), reloaded.getField("cycle").getType());
+
+        //Deep dependency chains don't overflow the stack
+        List<ClassRepository.ClassCacheEntry> chain = new ArrayList<ClassRepository.ClassCacheEntry>();
+        for(int i = 0; i < 100000; i++) {
+            ClassRepository.ClassCacheEntry entry = classRepository.new ClassCacheEntry(classProvider, "chain" + i + "/C.class", "chain" + i + ".C", null, 0);
+            if(i > 0) {
+                entry.recordDependencyOn(chain.get(i - 1));
+            }
+            chain.add(entry);
+        }
+        Collections.reverse(chain);
+        ReloadPlan chainPlan = ReloadPlan.create(chain);
+        assertEquals(chainPlan.getLevels().size(), chain.size());
+        assertEquals(chainPlan.getComponents().get(0).getClassNames(), Collections.singletonList("chain0.C"));
+    }
+
+    @Test
+    public void testGetClassesByResource() throws Exception {
+        FileObject fo = VFS.getManager().resolveFile("res://");
+        SourceJavaClassProvider source = new SourceJavaClassProvider(fo);
+        ClassRepository classRepository = new ClassRepository(false).withClassProviders(source);
+        String packageName = "com.github.alessiostalla.javaclassrepo.unit";
+        String path = "com/github/alessiostalla/javaclassrepo/unit/Outer.java";
+
+        //The nested class has no resource of its own, so it is found by loading its outer class
+        Class inner = classRepository.getClass(packageName + ".Outer$Inner");
+        Class outer = classRepository.getClass(packageName + ".Outer");
+        assertSame(inner.getEnclosingClass(), outer);
+        Class[] unit = classRepository.getClasses(path);
+        assertEquals(new HashSet<Class>(Arrays.asList(unit)),
+                new HashSet<Class>(Arrays.asList(outer, inner, classRepository.getClass(packageName + ".Secondary"))));
+
+        //The whole unit is replaced together
+        classRepository.resourceChanged(source, path, ResourceChangeListener.ChangeType.MODIFIED);
+        Thread.sleep(5); //Classes loaded in the same millisecond as a change are considered stale
+        Class[] reloaded = classRepository.getClasses(path);
+        assertEquals(reloaded.length, unit.length);
+        for(Class theClass : reloaded) {
+            assertFalse(Arrays.asList(unit).contains(theClass), theClass + " should have been reloaded");
+            assertSame(classRepository.getClass(theClass.getName()), theClass);
+        }
+        assertEquals(classRepository.getClass(packageName + ".Outer$Inner").getEnclosingClass(), classRepository.getClass(packageName + ".Outer"));
+
+        try {
+            classRepository.getClasses("com/github/alessiostalla/javaclassrepo/unit/Missing.java");
+            fail("No classes should have been found");
+        } catch (ClassNotFoundException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testParentRepository() throws Exception {
+        File baseRoot = createTempDir();
+        assertTrue(new File(baseRoot, "lib").mkdirs());
+        File greeter = new File(baseRoot, "lib/Greeter.java");
+        writeSource(greeter, "package lib; public class Greeter { public static String greet() { return \"hello\"; } }");
+        SourceJavaClassProvider baseProvider = new SourceJavaClassProvider(VFS.getManager().resolveFile(baseRoot.toURI().toString()));
+        ClassRepository base = new ClassRepository(false).withClassLoaders(getClass().getClassLoader()).withClassProviders(baseProvider);
+        Class baseGreeter = base.getClass("lib.Greeter");
+
+        String app = "package tenant; public class App { public static String run() { return lib.Greeter.greet() + \" %s\"; } }";
+        ClassRepository[] tenants = new ClassRepository[2];
+        for(int i = 0; i < tenants.length; i++) {
+            File tenantRoot = createTempDir();
+            assertTrue(new File(tenantRoot, "tenant").mkdirs());
+            writeSource(new File(tenantRoot, "tenant/App.java"), String.format(app, "tenant" + i));
+            if(i == 1) { //The second tenant overrides the library and a class of the base's class loader
+                assertTrue(new File(tenantRoot, "lib").mkdirs());
+                writeSource(new File(tenantRoot, "lib/Greeter.java"), "package lib; public class Greeter { public static String greet() { return \"hi\"; } }");
+                File override = new File(tenantRoot, AnotherTopLevelClass.class.getName().replace('.', '/') + ".java");
+                assertTrue(override.getParentFile().mkdirs());
+                writeSource(override, "package " + AnotherTopLevelClass.class.getPackage().getName() + "; public class AnotherTopLevelClass {}");
+            }
+            tenants[i] = new ClassRepository(false).withParent(base).withClassProviders(
+                    new SourceJavaClassProvider(VFS.getManager().resolveFile(tenantRoot.toURI().toString())));
+        }
+
+        assertSame(base.getParent(), null);
+        assertSame(tenants[0].getParent(), base);
+        assertEquals(tenants[0].getClass("tenant.App").getMethod("run").invoke(null), "hello tenant0");
+        assertSame(tenants[0].getClass("lib.Greeter"), baseGreeter, "The class of the base should be shared, not copied");
+        assertTrue(tenants[0].getClassCache().get("lib.Greeter").provider instanceof ParentClassProvider);
+        assertEquals(tenants[1].getClass("tenant.App").getMethod("run").invoke(null), "hi tenant1");
+        assertNotSame(tenants[1].getClass("lib.Greeter"), baseGreeter);
+        assertSame(base.getClass("lib.Greeter"), baseGreeter, "The base should not see the override");
+        String loaderClassName = AnotherTopLevelClass.class.getName();
+        assertNotSame(tenants[1].getClass(loaderClassName), AnotherTopLevelClass.class, "The tenant's providers should come before the base's class loaders");
+        assertSame(tenants[0].getClass(loaderClassName), AnotherTopLevelClass.class);
+        ClassRepository.ClassCacheEntry fromLoader = tenants[0].getClassCache().get(loaderClassName);
+        assertFalse(fromLoader.isChanged(), "Classes of the base's class loaders never change");
+        assertSame(tenants[0].getClass(loaderClassName), AnotherTopLevelClass.class);
+        assertSame(tenants[0].getClassCache().get(loaderClassName), fromLoader);
+        try {
+            base.withParent(tenants[0]);
+            fail("Cycles should be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+
+        //A change in the base reaches the classes of the children that depend on it
+        long loaded = base.getClassCache().get("lib.Greeter").timestamp;
+        writeSource(greeter, "package lib; public class Greeter { public static String greet() { return \"bonjour\"; } }");
+        assertTrue(greeter.setLastModified(loaded + 1000));
+        while(System.currentTimeMillis() <= loaded + 1000) {
+            Thread.sleep(50);
+        }
+        Class tenantApp = tenants[0].getClass("tenant.App");
+        assertEquals(tenantApp.getMethod("run").invoke(null), "bonjour tenant0");
+        Class newGreeter = base.getClass("lib.Greeter");
+        assertNotSame(newGreeter, baseGreeter);
+        assertSame(tenants[0].getClass("lib.Greeter"), newGreeter);
+        assertSame(tenants[0].getClass("tenant.App"), tenantApp);
+        assertEquals(tenants[1].getClass("tenant.App").getMethod("run").invoke(null), "hi tenant1");
+
+        //Classes that appear in the base are no longer missing for the children
+        tenants[0].withNegativeCache(100).withPollInterval(60000);
+        try {
+            tenants[0].getClass("lib.Extra");
+            fail("The class should not exist yet");
+        } catch (ClassNotFoundException e) {
+            //Expected
+        }
+        writeSource(new File(baseRoot, "lib/Extra.java"), "package lib; public class Extra {}");
+        base.resourceChanged(baseProvider, "lib/Extra.java", ResourceChangeListener.ChangeType.CREATED);
+        assertSame(tenants[0].getClass("lib.Extra"), base.getClass("lib.Extra"));
+    }
+}
+
+
+/**
+ * Serves the files of a directory over HTTP, like a remote repository would, counting the requests.
+ */
+class FileHandler implements HttpHandler {
+
+    private final File directory;
+    private final AtomicInteger gets;
+    private final AtomicInteger heads;
+
+    FileHandler(File directory, AtomicInteger gets, AtomicInteger heads) {
+        this.directory = directory;
+        this.gets = gets;
+        this.heads = heads;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        (head ? heads : gets).incrementAndGet();
+        //Don't let the client reuse connections, which the server may reset
+        exchange.getResponseHeaders().set("Connection", "close");
+        File file = new File(directory, exchange.getRequestURI().getPath());
+        if(!file.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(file.lastModified()), ZoneOffset.UTC)));
+        if(head) {
+            exchange.getResponseHeaders().set("Content-Length", Long.toString(file.length()));
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, file.length());
+            OutputStream out = exchange.getResponseBody();
+            try {
+                Files.copy(file.toPath(), out);
+            } finally {
+                out.close();
+            }
+        }
+        exchange.close();
+    }
+}
+
+class CountingResource implements Resource {
+
+    private final Resource delegate;
+    private final AtomicInteger loads;
+
+    CountingResource(Resource delegate, AtomicInteger loads) {
+        this.delegate = delegate;
+        this.loads = loads;
+    }
+
+    @Override
+    public boolean exists() {
+        return delegate.exists();
+    }
+
+    @Override
+    public boolean isNewerThan(long timestamp) {
+        return delegate.isNewerThan(timestamp);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return delegate.getInputStream();
+    }
+
+    @Override
+    public boolean isClass() {
+        return delegate.isClass();
+    }
+
+    @Override
+    public Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException {
+        loads.incrementAndGet();
+        return delegate.loadClasses(repository);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public ClassProvider getProvider() {
+        return delegate.getProvider();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+}
+
+/**
+ * A resource whose first load requests another class after all the threads of the test have started loading, so that
+ * loads of resources that depend on each other wait for each other.
+ */
+class CyclicResource implements Resource {
+
+    private final ClassProvider provider;
+    private final Class theClass;
+    private final String dependency;
+    private final CyclicBarrier barrier;
+    private final AtomicBoolean firstLoad = new AtomicBoolean(true);
+    final AtomicInteger loads = new AtomicInteger();
+
+    CyclicResource(ClassProvider provider, Class theClass, String dependency, CyclicBarrier barrier) {
+        this.provider = provider;
+        this.theClass = theClass;
+        this.dependency = dependency;
+        this.barrier = barrier;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public boolean isNewerThan(long timestamp) {
+        return false;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return null;
+    }
+
+    @Override
+    public boolean isClass() {
+        return true;
+    }
+
+    @Override
+    public Class[] loadClasses(ClassRepository repository) throws ClassNotFoundException {
+        if(firstLoad.compareAndSet(true, false)) {
+            try {
+                barrier.await();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            repository.getClass(dependency);
+        }
+        loads.incrementAndGet();
+        return new Class[] { theClass };
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public ClassProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public String getName() {
+        return theClass.getName();
+    }
 }
 
 class AnotherTopLevelClass {
@@ -0,0 +1,5 @@
+package com.github.alessiostalla.javaclassrepo.batch;
+
+public class BatchA extends BatchB {
+    public BatchC c = new BatchC();
+}
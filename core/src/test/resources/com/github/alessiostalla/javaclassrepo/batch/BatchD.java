@@ -0,0 +1,4 @@
+package com.github.alessiostalla.javaclassrepo.batch;
+
+public class BatchD {
+}
@@ -0,0 +1,11 @@
+package com.github.alessiostalla.javaclassrepo.groovybatch
+
+abstract class Shape {
+    abstract int area()
+
+    int total(List<Shape> shapes) {
+        int total = 0
+        shapes.each { Shape shape -> total += shape.area() }
+        return total
+    }
+}
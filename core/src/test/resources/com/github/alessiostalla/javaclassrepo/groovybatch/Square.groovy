@@ -0,0 +1,9 @@
+package com.github.alessiostalla.javaclassrepo.groovybatch
+
+class Square extends Shape {
+    int side
+
+    int area() {
+        return side * side
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.alessiostalla.javaclassrepo.unit;
+
+public class Outer {
+
+    public static class Inner {}
+
+    public Secondary secondary() {
+        return new Secondary();
+    }
+}
+
+class Secondary {}